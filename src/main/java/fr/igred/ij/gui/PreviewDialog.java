@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.gui;
+
+
+import fr.igred.ij.io.ThumbnailCache;
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.repository.ImageWrapper;
+import loci.plugins.config.SpringUtilities;
+
+import javax.swing.BoxLayout;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.SpringLayout;
+import javax.swing.SwingWorker;
+import java.awt.Container;
+import java.awt.Frame;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static javax.swing.JOptionPane.showMessageDialog;
+
+
+/**
+ * Preview window for a set of OMERO images, loaded in the background.
+ */
+public class PreviewDialog extends JDialog {
+
+	/** The thumbnail size. */
+	private static final int THUMBNAIL_SIZE = 96;
+
+	/** The maximum number of images displayed. */
+	private static final int MAX_ROWS = 5;
+
+	/** The thumbnail cache, shared by all previews. */
+	private static final ThumbnailCache CACHE = new ThumbnailCache();
+
+	/** The status label. */
+	private final JLabel status = new JLabel("Loading images...");
+
+	/** The panel containing thumbnails. */
+	private final JPanel panel = new JPanel(new SpringLayout());
+
+	/** The thumbnail labels, by image ID. */
+	private final Map<Long, JLabel> thumbnails = new HashMap<>(MAX_ROWS);
+
+	/** The client. */
+	private final transient Client client;
+
+	/** The images to preview. */
+	private final transient ImageSupplier images;
+
+
+	/**
+	 * Creates a new preview window, but does not display it.
+	 *
+	 * @param owner  The parent frame.
+	 * @param client The client.
+	 * @param images The function retrieving the images to preview.
+	 */
+	public PreviewDialog(Frame owner, Client client, ImageSupplier images) {
+		super(owner, "Preview", false);
+		this.client = client;
+		this.images = images;
+
+		Container cp = super.getContentPane();
+		cp.setLayout(new BoxLayout(cp, BoxLayout.PAGE_AXIS));
+		JPanel panelStatus = new JPanel();
+		panelStatus.add(status);
+		JPanel buttons = new JPanel();
+		JButton ok = new JButton("OK");
+		ok.addActionListener(e -> dispose());
+		buttons.add(ok);
+		cp.add(panelStatus);
+		cp.add(panel);
+		cp.add(buttons);
+		super.getRootPane().setDefaultButton(ok);
+		super.pack();
+		super.setLocationRelativeTo(owner);
+	}
+
+
+	/**
+	 * Displays this window and starts loading the images.
+	 */
+	public void showPreview() {
+		this.setVisible(true);
+		new ImageLoader().execute();
+	}
+
+
+	/**
+	 * Displays the image names with placeholders, then starts loading the thumbnails.
+	 *
+	 * @param list The images.
+	 */
+	private void showImages(List<ImageWrapper> list) {
+		int nRows = Math.min(list.size(), MAX_ROWS);
+		int missing = list.size() - nRows;
+		List<ImageWrapper> truncated = new ArrayList<>(list.subList(0, nRows));
+		Icon placeholder = new ImageIcon(new BufferedImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE,
+														   BufferedImage.TYPE_INT_ARGB));
+		for (ImageWrapper i : truncated) {
+			JLabel thumbnail = new JLabel(placeholder);
+			thumbnails.put(i.getId(), thumbnail);
+			panel.add(thumbnail);
+
+			JLabel name = new JLabel(i.getName());
+			name.setLabelFor(thumbnail);
+			panel.add(name);
+		}
+		if (missing != 0) {
+			panel.add(new JLabel());
+			JLabel etc = new JLabel("+ " + missing + " images not shown...");
+			panel.add(etc);
+			nRows++;
+		}
+		if (nRows > 0) {
+			SpringUtilities.makeCompactGrid(panel, //parent
+											nRows, 2,
+											5, 5,  //initX, initY
+											10, 10); //xPad, yPad
+			status.setText("Loading thumbnails...");
+			new ThumbnailLoader(truncated).execute();
+		} else {
+			status.setText("No image to preview.");
+		}
+		pack();
+	}
+
+
+	/**
+	 * Displays an error and closes this window.
+	 *
+	 * @param e The exception.
+	 */
+	private void fail(ExecutionException e) {
+		Throwable cause = e.getCause() != null ? e.getCause() : e;
+		showMessageDialog(this, cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		dispose();
+	}
+
+
+	/**
+	 * Retrieves the images to preview.
+	 */
+	@FunctionalInterface
+	public interface ImageSupplier {
+
+		/**
+		 * Retrieves the images.
+		 *
+		 * @return See above.
+		 *
+		 * @throws ServiceException   Cannot connect to OMERO.
+		 * @throws AccessException    Cannot access data.
+		 * @throws ExecutionException A Facility can't be retrieved or instantiated.
+		 * @throws OMEROServerError   Server error.
+		 */
+		List<ImageWrapper> get() throws ServiceException, AccessException, ExecutionException, OMEROServerError;
+
+	}
+
+
+	/**
+	 * Loads the list of images in the background.
+	 */
+	private class ImageLoader extends SwingWorker<List<ImageWrapper>, Void> {
+
+		ImageLoader() {}
+
+
+		@Override
+		protected List<ImageWrapper> doInBackground()
+		throws ServiceException, AccessException, ExecutionException, OMEROServerError {
+			return images.get();
+		}
+
+
+		@Override
+		protected void done() {
+			try {
+				showImages(get());
+			} catch (ExecutionException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Loads the thumbnails in the background.
+	 */
+	private class ThumbnailLoader extends SwingWorker<Map<Long, BufferedImage>, Void> {
+
+		/** The images. */
+		private final List<ImageWrapper> list;
+
+
+		ThumbnailLoader(List<ImageWrapper> list) {
+			this.list = list;
+		}
+
+
+		@Override
+		protected Map<Long, BufferedImage> doInBackground() {
+			return CACHE.getThumbnails(client, list, THUMBNAIL_SIZE);
+		}
+
+
+		@Override
+		protected void done() {
+			try {
+				for (Map.Entry<Long, BufferedImage> entry : get().entrySet()) {
+					JLabel label = thumbnails.get(entry.getKey());
+					if (label != null) {
+						label.setIcon(new ImageIcon(entry.getValue()));
+					}
+				}
+				status.setText(" ");
+			} catch (ExecutionException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+}
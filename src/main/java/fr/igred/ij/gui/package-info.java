@@ -19,6 +19,7 @@
  * <ul>
  *     <li>Connect to OMERO: {@link fr.igred.ij.gui.OMEROConnectDialog}</li>
  *     <li>Monitor the progress of {@link fr.igred.ij.macro.OMEROBatchRunner}: {@link fr.igred.ij.gui.ProgressDialog}</li>
+ *     <li>Preview OMERO images: {@link fr.igred.ij.gui.PreviewDialog}</li>
  * </ul>
  */
 package fr.igred.ij.gui;
\ No newline at end of file
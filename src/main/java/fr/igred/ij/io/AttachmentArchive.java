@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.Files.newOutputStream;
+
+
+/**
+ * Compressed archive gathering the files attached to many images, so that they can be uploaded to OMERO as a single
+ * file annotation.
+ * <p>Files are stored in one folder per image, and {@value #MANIFEST} maps each entry to the OMERO image ID and title
+ * of the image it belongs to.</p>
+ */
+public class AttachmentArchive implements Closeable {
+
+	/** The name of the manifest entry. */
+	private static final String MANIFEST = "manifest.tsv";
+
+	/** The characters that cannot be used in an entry name or stored in a field. */
+	private static final Pattern FORBIDDEN = Pattern.compile("[\\\\/:*?\"<>|\t\r\n]");
+
+	/** The path to the archive. */
+	private final Path path;
+
+	/** The archive output stream. */
+	private final ZipOutputStream zip;
+
+	/** The manifest lines. */
+	private final List<String> manifest = new ArrayList<>(0);
+
+	/** The names of the entries already written. */
+	private final Set<String> entries = new HashSet<>(0);
+
+
+	/**
+	 * Creates a new archive.
+	 *
+	 * @param path The path to the archive.
+	 *
+	 * @throws IOException If the archive could not be created.
+	 */
+	public AttachmentArchive(Path path) throws IOException {
+		this.path = path;
+		this.zip = new ZipOutputStream(new BufferedOutputStream(newOutputStream(path)));
+		manifest.add("entry\timage_id\timage\tfile");
+	}
+
+
+	/**
+	 * Replaces the characters which cannot be used in an entry name or stored in the manifest.
+	 *
+	 * @param value The value.
+	 *
+	 * @return See above.
+	 */
+	private static String clean(String value) {
+		return FORBIDDEN.matcher(value).replaceAll("_");
+	}
+
+
+	/**
+	 * Returns the path to the archive.
+	 *
+	 * @return See above.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+
+	/**
+	 * Checks whether no file was added to the archive.
+	 *
+	 * @return See above.
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+
+	/**
+	 * Adds a file attached to an image.
+	 *
+	 * @param file    The file.
+	 * @param imageId The OMERO image ID.
+	 * @param title   The image title.
+	 *
+	 * @throws IOException If the file could not be read or added.
+	 */
+	public void add(Path file, long imageId, String title) throws IOException {
+		String name = clean(String.valueOf(file.getFileName()));
+		String entry = imageId + "/" + name;
+		for (int i = 1; entries.contains(entry); i++) {
+			entry = imageId + "/" + i + "_" + name;
+		}
+		zip.putNextEntry(new ZipEntry(entry));
+		Files.copy(file, zip);
+		zip.closeEntry();
+		entries.add(entry);
+		manifest.add(String.join("\t", entry, String.valueOf(imageId), clean(title), name));
+	}
+
+
+	/**
+	 * Writes the manifest and closes the archive.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			zip.putNextEntry(new ZipEntry(MANIFEST));
+			zip.write((String.join("\n", manifest) + "\n").getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+	}
+
+}
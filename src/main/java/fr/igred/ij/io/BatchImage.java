@@ -17,6 +17,7 @@
 package fr.igred.ij.io;
 
 
+import fr.igred.omero.Client;
 import fr.igred.omero.repository.ImageWrapper;
 import ij.ImagePlus;
 
@@ -44,6 +45,64 @@ public interface BatchImage {
 	ImagePlus getImagePlus(ROIMode mode);
 
 
+	/**
+	 * Opens the image with the specified client, if applicable, and returns the corresponding ImagePlus.
+	 * <p>By default, the client is ignored.</p>
+	 *
+	 * @param mode   The mode used to load ROIs.
+	 * @param client The OMERO client used to transfer the image.
+	 *
+	 * @return See above.
+	 */
+	default ImagePlus getImagePlus(ROIMode mode, Client client) {
+		return getImagePlus(mode);
+	}
+
+
+	/**
+	 * Returns the image name.
+	 * <p>By default, this is the same as {@link #toString()}.</p>
+	 *
+	 * @return See above.
+	 */
+	default String getName() {
+		return toString();
+	}
+
+
+	/**
+	 * Returns a string identifying the files this image comes from, so that images sharing files can be grouped.
+	 * <p>By default, this is the image name.</p>
+	 *
+	 * @return See above.
+	 */
+	default String getFileset() {
+		return getName();
+	}
+
+
+	/**
+	 * Estimates the size of the image in memory from its metadata, without reading the pixels.
+	 * <p>By default, the size is unknown.</p>
+	 *
+	 * @return The size in bytes, or -1 if it is unknown.
+	 */
+	default long getSizeInBytes() {
+		return -1L;
+	}
+
+
+	/**
+	 * Returns a string identifying this image and its content, used to reuse previous results.
+	 * <p>By default, there is none.</p>
+	 *
+	 * @return See above, or null if the content cannot be identified.
+	 */
+	default String getFingerprint() {
+		return null;
+	}
+
+
 	/**
 	 * Opens the image and returns the corresponding ImagePlus, with no ROI.
 	 *
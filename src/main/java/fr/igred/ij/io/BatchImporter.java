@@ -0,0 +1,193 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.repository.DatasetWrapper;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportCandidates;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.cli.ErrorHandler;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.Pixels;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+
+/**
+ * Imports files to an OMERO dataset in groups: files are queued, then imported together with a single import store,
+ * so that the connection and setup costs are paid once per group instead of once per file.
+ * <p>The IDs of the imported images are returned for each file, so that they can be linked to their inputs.</p>
+ */
+public class BatchImporter {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The OMERO client. */
+	private final Client client;
+
+	/** The number of files which triggers an import. */
+	private final int batchSize;
+
+	/** The time after which queued files are imported, in milliseconds. */
+	private final long flushInterval;
+
+	/** The queued files. */
+	private final List<String> queue = new ArrayList<>(0);
+
+	/** The time at which the oldest queued file was added. */
+	private long oldest;
+
+
+	/**
+	 * Creates a new importer.
+	 *
+	 * @param client        The OMERO client.
+	 * @param batchSize     The number of files which triggers an import.
+	 * @param flushInterval The time after which queued files are imported, in seconds (0 for no limit).
+	 */
+	public BatchImporter(Client client, int batchSize, int flushInterval) {
+		this.client = client;
+		this.batchSize = Math.max(batchSize, 1);
+		this.flushInterval = TimeUnit.SECONDS.toMillis(Math.max(flushInterval, 0));
+	}
+
+
+	/**
+	 * Retrieves the IDs of the images created by an import.
+	 *
+	 * @param pixels The imported pixels.
+	 *
+	 * @return See above.
+	 */
+	private static List<Long> getImageIds(List<? extends Pixels> pixels) {
+		return pixels.stream()
+					 .map(p -> p.getImage().getId().getValue())
+					 .distinct()
+					 .collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Adds a file to the queue.
+	 *
+	 * @param path The path to the file.
+	 */
+	public void add(String path) {
+		if (queue.isEmpty()) {
+			oldest = System.currentTimeMillis();
+		}
+		queue.add(path);
+	}
+
+
+	/**
+	 * Returns the number of queued files.
+	 *
+	 * @return See above.
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+
+	/**
+	 * Checks whether the queue is empty.
+	 *
+	 * @return See above.
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+
+	/**
+	 * Checks whether the queued files should be imported: the queue is full or its oldest file waited too long.
+	 *
+	 * @return See above.
+	 */
+	public boolean isDue() {
+		boolean expired = flushInterval > 0 && System.currentTimeMillis() - oldest >= flushInterval;
+		return queue.size() >= batchSize || !queue.isEmpty() && expired;
+	}
+
+
+	/**
+	 * Imports all the queued files to a dataset and empties the queue.
+	 * <p>Files which could not be imported are logged and missing from the returned map.</p>
+	 *
+	 * @param dataset The dataset.
+	 *
+	 * @return The IDs of the imported images, for each queued path.
+	 *
+	 * @throws DSOutOfServiceException If the import store could not be created.
+	 * @throws IOException             If the files could not be read.
+	 */
+	public Map<String, List<Long>> flush(DatasetWrapper dataset) throws DSOutOfServiceException, IOException {
+		Map<String, String> paths = new HashMap<>(queue.size());
+		queue.forEach(path -> paths.put(new File(path).getAbsolutePath(), path));
+		String[] files = paths.keySet().toArray(new String[0]);
+		queue.clear();
+
+		Map<String, List<Long>> ids = new LinkedHashMap<>(files.length);
+		ImportConfig config = new ImportConfig();
+		config.email.set("");
+		config.sendFiles.set(true);
+		config.sendReport.set(false);
+		config.contOnError.set(true);
+		OMEROMetadataStoreClient store = client.getGateway().getImportStore(client.getCtx());
+		ExecutorService uploadThreadPool = Executors.newFixedThreadPool(config.parallelUpload.get());
+		try (OMEROWrapper reader = new OMEROWrapper(config)) {
+			ImportLibrary library = new ImportLibrary(store, reader);
+			ImportCandidates candidates = new ImportCandidates(reader, files, new ErrorHandler(config));
+			List<ImportContainer> containers = candidates.getContainers();
+			for (int i = 0; i < containers.size(); i++) {
+				ImportContainer container = containers.get(i);
+				container.setTarget(dataset.asDataObject().asIObject());
+				String file = container.getFile().getAbsolutePath();
+				try {
+					List<Pixels> pixels = library.importImage(container, uploadThreadPool, i);
+					ids.put(paths.getOrDefault(file, file), getImageIds(pixels));
+				} catch (Throwable t) { // ImportLibrary.importImage declares Throwable
+					LOGGER.warning("Could not import " + file + ": " + t.getMessage());
+				}
+			}
+		} finally {
+			uploadThreadPool.shutdown();
+			store.logout();
+		}
+		return ids;
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+
+/**
+ * Orders in which the images of a batch can be processed.
+ */
+public enum BatchOrder {
+	/**
+	 * Keep the order in which images were listed.
+	 */
+	AS_LISTED("As listed"),
+	/**
+	 * Process the largest images first. With parallel scripts, images processed together then have similar sizes.
+	 */
+	LARGEST_FIRST("Largest first"),
+	/**
+	 * Alternate between size classes (powers of 2), from the largest to the smallest.
+	 */
+	ALTERNATE_SIZES("Alternate sizes"),
+	/**
+	 * Process images from the same fileset (or file) together.
+	 */
+	BY_FILESET("By fileset");
+
+	/**
+	 * Order String value for user selection.
+	 */
+	private final String value;
+
+
+	/**
+	 * Constructor of the BatchOrder enum.
+	 *
+	 * @param value The order String value for user selection.
+	 */
+	BatchOrder(String value) {
+		this.value = value;
+	}
+
+
+	/**
+	 * Returns the order with the specified name, or {@link #AS_LISTED} if there is none.
+	 *
+	 * @param name The order name.
+	 *
+	 * @return See above.
+	 */
+	public static BatchOrder fromName(String name) {
+		BatchOrder order = AS_LISTED;
+		for (BatchOrder value : values()) {
+			if (value.name().equals(name)) {
+				order = value;
+			}
+		}
+		return order;
+	}
+
+
+	/**
+	 * Interleaves images from different size classes, taking one image from each class in turn.
+	 *
+	 * @param images The images.
+	 * @param sizes  Returns the estimated size of an image, or -1 if it is unknown.
+	 *
+	 * @return See above.
+	 */
+	private static List<BatchImage> alternate(Collection<? extends BatchImage> images,
+											  ToLongFunction<? super BatchImage> sizes) {
+		Map<Integer, Deque<BatchImage>> classes = new TreeMap<>(Comparator.reverseOrder());
+		for (BatchImage image : images) {
+			long size = sizes.applyAsLong(image);
+			int sizeClass = size > 0 ? 63 - Long.numberOfLeadingZeros(size) : -1;
+			classes.computeIfAbsent(sizeClass, k -> new ArrayDeque<>()).add(image);
+		}
+		List<BatchImage> ordered = new ArrayList<>(images.size());
+		while (ordered.size() < images.size()) {
+			for (Deque<BatchImage> sizeClass : classes.values()) {
+				if (!sizeClass.isEmpty()) {
+					ordered.add(sizeClass.poll());
+				}
+			}
+		}
+		return ordered;
+	}
+
+
+	/**
+	 * Groups images by fileset, in the order in which each fileset first appears.
+	 *
+	 * @param images The images.
+	 *
+	 * @return See above.
+	 */
+	private static List<BatchImage> groupByFileset(Collection<? extends BatchImage> images) {
+		Map<String, List<BatchImage>> filesets = new LinkedHashMap<>(images.size());
+		for (BatchImage image : images) {
+			filesets.computeIfAbsent(image.getFileset(), k -> new ArrayList<>(1)).add(image);
+		}
+		List<BatchImage> ordered = new ArrayList<>(images.size());
+		filesets.values().forEach(ordered::addAll);
+		return ordered;
+	}
+
+
+	/**
+	 * Sorts images according to this order.
+	 *
+	 * @param images The images.
+	 * @param sizes  Returns the estimated size of an image, or -1 if it is unknown.
+	 *
+	 * @return A new list, with the same images.
+	 */
+	public List<BatchImage> sort(Collection<? extends BatchImage> images, ToLongFunction<? super BatchImage> sizes) {
+		List<BatchImage> ordered;
+		switch (this) {
+			case LARGEST_FIRST:
+				ordered = new ArrayList<>(images);
+				ordered.sort(Comparator.<BatchImage>comparingLong(sizes::applyAsLong).reversed());
+				break;
+			case ALTERNATE_SIZES:
+				ordered = alternate(images, sizes);
+				break;
+			case BY_FILESET:
+				ordered = groupByFileset(images);
+				break;
+			case AS_LISTED:
+			default:
+				ordered = new ArrayList<>(images);
+		}
+		return ordered;
+	}
+
+
+	/**
+	 * Returns the order String value for user selection.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,393 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static java.nio.file.Files.newOutputStream;
+
+
+/**
+ * Columnar output for results tables: rows from all images are appended to one directory per results title, with one
+ * file per column, so that only the required columns have to be read afterwards.
+ * <p>Numeric columns are stored as big-endian 64-bit floating point values, text columns as UTF-8 lines. The
+ * columns are listed in {@value #SCHEMA}, and the rows added for each image in {@value #ROW_GROUPS}. A numeric
+ * column which later receives text is converted to a text column.</p>
+ */
+public class ColumnarResults implements Closeable {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The name of the file listing the columns. */
+	private static final String SCHEMA = "schema.tsv";
+
+	/** The name of the file listing the rows added for each image. */
+	private static final String ROW_GROUPS = "row_groups.tsv";
+
+	/** The heading of the row labels column. */
+	private static final String LABEL = "Label";
+
+	/** The characters that cannot be used in a file name or stored in a field. */
+	private static final Pattern FORBIDDEN = Pattern.compile("[^\\w.-]");
+
+	/** The characters that cannot be stored in a text value. */
+	private static final Pattern LINE_BREAKS = Pattern.compile("[\t\r\n]");
+
+	/** The output directory. */
+	private final Path directory;
+
+	/** The columns, in the order in which they appeared. */
+	private final Map<String, Column> columns = new LinkedHashMap<>();
+
+	/** The row groups: source, first row and number of rows. */
+	private final List<String> rowGroups = new ArrayList<>();
+
+	/** The number of rows written. */
+	private long rowCount = 0L;
+
+
+	/**
+	 * Creates a new columnar output in the specified directory.
+	 *
+	 * @param directory The output directory.
+	 *
+	 * @throws IOException If the directory could not be created.
+	 */
+	public ColumnarResults(Path directory) throws IOException {
+		this.directory = Files.createDirectories(directory);
+	}
+
+
+	/**
+	 * Checks whether a column only contains numbers (empty and NaN cells are allowed). The row labels are not numeric.
+	 *
+	 * @param results The results table.
+	 * @param heading The column heading.
+	 *
+	 * @return See above.
+	 */
+	static boolean isNumeric(ResultsTable results, String heading) {
+		boolean numeric = results.columnExists(heading);
+		for (int row = 0; numeric && row < results.size(); row++) {
+			String text = results.getStringValue(heading, row);
+			numeric = !Double.isNaN(results.getValue(heading, row)) || text.isEmpty() || "NaN".equals(text);
+		}
+		return numeric;
+	}
+
+
+	/**
+	 * Checks whether a column contains the row labels.
+	 *
+	 * @param results The results table.
+	 * @param heading The column heading.
+	 *
+	 * @return See above.
+	 */
+	private static boolean isLabel(ResultsTable results, String heading) {
+		return LABEL.equals(heading) && results.getColumnIndex(heading) == ResultsTable.COLUMN_NOT_FOUND;
+	}
+
+
+	/**
+	 * Returns the text value stored in a cell.
+	 *
+	 * @param results The results table.
+	 * @param heading The column heading.
+	 * @param row     The row.
+	 *
+	 * @return See above.
+	 */
+	private static String getText(ResultsTable results, String heading, int row) {
+		String text = isLabel(results, heading) ? results.getLabel(row) : results.getStringValue(heading, row);
+		return text == null ? "" : LINE_BREAKS.matcher(text).replaceAll(" ");
+	}
+
+
+	/**
+	 * Formats a numeric value stored in a column converted to text.
+	 *
+	 * @param value The value.
+	 *
+	 * @return See above.
+	 */
+	private static String format(double value) {
+		String text;
+		if (Double.isNaN(value)) {
+			text = "";
+		} else if (value == Math.rint(value) && Math.abs(value) < 1.0e15) {
+			text = String.valueOf((long) value);
+		} else {
+			text = String.valueOf(value);
+		}
+		return text;
+	}
+
+
+	/**
+	 * Appends the rows of a results table.
+	 *
+	 * @param results The results table.
+	 * @param source  The image the results come from.
+	 *
+	 * @throws IOException If the rows could not be written.
+	 */
+	public void append(ResultsTable results, String source) throws IOException {
+		int rows = results.size();
+		if (rows > 0) {
+			Set<Column> written = new HashSet<>(columns.size());
+			for (String heading : results.getHeadings()) {
+				Column column = columns.get(heading);
+				if (column == null) {
+					column = new Column(heading, isNumeric(results, heading), columns.size());
+					column.fill(rowCount);
+					columns.put(heading, column);
+				} else if (column.numeric && !isNumeric(results, heading)) {
+					column.widen();
+				}
+				column.write(results, heading);
+				written.add(column);
+			}
+			for (Column column : columns.values()) {
+				if (!written.contains(column)) {
+					column.fill(rows);
+				}
+				column.flush();
+			}
+			String name = LINE_BREAKS.matcher(source).replaceAll(" ");
+			rowGroups.add(name + "\t" + rowCount + "\t" + rows);
+			rowCount += rows;
+			writeMetadata();
+		}
+	}
+
+
+	/**
+	 * Returns the number of rows written.
+	 *
+	 * @return See above.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+
+	/**
+	 * Writes the list of columns and row groups.
+	 *
+	 * @throws IOException If the files could not be written.
+	 */
+	private void writeMetadata() throws IOException {
+		List<String> schema = new ArrayList<>(columns.size() + 1);
+		schema.add("column\ttype\tfile");
+		for (Column column : columns.values()) {
+			String type = column.numeric ? "float64_be" : "text";
+			schema.add(LINE_BREAKS.matcher(column.heading).replaceAll(" ") + "\t" + type + "\t" + column.file);
+		}
+		Files.write(directory.resolve(SCHEMA), schema, StandardCharsets.UTF_8);
+
+		List<String> groups = new ArrayList<>(rowGroups.size() + 1);
+		groups.add("source\tfirst_row\trow_count");
+		groups.addAll(rowGroups);
+		Files.write(directory.resolve(ROW_GROUPS), groups, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Closes all column files.
+	 *
+	 * @throws IOException If a file could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException error = null;
+		for (Column column : columns.values()) {
+			try {
+				column.close();
+			} catch (IOException e) {
+				LOGGER.warning("Could not close column file: " + e.getMessage());
+				error = e;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+
+	/**
+	 * A column file.
+	 */
+	private final class Column implements Closeable {
+
+		/** The column heading. */
+		private final String heading;
+
+		/** Whether the column is numeric. */
+		private boolean numeric;
+
+		/** The file name. */
+		private String file;
+
+		/** The stream for numeric values. */
+		private DataOutputStream values;
+
+		/** The writer for text values. */
+		private Writer text;
+
+
+		/**
+		 * Creates a new column file.
+		 *
+		 * @param heading The column heading.
+		 * @param numeric Whether the column is numeric.
+		 * @param index   The column index, used to keep file names unique.
+		 *
+		 * @throws IOException If the file could not be created.
+		 */
+		Column(String heading, boolean numeric, int index) throws IOException {
+			this.heading = heading;
+			this.numeric = numeric;
+			String name = FORBIDDEN.matcher(heading).replaceAll("_");
+			this.file = String.format("%03d_%s%s", index, name, numeric ? ".f64" : ".txt");
+			Path path = directory.resolve(file);
+			if (numeric) {
+				values = new DataOutputStream(new BufferedOutputStream(newOutputStream(path)));
+			} else {
+				text = new BufferedWriter(new OutputStreamWriter(newOutputStream(path), StandardCharsets.UTF_8));
+			}
+		}
+
+
+		/**
+		 * Writes the values of this column from a results table.
+		 *
+		 * @param results The results table.
+		 * @param column  The column heading in the table.
+		 *
+		 * @throws IOException If the values could not be written.
+		 */
+		void write(ResultsTable results, String column) throws IOException {
+			boolean label = isLabel(results, column);
+			for (int row = 0; row < results.size(); row++) {
+				if (numeric) {
+					values.writeDouble(label ? Double.NaN : results.getValue(column, row));
+				} else {
+					text.write(getText(results, column, row));
+					text.write('\n');
+				}
+			}
+		}
+
+
+		/**
+		 * Converts this numeric column to a text column, rewriting the values written so far.
+		 *
+		 * @throws IOException If the values could not be converted.
+		 */
+		void widen() throws IOException {
+			values.close();
+			Path numbers = directory.resolve(file);
+			file = file.substring(0, file.length() - ".f64".length()) + ".txt";
+			Path path = directory.resolve(file);
+			text = new BufferedWriter(new OutputStreamWriter(newOutputStream(path), StandardCharsets.UTF_8));
+			long count = Files.size(numbers) / Double.BYTES;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(numbers)))) {
+				for (long row = 0; row < count; row++) {
+					text.write(format(in.readDouble()));
+					text.write('\n');
+				}
+			}
+			Files.delete(numbers);
+			values = null;
+			numeric = false;
+		}
+
+
+		/**
+		 * Fills missing values.
+		 *
+		 * @param rows The number of missing values.
+		 *
+		 * @throws IOException If the values could not be written.
+		 */
+		void fill(long rows) throws IOException {
+			for (long row = 0; row < rows; row++) {
+				if (numeric) {
+					values.writeDouble(Double.NaN);
+				} else {
+					text.write('\n');
+				}
+			}
+		}
+
+
+		/**
+		 * Flushes the values written so far.
+		 *
+		 * @throws IOException If the values could not be written.
+		 */
+		void flush() throws IOException {
+			if (numeric) {
+				values.flush();
+			} else {
+				text.flush();
+			}
+		}
+
+
+		/**
+		 * Closes the file.
+		 *
+		 * @throws IOException If the file could not be closed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (numeric) {
+				values.close();
+			} else {
+				text.close();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.PlateAcquisitionWrapper;
+import fr.igred.omero.repository.PlateWrapper;
+import fr.igred.omero.repository.ProjectWrapper;
+import fr.igred.omero.repository.ScreenWrapper;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.DatasetData;
+import omero.gateway.model.PlateAcquisitionData;
+import omero.gateway.model.PlateData;
+import omero.gateway.model.ProjectData;
+import omero.gateway.model.ScreenData;
+import omero.model.Dataset;
+import omero.model.IObject;
+import omero.model.Plate;
+import omero.model.PlateAcquisition;
+import omero.model.Project;
+import omero.model.Screen;
+import omero.sys.ParametersI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+import static omero.rtypes.unwrap;
+
+
+/**
+ * Lists OMERO containers page by page, without their content.
+ * <p>The content of each container (datasets or plates) has to be loaded separately, when required.</p>
+ */
+public final class ContainerPager {
+
+	/** The default number of objects retrieved per request. */
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	/** The query to list projects in the current group. */
+	private static final String PROJECTS = "select p from Project as p join fetch p.details.owner order by p.id";
+
+	/** The query to list screens in the current group. */
+	private static final String SCREENS = "select s from Screen as s join fetch s.details.owner order by s.id";
+
+	/** The query to summarize projects in the current group. */
+	private static final String PROJECTS_SUMMARY = "select count(p), max(p.details.updateEvent.time) from Project as p";
+
+	/** The query to summarize screens in the current group. */
+	private static final String SCREENS_SUMMARY = "select count(s), max(s.details.updateEvent.time) from Screen as s";
+
+	/** The query to list the datasets in a project. */
+	private static final String DATASETS = "select d from ProjectDatasetLink as l join l.child as d " +
+										   "where l.parent.id = %d order by d.id";
+
+	/** The query to list the plates in a screen. */
+	private static final String PLATES = "select p from ScreenPlateLink as l join l.child as p " +
+										 "where l.parent.id = %d order by p.id";
+
+	/** The query to list the acquisitions in a plate. */
+	private static final String PLATE_ACQUISITIONS = "select a from PlateAcquisition as a " +
+													 "where a.plate.id = %d order by a.id";
+
+	/** The query to summarize the datasets in a project, including the links (their IDs only increase). */
+	private static final String DATASETS_SUMMARY = "select count(l), max(l.id), max(d.details.updateEvent.time) " +
+												   "from ProjectDatasetLink as l join l.child as d " +
+												   "where l.parent.id = %d";
+
+	/** The query to summarize the plates in a screen, including the links (their IDs only increase). */
+	private static final String PLATES_SUMMARY = "select count(l), max(l.id), max(p.details.updateEvent.time) " +
+												 "from ScreenPlateLink as l join l.child as p " +
+												 "where l.parent.id = %d";
+
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private ContainerPager() {
+		throw new AssertionError("Utility class");
+	}
+
+
+	/**
+	 * Runs a query page by page.
+	 *
+	 * @param client   The OMERO client.
+	 * @param query    The HQL query.
+	 * @param pageSize The number of objects per page.
+	 * @param progress Receives the number of objects retrieved so far after each page.
+	 *
+	 * @return The objects.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	private static List<IObject> query(Client client, String query, int pageSize, IntConsumer progress)
+	throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = client.getGateway().getQueryService(client.getCtx());
+		List<IObject> results = new ArrayList<>(pageSize);
+		List<IObject> page;
+		do {
+			ParametersI params = new ParametersI();
+			params.page(results.size(), pageSize);
+			page = qs.findAllByQuery(query, params);
+			results.addAll(page);
+			progress.accept(results.size());
+		} while (page.size() == pageSize && !Thread.currentThread().isInterrupted());
+		return results;
+	}
+
+
+	/**
+	 * Runs a projection query and joins the values of the first row.
+	 *
+	 * @param qs    The query service.
+	 * @param query The HQL query.
+	 *
+	 * @return See above.
+	 *
+	 * @throws ServerError Server error.
+	 */
+	private static String summarize(IQueryPrx qs, String query) throws ServerError {
+		List<List<RType>> rows = qs.projection(query, new ParametersI());
+		StringJoiner summary = new StringJoiner(",");
+		if (!rows.isEmpty()) {
+			rows.get(0).forEach(value -> summary.add(String.valueOf(unwrap(value))));
+		}
+		return summary.toString();
+	}
+
+
+	/**
+	 * Computes a fingerprint of the projects and screens in the current group, from their number and last update.
+	 *
+	 * @param client The OMERO client.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static String getFingerprint(Client client) throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = client.getGateway().getQueryService(client.getCtx());
+		return summarize(qs, PROJECTS_SUMMARY) + "/" + summarize(qs, SCREENS_SUMMARY);
+	}
+
+
+	/**
+	 * Computes a fingerprint of the datasets in a project, from their number and last update.
+	 *
+	 * @param client    The OMERO client.
+	 * @param projectId The project ID.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static String getDatasetsFingerprint(Client client, long projectId)
+	throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = client.getGateway().getQueryService(client.getCtx());
+		return summarize(qs, String.format(DATASETS_SUMMARY, projectId));
+	}
+
+
+	/**
+	 * Computes a fingerprint of the plates in a screen, from their number and last update.
+	 *
+	 * @param client   The OMERO client.
+	 * @param screenId The screen ID.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static String getPlatesFingerprint(Client client, long screenId)
+	throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = client.getGateway().getQueryService(client.getCtx());
+		return summarize(qs, String.format(PLATES_SUMMARY, screenId));
+	}
+
+
+	/**
+	 * Lists the projects in the current group, without their datasets.
+	 *
+	 * @param client   The OMERO client.
+	 * @param pageSize The number of projects per request.
+	 * @param progress Receives the number of projects retrieved so far.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static List<ProjectWrapper> listProjects(Client client, int pageSize, IntConsumer progress)
+	throws DSOutOfServiceException, ServerError {
+		return query(client, PROJECTS, pageSize, progress).stream()
+														  .map(Project.class::cast)
+														  .map(ProjectData::new)
+														  .map(ProjectWrapper::new)
+														  .collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Lists the screens in the current group, without their plates.
+	 *
+	 * @param client   The OMERO client.
+	 * @param pageSize The number of screens per request.
+	 * @param progress Receives the number of screens retrieved so far.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static List<ScreenWrapper> listScreens(Client client, int pageSize, IntConsumer progress)
+	throws DSOutOfServiceException, ServerError {
+		return query(client, SCREENS, pageSize, progress).stream()
+														 .map(Screen.class::cast)
+														 .map(ScreenData::new)
+														 .map(ScreenWrapper::new)
+														 .collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Lists the datasets in a project, without their images.
+	 *
+	 * @param client    The OMERO client.
+	 * @param projectId The project ID.
+	 * @param pageSize  The number of datasets per request.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static List<DatasetWrapper> listDatasets(Client client, long projectId, int pageSize)
+	throws DSOutOfServiceException, ServerError {
+		return query(client, String.format(DATASETS, projectId), pageSize, n -> {})
+				.stream()
+				.map(Dataset.class::cast)
+				.map(DatasetData::new)
+				.map(DatasetWrapper::new)
+				.collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Lists the plates in a screen, without their wells.
+	 *
+	 * @param client   The OMERO client.
+	 * @param screenId The screen ID.
+	 * @param pageSize The number of plates per request.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static List<PlateWrapper> listPlates(Client client, long screenId, int pageSize)
+	throws DSOutOfServiceException, ServerError {
+		return query(client, String.format(PLATES, screenId), pageSize, n -> {})
+				.stream()
+				.map(Plate.class::cast)
+				.map(PlateData::new)
+				.map(PlateWrapper::new)
+				.collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Lists the acquisitions in a plate.
+	 *
+	 * @param client   The OMERO client.
+	 * @param plateId  The plate ID.
+	 * @param pageSize The number of acquisitions per request.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException Cannot connect to OMERO.
+	 * @throws ServerError             Server error.
+	 */
+	public static List<PlateAcquisitionWrapper> listPlateAcquisitions(Client client, long plateId, int pageSize)
+	throws DSOutOfServiceException, ServerError {
+		return query(client, String.format(PLATE_ACQUISITIONS, plateId), pageSize, n -> {})
+				.stream()
+				.map(PlateAcquisition.class::cast)
+				.map(PlateAcquisitionData::new)
+				.map(PlateAcquisitionWrapper::new)
+				.collect(Collectors.toList());
+	}
+
+}
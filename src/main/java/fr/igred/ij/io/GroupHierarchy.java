@@ -0,0 +1,114 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.meta.ExperimenterWrapper;
+import fr.igred.omero.repository.ProjectWrapper;
+import fr.igred.omero.repository.ScreenWrapper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * Top-level content of an OMERO group: projects and screens (without their content) and members.
+ */
+public class GroupHierarchy {
+
+	/** The projects. */
+	private final List<ProjectWrapper> projects;
+	/** The screens. */
+	private final List<ScreenWrapper> screens;
+	/** The group members. */
+	private final List<ExperimenterWrapper> members;
+	/** The fingerprint of the projects and screens on the server. */
+	private final String fingerprint;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param projects    The projects.
+	 * @param screens     The screens.
+	 * @param members     The group members.
+	 * @param fingerprint The fingerprint of the projects and screens on the server.
+	 */
+	public GroupHierarchy(Collection<? extends ProjectWrapper> projects,
+						  Collection<? extends ScreenWrapper> screens,
+						  Collection<? extends ExperimenterWrapper> members,
+						  String fingerprint) {
+		this.projects = new ArrayList<>(projects);
+		this.screens = new ArrayList<>(screens);
+		this.members = new ArrayList<>(members);
+		this.fingerprint = fingerprint;
+	}
+
+
+	/**
+	 * Returns a copy of the list of projects.
+	 *
+	 * @return See above.
+	 */
+	public List<ProjectWrapper> getProjects() {
+		return new ArrayList<>(projects);
+	}
+
+
+	/**
+	 * Returns a copy of the list of screens.
+	 *
+	 * @return See above.
+	 */
+	public List<ScreenWrapper> getScreens() {
+		return new ArrayList<>(screens);
+	}
+
+
+	/**
+	 * Returns a copy of the list of group members.
+	 *
+	 * @return See above.
+	 */
+	public List<ExperimenterWrapper> getMembers() {
+		return new ArrayList<>(members);
+	}
+
+
+	/**
+	 * Returns the fingerprint of the projects and screens on the server.
+	 *
+	 * @return See above.
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+
+	/**
+	 * Checks if the projects and screens match the specified fingerprint.
+	 *
+	 * @param serverFingerprint The current fingerprint on the server.
+	 *
+	 * @return See above.
+	 */
+	public boolean isUpToDate(String serverFingerprint) {
+		return fingerprint != null && fingerprint.equals(serverFingerprint);
+	}
+
+}
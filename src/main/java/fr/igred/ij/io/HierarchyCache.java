@@ -0,0 +1,433 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.GenericObjectWrapper;
+import fr.igred.omero.meta.ExperimenterWrapper;
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.PlateWrapper;
+import fr.igred.omero.repository.ProjectWrapper;
+import fr.igred.omero.repository.ScreenWrapper;
+import ij.Prefs;
+import omero.gateway.model.DatasetData;
+import omero.gateway.model.ExperimenterData;
+import omero.gateway.model.PlateData;
+import omero.gateway.model.ProjectData;
+import omero.gateway.model.ScreenData;
+import omero.model.DatasetI;
+import omero.model.ExperimenterI;
+import omero.model.PlateI;
+import omero.model.ProjectI;
+import omero.model.ScreenI;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static omero.rtypes.rstring;
+
+
+/**
+ * On-disk cache of OMERO group hierarchies, keyed by server, user and group.
+ * <p>The datasets in each project and the plates in each screen are cached separately, with their own
+ * fingerprint, so that they can be checked when the container is selected.</p>
+ */
+public class HierarchyCache {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The field separator. */
+	private static final String SEPARATOR = "\t";
+
+	/** The characters that cannot be stored in a field. */
+	private static final Pattern FORBIDDEN = Pattern.compile("[\t\r\n]");
+
+	/** The characters that cannot be used in a file name. */
+	private static final Pattern UNSAFE = Pattern.compile("[^\\w.-]");
+
+	/** The line type for the fingerprint. */
+	private static final String FINGERPRINT = "F";
+	/** The line type for projects. */
+	private static final String PROJECT = "P";
+	/** The line type for screens. */
+	private static final String SCREEN = "S";
+	/** The line type for group members. */
+	private static final String MEMBER = "U";
+	/** The line type for datasets. */
+	private static final String DATASET = "D";
+	/** The line type for plates. */
+	private static final String PLATE = "L";
+
+	/** The cache directory. */
+	private final File directory;
+	/** The prefix of the cache files for the current server and user. */
+	private final String prefix;
+
+
+	/**
+	 * Creates a new cache in the ImageJ preferences directory.
+	 *
+	 * @param host   The OMERO host.
+	 * @param port   The OMERO port.
+	 * @param userId The user ID.
+	 */
+	public HierarchyCache(String host, int port, long userId) {
+		this(new File(Prefs.getPrefsDir(), "omero_batch" + File.separator + "hierarchy"), host, port, userId);
+	}
+
+
+	/**
+	 * Creates a new cache in the specified directory.
+	 *
+	 * @param directory The cache directory.
+	 * @param host      The OMERO host.
+	 * @param port      The OMERO port.
+	 * @param userId    The user ID.
+	 */
+	public HierarchyCache(File directory, String host, int port, long userId) {
+		this.directory = directory;
+		this.prefix = UNSAFE.matcher(host + "_" + port).replaceAll("_") + "_" + userId;
+	}
+
+
+	/**
+	 * Converts a list of OMERO objects to lines.
+	 *
+	 * @param type    The line type.
+	 * @param objects The OMERO objects.
+	 * @param mapper  Returns the fields following the ID for each object.
+	 * @param <T>     The type of object.
+	 *
+	 * @return See above.
+	 */
+	private static <T extends GenericObjectWrapper<?>>
+	List<String> toLines(String type, Collection<T> objects, Function<? super T, String> mapper) {
+		List<String> lines = new ArrayList<>(objects.size());
+		for (T object : objects) {
+			lines.add(type + SEPARATOR + object.getId() + SEPARATOR + mapper.apply(object));
+		}
+		return lines;
+	}
+
+
+	/**
+	 * Removes the characters that cannot be stored in a field.
+	 *
+	 * @param name The name.
+	 *
+	 * @return See above.
+	 */
+	private static String clean(String name) {
+		return name == null ? "" : FORBIDDEN.matcher(name).replaceAll(" ");
+	}
+
+
+	/**
+	 * Creates a project without datasets.
+	 *
+	 * @param id      The project ID.
+	 * @param ownerId The owner ID.
+	 * @param name    The project name.
+	 *
+	 * @return See above.
+	 */
+	private static ProjectWrapper toProject(long id, long ownerId, String name) {
+		ProjectI project = new ProjectI(id, true);
+		project.setName(rstring(name));
+		project.getDetails().setOwner(new ExperimenterI(ownerId, false));
+		return new ProjectWrapper(new ProjectData(project));
+	}
+
+
+	/**
+	 * Creates a screen without plates.
+	 *
+	 * @param id      The screen ID.
+	 * @param ownerId The owner ID.
+	 * @param name    The screen name.
+	 *
+	 * @return See above.
+	 */
+	private static ScreenWrapper toScreen(long id, long ownerId, String name) {
+		ScreenI screen = new ScreenI(id, true);
+		screen.setName(rstring(name));
+		screen.getDetails().setOwner(new ExperimenterI(ownerId, false));
+		return new ScreenWrapper(new ScreenData(screen));
+	}
+
+
+	/**
+	 * Creates an experimenter with only a username.
+	 *
+	 * @param id       The experimenter ID.
+	 * @param username The username.
+	 *
+	 * @return See above.
+	 */
+	private static ExperimenterWrapper toMember(long id, String username) {
+		ExperimenterI experimenter = new ExperimenterI(id, true);
+		experimenter.setOmeName(rstring(username));
+		return new ExperimenterWrapper(new ExperimenterData(experimenter));
+	}
+
+
+	/**
+	 * Creates a dataset without images.
+	 *
+	 * @param id   The dataset ID.
+	 * @param name The dataset name.
+	 *
+	 * @return See above.
+	 */
+	private static DatasetWrapper toDataset(long id, String name) {
+		DatasetI dataset = new DatasetI(id, true);
+		dataset.setName(rstring(name));
+		return new DatasetWrapper(new DatasetData(dataset));
+	}
+
+
+	/**
+	 * Creates a plate without wells.
+	 *
+	 * @param id   The plate ID.
+	 * @param name The plate name.
+	 *
+	 * @return See above.
+	 */
+	private static PlateWrapper toPlate(long id, String name) {
+		PlateI plate = new PlateI(id, true);
+		plate.setName(rstring(name));
+		return new PlateWrapper(new PlateData(plate));
+	}
+
+
+	/**
+	 * Converts the children of a container to lines, after their fingerprint.
+	 *
+	 * @param fingerprint The fingerprint of the children on the server.
+	 * @param type        The line type.
+	 * @param children    The children.
+	 * @param name        Returns the name of each child.
+	 * @param <T>         The type of children.
+	 *
+	 * @return See above.
+	 */
+	private static <T extends GenericObjectWrapper<?>>
+	List<String> toContent(String fingerprint, String type, Collection<T> children, Function<? super T, String> name) {
+		List<String> lines = new ArrayList<>(children.size() + 1);
+		lines.add(FINGERPRINT + SEPARATOR + clean(fingerprint));
+		lines.addAll(toLines(type, children, c -> clean(name.apply(c))));
+		return lines;
+	}
+
+
+	/**
+	 * Returns the cache file for a group.
+	 *
+	 * @param groupId The group ID.
+	 *
+	 * @return See above.
+	 */
+	private Path getPath(long groupId) {
+		return new File(directory, prefix + "_" + groupId + ".tsv").toPath();
+	}
+
+
+	/**
+	 * Returns the cache file for the children of a container.
+	 *
+	 * @param container The container type.
+	 * @param id        The container ID.
+	 *
+	 * @return See above.
+	 */
+	private Path getPath(String container, long id) {
+		return new File(directory, prefix + "_" + container + "_" + id + ".tsv").toPath();
+	}
+
+
+	/**
+	 * Reads the children of a container from a cache file, if their fingerprint matches.
+	 *
+	 * @param path        The cache file.
+	 * @param type        The line type of the children.
+	 * @param fingerprint The current fingerprint on the server.
+	 * @param factory     Creates a child from its ID and name.
+	 * @param <T>         The type of children.
+	 *
+	 * @return The cached children, or null if there are none or if they are out of date.
+	 */
+	private <T> List<T> read(Path path, String type, String fingerprint, BiFunction<Long, String, T> factory) {
+		List<T> children = null;
+		if (fingerprint != null && path.toFile().isFile()) {
+			try {
+				List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+				if (!lines.isEmpty() && lines.get(0).equals(FINGERPRINT + SEPARATOR + clean(fingerprint))) {
+					children = new ArrayList<>(lines.size() - 1);
+					for (String line : lines.subList(1, lines.size())) {
+						String[] fields = line.split(SEPARATOR, 3);
+						if (type.equals(fields[0]) && fields.length == 3) {
+							children.add(factory.apply(Long.parseLong(fields[1]), fields[2]));
+						}
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+				LOGGER.warning("Could not read cached content: " + e.getMessage());
+				children = null;
+			}
+		}
+		return children;
+	}
+
+
+	/**
+	 * Writes lines to a cache file, replacing it atomically.
+	 *
+	 * @param path  The cache file.
+	 * @param lines The lines.
+	 */
+	private void write(Path path, List<String> lines) {
+		if (directory.isDirectory() || directory.mkdirs()) {
+			try {
+				Path tmp = Files.createTempFile(directory.toPath(), prefix, ".tmp");
+				Files.write(tmp, lines, StandardCharsets.UTF_8);
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				LOGGER.warning("Could not save cache: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Loads the cached hierarchy for a group.
+	 *
+	 * @param groupId The group ID.
+	 *
+	 * @return The cached hierarchy, or null if there is none.
+	 */
+	public GroupHierarchy load(long groupId) {
+		Path path = getPath(groupId);
+		GroupHierarchy hierarchy = null;
+		if (path.toFile().isFile()) {
+			try {
+				String fingerprint = null;
+				List<ProjectWrapper> projects = new ArrayList<>();
+				List<ScreenWrapper> screens = new ArrayList<>();
+				List<ExperimenterWrapper> members = new ArrayList<>();
+				for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+					String[] fields = line.split(SEPARATOR, 4);
+					if (FINGERPRINT.equals(fields[0]) && fields.length == 2) {
+						fingerprint = fields[1];
+					} else if (PROJECT.equals(fields[0]) && fields.length == 4) {
+						projects.add(toProject(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+					} else if (SCREEN.equals(fields[0]) && fields.length == 4) {
+						screens.add(toScreen(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+					} else if (MEMBER.equals(fields[0]) && fields.length == 3) {
+						members.add(toMember(Long.parseLong(fields[1]), fields[2]));
+					}
+				}
+				hierarchy = new GroupHierarchy(projects, screens, members, fingerprint);
+			} catch (IOException | NumberFormatException e) {
+				LOGGER.warning("Could not read cached hierarchy: " + e.getMessage());
+			}
+		}
+		return hierarchy;
+	}
+
+
+	/**
+	 * Saves the hierarchy for a group.
+	 *
+	 * @param groupId   The group ID.
+	 * @param hierarchy The hierarchy.
+	 */
+	public void save(long groupId, GroupHierarchy hierarchy) {
+		List<String> lines = new ArrayList<>();
+		lines.add(FINGERPRINT + SEPARATOR + clean(hierarchy.getFingerprint()));
+		lines.addAll(toLines(PROJECT, hierarchy.getProjects(),
+							 p -> p.getOwner().getId() + SEPARATOR + clean(p.getName())));
+		lines.addAll(toLines(SCREEN, hierarchy.getScreens(),
+							 s -> s.getOwner().getId() + SEPARATOR + clean(s.getName())));
+		lines.addAll(toLines(MEMBER, hierarchy.getMembers(), m -> clean(m.getUserName())));
+		write(getPath(groupId), lines);
+	}
+
+
+	/**
+	 * Loads the cached datasets in a project.
+	 *
+	 * @param projectId   The project ID.
+	 * @param fingerprint The current fingerprint of the datasets on the server.
+	 *
+	 * @return The cached datasets, or null if there are none or if they are out of date.
+	 */
+	public List<DatasetWrapper> loadDatasets(long projectId, String fingerprint) {
+		return read(getPath("project", projectId), DATASET, fingerprint, HierarchyCache::toDataset);
+	}
+
+
+	/**
+	 * Saves the datasets in a project.
+	 *
+	 * @param projectId   The project ID.
+	 * @param fingerprint The fingerprint of the datasets on the server.
+	 * @param datasets    The datasets.
+	 */
+	public void saveDatasets(long projectId, String fingerprint, Collection<DatasetWrapper> datasets) {
+		write(getPath("project", projectId), toContent(fingerprint, DATASET, datasets, DatasetWrapper::getName));
+	}
+
+
+	/**
+	 * Loads the cached plates in a screen.
+	 *
+	 * @param screenId    The screen ID.
+	 * @param fingerprint The current fingerprint of the plates on the server.
+	 *
+	 * @return The cached plates, or null if there are none or if they are out of date.
+	 */
+	public List<PlateWrapper> loadPlates(long screenId, String fingerprint) {
+		return read(getPath("screen", screenId), PLATE, fingerprint, HierarchyCache::toPlate);
+	}
+
+
+	/**
+	 * Saves the plates in a screen.
+	 *
+	 * @param screenId    The screen ID.
+	 * @param fingerprint The fingerprint of the plates on the server.
+	 * @param plates      The plates.
+	 */
+	public void savePlates(long screenId, String fingerprint, Collection<PlateWrapper> plates) {
+		write(getPath("screen", screenId), toContent(fingerprint, PLATE, plates, PlateWrapper::getName));
+	}
+
+}
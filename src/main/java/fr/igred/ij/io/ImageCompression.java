@@ -0,0 +1,100 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import loci.formats.out.TiffWriter;
+
+
+/**
+ * Compressions used to save output images.
+ */
+public enum ImageCompression {
+	/**
+	 * Uncompressed TIFF, saved by ImageJ.
+	 */
+	NONE("Uncompressed", TiffWriter.COMPRESSION_UNCOMPRESSED),
+	/**
+	 * LZW-compressed OME-TIFF, saved by Bio-Formats.
+	 */
+	LZW("LZW", TiffWriter.COMPRESSION_LZW),
+	/**
+	 * Deflate-compressed OME-TIFF, saved by Bio-Formats.
+	 */
+	DEFLATE("Deflate", TiffWriter.COMPRESSION_ZLIB);
+
+	/**
+	 * Compression String value for user selection.
+	 */
+	private final String value;
+
+	/**
+	 * Compression type for the Bio-Formats TIFF writers.
+	 */
+	private final String codec;
+
+
+	/**
+	 * Constructor of the ImageCompression enum.
+	 *
+	 * @param value The compression String value for user selection.
+	 * @param codec The compression type for the Bio-Formats TIFF writers.
+	 */
+	ImageCompression(String value, String codec) {
+		this.value = value;
+		this.codec = codec;
+	}
+
+
+	/**
+	 * Returns the compression with the specified name, or {@link #NONE} if there is none.
+	 *
+	 * @param name The compression name.
+	 *
+	 * @return See above.
+	 */
+	public static ImageCompression fromName(String name) {
+		ImageCompression compression = NONE;
+		for (ImageCompression value : values()) {
+			if (value.name().equals(name)) {
+				compression = value;
+			}
+		}
+		return compression;
+	}
+
+
+	/**
+	 * Returns the compression type for the Bio-Formats TIFF writers.
+	 *
+	 * @return See above.
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+
+	/**
+	 * Returns the compression String value for user selection.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import ij.measure.ResultsTable;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.api.IUpdatePrx;
+import omero.model.IObject;
+import omero.model.ImageAnnotationLink;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.MapAnnotation;
+import omero.model.MapAnnotationI;
+import omero.model.NamedValue;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static omero.rtypes.rstring;
+
+
+/**
+ * Writes scalar results as key-value pairs (map annotations) on images. Annotations are saved in batches, with a
+ * single call for many images.
+ * <p>Each results table produces one annotation per image: a column with a single row is written as is, a column with
+ * several rows as its count, mean, min and max.</p>
+ */
+public class KeyValueWriter {
+
+	/** The namespace of the annotations. */
+	public static final String NAMESPACE = "fr.igred.ij/results";
+
+	/** The value used to select all numeric columns. */
+	public static final String ALL = "*";
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The table name used for untitled results tables. */
+	private static final String DEFAULT_TITLE = "Results";
+
+	/** The default number of annotations saved at once. */
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	/** The OMERO client. */
+	private final Client client;
+
+	/** The selected columns (all numeric columns if empty). */
+	private final Set<String> columns = new LinkedHashSet<>(0);
+
+	/** The number of annotations saved at once. */
+	private final int batchSize;
+
+	/** The annotation links waiting to be saved. */
+	private final List<ImageAnnotationLink> links = new ArrayList<>(0);
+
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param client  The OMERO client.
+	 * @param columns The selected columns, separated by commas, or {@value #ALL} for all numeric columns.
+	 */
+	public KeyValueWriter(Client client, String columns) {
+		this(client, columns, DEFAULT_BATCH_SIZE);
+	}
+
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param client    The OMERO client.
+	 * @param columns   The selected columns, separated by commas, or {@value #ALL} for all numeric columns.
+	 * @param batchSize The number of annotations saved at once.
+	 */
+	public KeyValueWriter(Client client, String columns, int batchSize) {
+		this.client = client;
+		this.batchSize = Math.max(batchSize, 1);
+		Arrays.stream(columns.split(","))
+			  .map(String::trim)
+			  .filter(c -> !c.isEmpty() && !ALL.equals(c))
+			  .forEach(this.columns::add);
+	}
+
+
+	/**
+	 * Checks whether key-value pairs are enabled for the specified columns.
+	 *
+	 * @param columns The selected columns.
+	 *
+	 * @return See above.
+	 */
+	public static boolean isEnabled(String columns) {
+		return columns != null && !columns.trim().isEmpty();
+	}
+
+
+	/**
+	 * Formats a value without unnecessary decimals.
+	 *
+	 * @param value The value.
+	 *
+	 * @return See above.
+	 */
+	private static String toText(double value) {
+		String text;
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1.0e15) {
+			text = String.valueOf((long) value);
+		} else {
+			text = format(Locale.ROOT, "%.6g", value);
+		}
+		return text;
+	}
+
+
+	/**
+	 * Adds the key-value pairs of a column to a list.
+	 *
+	 * @param pairs   The key-value pairs.
+	 * @param results The results table.
+	 * @param heading The column heading.
+	 */
+	private static void addPairs(List<? super NamedValue> pairs, ResultsTable results, String heading) {
+		if (results.size() == 1) {
+			pairs.add(new NamedValue(heading, results.getStringValue(heading, 0)));
+		} else if (ColumnarResults.isNumeric(results, heading)) {
+			double[] values = Arrays.stream(results.getColumn(heading))
+									.filter(v -> !Double.isNaN(v))
+									.toArray();
+			pairs.add(new NamedValue(heading + " count", String.valueOf(values.length)));
+			if (values.length > 0) {
+				double mean = Arrays.stream(values).average().orElse(Double.NaN);
+				double min = Arrays.stream(values).min().orElse(Double.NaN);
+				double max = Arrays.stream(values).max().orElse(Double.NaN);
+				pairs.add(new NamedValue(heading + " mean", toText(mean)));
+				pairs.add(new NamedValue(heading + " min", toText(min)));
+				pairs.add(new NamedValue(heading + " max", toText(max)));
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the key-value pairs for a results table: the table title, then the pairs of the selected columns.
+	 *
+	 * @param results The results table.
+	 *
+	 * @return See above, or only the title if no selected column is in the table.
+	 */
+	public List<NamedValue> getPairs(ResultsTable results) {
+		Collection<String> headings = columns.isEmpty()
+									  ? Arrays.stream(results.getHeadings())
+											  .filter(h -> ColumnarResults.isNumeric(results, h))
+											  .collect(Collectors.toList())
+									  : columns;
+		List<NamedValue> pairs = new ArrayList<>(headings.size() + 1);
+		String title = results.getTitle();
+		pairs.add(new NamedValue("Table", title != null ? title : DEFAULT_TITLE));
+		for (String heading : headings) {
+			if (results.size() > 0 && results.columnExists(heading)) {
+				addPairs(pairs, results, heading);
+			}
+		}
+		return pairs;
+	}
+
+
+	/**
+	 * Queues the key-value pairs of a results table for an image, and saves the queued annotations if there are
+	 * enough.
+	 *
+	 * @param imageId The OMERO image ID.
+	 * @param results The results table.
+	 *
+	 * @throws DSOutOfServiceException If the connection is lost.
+	 */
+	public void add(long imageId, ResultsTable results) throws DSOutOfServiceException {
+		List<NamedValue> pairs = getPairs(results);
+		if (pairs.size() > 1) {
+			MapAnnotation annotation = new MapAnnotationI();
+			annotation.setNs(rstring(NAMESPACE));
+			annotation.setMapValue(pairs);
+			ImageAnnotationLink link = new ImageAnnotationLinkI();
+			link.setParent(new ImageI(imageId, false));
+			link.setChild(annotation);
+			links.add(link);
+		}
+		if (links.size() >= batchSize) {
+			flush();
+		}
+	}
+
+
+	/**
+	 * Saves the queued annotations in a single call.
+	 * <p>If this fails, they are saved one by one, so that a single invalid annotation does not block the others:
+	 * those which still cannot be saved are logged and dropped.</p>
+	 *
+	 * @throws DSOutOfServiceException If the connection is lost. The annotations are then kept in the queue.
+	 */
+	public void flush() throws DSOutOfServiceException {
+		if (!links.isEmpty()) {
+			IUpdatePrx us = client.getGateway().getUpdateService(client.getCtx());
+			try {
+				us.saveArray(new ArrayList<IObject>(links));
+			} catch (ServerError e) {
+				LOGGER.warning("Could not save key-value pairs at once, saving them one by one: " + e.getMessage());
+				for (ImageAnnotationLink link : links) {
+					try {
+						us.saveObject(link);
+					} catch (ServerError error) {
+						LOGGER.warning(format("Could not save key-value pairs for image %d: %s",
+											  link.getParent().getId().getValue(), error.getMessage()));
+					}
+				}
+			}
+			links.clear();
+		}
+	}
+
+}
@@ -24,6 +24,8 @@ import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 import loci.formats.FileStitcher;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
 import loci.plugins.BF;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
@@ -31,6 +33,7 @@ import loci.plugins.in.ImporterOptions;
 import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -54,6 +57,8 @@ public class LocalBatchImage implements BatchImage {
 	private final String path;
 	/** The image index. */
 	private final Integer index;
+	/** The sizes of the series in the file, shared by the images from the same file. */
+	private final SeriesSizes sizes;
 
 
 	/**
@@ -63,8 +68,22 @@ public class LocalBatchImage implements BatchImage {
 	 * @param index The image index.
 	 */
 	public LocalBatchImage(String path, Integer index) {
+		this(path, index, new SeriesSizes(path));
+	}
+
+
+	/**
+	 * Creates a new instance with the specified path and index, sharing the series sizes with the other images from
+	 * the same file.
+	 *
+	 * @param path  The path.
+	 * @param index The image index.
+	 * @param sizes The series sizes.
+	 */
+	private LocalBatchImage(String path, Integer index, SeriesSizes sizes) {
 		this.path = path;
 		this.index = index;
+		this.sizes = sizes;
 	}
 
 
@@ -123,8 +142,9 @@ public class LocalBatchImage implements BatchImage {
 					} else {
 						used.add(file);
 					}
+					SeriesSizes sizes = new SeriesSizes(file);
 					for (int i = 0; i < n; i++) {
-						batchImages.add(new LocalBatchImage(file, i));
+						batchImages.add(new LocalBatchImage(file, i, sizes));
 					}
 				} catch (IOException | FormatException e) {
 					LOGGER.severe(e.getMessage());
@@ -169,6 +189,63 @@ public class LocalBatchImage implements BatchImage {
 	}
 
 
+	/**
+	 * Returns the file name, followed by the series index if it is not the first one.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String getName() {
+		String name = new File(path).getName();
+		return index == null || index.equals(0) ? name : name + " #" + index;
+	}
+
+
+	/**
+	 * Returns the path to the file containing this image.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String getFileset() {
+		return path;
+	}
+
+
+	/**
+	 * Estimates the size of the image in memory from the file metadata.
+	 * <p>The metadata is read once for all the series in the file.</p>
+	 *
+	 * @return The size in bytes, or -1 if it is unknown.
+	 */
+	@Override
+	public long getSizeInBytes() {
+		return sizes.get(index == null ? 0 : index);
+	}
+
+
+	/**
+	 * Returns a string identifying this image from its path, index and the checksums of the image and ROI files.
+	 *
+	 * @return See above, or null if the files could not be read.
+	 */
+	@Override
+	public String getFingerprint() {
+		String fingerprint = null;
+		try {
+			String checksum = ResultCache.checksum(Paths.get(path));
+			String roiPath = getRoiPath();
+			if (!roiPath.isEmpty()) {
+				checksum += ":" + ResultCache.checksum(Paths.get(roiPath));
+			}
+			fingerprint = "file:" + path + ":" + index + ":" + checksum;
+		} catch (IOException e) {
+			LOGGER.warning("Could not compute checksum: " + e.getMessage());
+		}
+		return fingerprint;
+	}
+
+
 	/**
 	 * Opens the image and returns the corresponding ImagePlus.
 	 *
@@ -264,4 +341,49 @@ public class LocalBatchImage implements BatchImage {
 			   "}";
 	}
 
+
+	/**
+	 * The sizes in memory of the series in a file, read from the metadata the first time they are needed.
+	 */
+	private static class SeriesSizes {
+
+		/** The path to the file. */
+		private final String path;
+		/** The sizes of the series, in bytes (-1 if unknown), or null if they were not read yet. */
+		private long[] sizes;
+
+
+		SeriesSizes(String path) {
+			this.path = path;
+		}
+
+
+		/**
+		 * Returns the size of a series, reading the metadata of the file the first time.
+		 *
+		 * @param series The series index.
+		 *
+		 * @return The size in bytes, or -1 if it is unknown.
+		 */
+		synchronized long get(int series) {
+			if (sizes == null) {
+				sizes = new long[0];
+				try (ImageReader reader = new ImageReader()) {
+					reader.setId(path);
+					sizes = new long[reader.getSeriesCount()];
+					for (int i = 0; i < sizes.length; i++) {
+						reader.setSeries(i);
+						sizes[i] = (long) reader.getSizeX() * reader.getSizeY() *
+								   reader.getSizeZ() * reader.getSizeC() * reader.getSizeT() *
+								   FormatTools.getBytesPerPixel(reader.getPixelType());
+					}
+				} catch (FormatException | IOException e) {
+					LOGGER.warning("Could not read metadata: " + e.getMessage());
+				}
+			}
+			return series >= 0 && series < sizes.length ? sizes[series] : -1L;
+		}
+
+	}
+
 }
@@ -21,13 +21,16 @@ import fr.igred.omero.Client;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.repository.ImageWrapper;
+import fr.igred.omero.repository.PixelsWrapper;
 import fr.igred.omero.roi.ROIWrapper;
 import ij.ImagePlus;
 import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
+import loci.formats.FormatTools;
 
 import java.lang.invoke.MethodHandles;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -86,6 +89,69 @@ public class OMEROBatchImage implements BatchImage {
 	}
 
 
+	/**
+	 * Returns the image name.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String getName() {
+		return imageWrapper.getName();
+	}
+
+
+	/**
+	 * Returns a string identifying the fileset this image was imported from.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String getFileset() {
+		long filesetId = imageWrapper.asDataObject().getFilesetId();
+		return filesetId >= 0 ? "fileset:" + filesetId : "image:" + imageWrapper.getId();
+	}
+
+
+	/**
+	 * Estimates the size of the image in memory from the pixels dimensions and type.
+	 *
+	 * @return The size in bytes, or -1 if it is unknown.
+	 */
+	@Override
+	public long getSizeInBytes() {
+		long size = -1L;
+		try {
+			PixelsWrapper pixels = imageWrapper.getPixels();
+			int bpp = FormatTools.getBytesPerPixel(FormatTools.pixelTypeFromString(pixels.getPixelType()));
+			size = (long) pixels.getSizeX() * pixels.getSizeY() *
+				   pixels.getSizeZ() * pixels.getSizeC() * pixels.getSizeT() * bpp;
+		} catch (RuntimeException e) {
+			LOGGER.fine("Unknown size for image " + imageWrapper.getId());
+		}
+		return size;
+	}
+
+
+	/**
+	 * Returns a string identifying this image and its last update on OMERO.
+	 *
+	 * @return See above, or null if the update time was not loaded.
+	 */
+	@Override
+	public String getFingerprint() {
+		String fingerprint = null;
+		try {
+			Timestamp updated = imageWrapper.asDataObject().getUpdated();
+			if (updated != null) {
+				fingerprint = "omero:" + imageWrapper.getId() + ":" + updated.getTime();
+			}
+		} catch (RuntimeException e) {
+			LOGGER.fine("Unknown update time for image " + imageWrapper.getId());
+		}
+		return fingerprint;
+	}
+
+
 	/**
 	 * Opens the image and returns the corresponding ImagePlus.
 	 *
@@ -93,9 +159,24 @@ public class OMEROBatchImage implements BatchImage {
 	 */
 	@Override
 	public ImagePlus getImagePlus(ROIMode mode) {
+		return getImagePlus(mode, client);
+	}
+
+
+	/**
+	 * Opens the image with the specified client and returns the corresponding ImagePlus.
+	 *
+	 * @param mode    The mode used to load ROIs.
+	 * @param session The OMERO client used to transfer the image.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public ImagePlus getImagePlus(ROIMode mode, Client session) {
+		Client c = session != null ? session : client;
 		ImagePlus imp = null;
 		try {
-			imp = imageWrapper.toImagePlus(client);
+			imp = imageWrapper.toImagePlus(c);
 			// Store image "annotate" permissions as a property in the ImagePlus object
 			imp.setProp("Annotatable", String.valueOf(imageWrapper.canAnnotate()));
 			if (mode != ROIMode.DO_NOT_LOAD) {
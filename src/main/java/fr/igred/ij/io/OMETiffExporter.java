@@ -0,0 +1,412 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import loci.common.DataTools;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.meta.IPyramidStore;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.services.OMEXMLService;
+import ome.units.quantity.Length;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.stream.IntStream;
+
+
+/**
+ * Saves ImageJ images as compressed OME-TIFF files with Bio-Formats.
+ * <p>Images can also be saved as tiled, pyramidal OME-TIFF: each sub-resolution is half the size of the previous one,
+ * down to the tile size, and is computed in parallel across tiles.</p>
+ */
+public class OMETiffExporter {
+
+	/** The size above which BigTIFF is used. */
+	private static final long BIG_TIFF_THRESHOLD = 2L * 1024 * 1024 * 1024;
+
+	/** The dimension order of the planes. */
+	private static final String DIMENSION_ORDER = "XYCZT";
+
+	/** The size of the tiles in pyramidal images. */
+	private static final int TILE_SIZE = 512;
+
+	/** The compression. */
+	private final ImageCompression compression;
+
+	/** Whether images are saved as tiled pyramids. */
+	private final boolean pyramidal;
+
+
+	/**
+	 * Creates a new exporter with the specified compression.
+	 *
+	 * @param compression The compression.
+	 */
+	public OMETiffExporter(ImageCompression compression) {
+		this(compression, false);
+	}
+
+
+	/**
+	 * Creates a new exporter with the specified compression, saving tiled pyramids if required.
+	 *
+	 * @param compression The compression.
+	 * @param pyramidal   Whether images are saved as tiled pyramids.
+	 */
+	public OMETiffExporter(ImageCompression compression, boolean pyramidal) {
+		this.compression = compression;
+		this.pyramidal = pyramidal;
+	}
+
+
+	/**
+	 * Returns the Bio-Formats pixel type of an image.
+	 *
+	 * @param imp The image.
+	 *
+	 * @return See above.
+	 */
+	private static int getPixelType(ImagePlus imp) {
+		int pixelType;
+		switch (imp.getType()) {
+			case ImagePlus.GRAY16:
+				pixelType = FormatTools.UINT16;
+				break;
+			case ImagePlus.GRAY32:
+				pixelType = FormatTools.FLOAT;
+				break;
+			case ImagePlus.GRAY8:
+			case ImagePlus.COLOR_256:
+			case ImagePlus.COLOR_RGB:
+			default:
+				pixelType = FormatTools.UINT8;
+		}
+		return pixelType;
+	}
+
+
+	/**
+	 * Converts a physical size from ImageJ to OME.
+	 *
+	 * @param value The size.
+	 * @param unit  The ImageJ unit.
+	 *
+	 * @return See above, or null if it cannot be converted.
+	 */
+	private static Length getPhysicalSize(double value, String unit) {
+		String omeUnit = "micron".equals(unit) || "microns".equals(unit) ? "\u00B5m" : unit;
+		return value > 0 ? FormatTools.getPhysicalSizeX(value, omeUnit) : null;
+	}
+
+
+	/**
+	 * Creates the OME metadata of an image.
+	 *
+	 * @param imp The image.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DependencyException If the OME-XML service is not available.
+	 * @throws ServiceException    If the metadata could not be created.
+	 */
+	private static IMetadata createMetadata(ImagePlus imp) throws DependencyException, ServiceException {
+		OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+		IMetadata meta = service.createOMEXMLMetadata();
+		int samples = imp.getType() == ImagePlus.COLOR_RGB ? 3 : 1;
+		String pixelType = FormatTools.getPixelTypeString(getPixelType(imp));
+		MetadataTools.populateMetadata(meta, 0, imp.getTitle(), false, DIMENSION_ORDER, pixelType,
+									   imp.getWidth(), imp.getHeight(), imp.getNSlices(),
+									   imp.getNChannels() * samples, imp.getNFrames(), samples);
+		Calibration cal = imp.getCalibration();
+		if (cal.scaled()) {
+			Length sizeX = getPhysicalSize(cal.pixelWidth, cal.getXUnit());
+			Length sizeY = getPhysicalSize(cal.pixelHeight, cal.getYUnit());
+			Length sizeZ = getPhysicalSize(cal.pixelDepth, cal.getZUnit());
+			if (sizeX != null) {
+				meta.setPixelsPhysicalSizeX(sizeX, 0);
+			}
+			if (sizeY != null) {
+				meta.setPixelsPhysicalSizeY(sizeY, 0);
+			}
+			if (sizeZ != null && imp.getNSlices() > 1) {
+				meta.setPixelsPhysicalSizeZ(sizeZ, 0);
+			}
+		}
+		return meta;
+	}
+
+
+	/**
+	 * Returns the pixels of a plane as big-endian bytes (interleaved for RGB images).
+	 *
+	 * @param ip The plane.
+	 *
+	 * @return See above.
+	 */
+	static byte[] getBytes(ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		byte[] bytes;
+		if (pixels instanceof short[]) {
+			bytes = DataTools.shortsToBytes((short[]) pixels, false);
+		} else if (pixels instanceof float[]) {
+			bytes = DataTools.floatsToBytes((float[]) pixels, false);
+		} else if (pixels instanceof int[]) {
+			int[] rgb = (int[]) pixels;
+			bytes = new byte[3 * rgb.length];
+			for (int i = 0; i < rgb.length; i++) {
+				bytes[3 * i] = (byte) (rgb[i] >> 16);
+				bytes[3 * i + 1] = (byte) (rgb[i] >> 8);
+				bytes[3 * i + 2] = (byte) rgb[i];
+			}
+		} else {
+			bytes = (byte[]) pixels;
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Returns the number of resolutions of a pyramid, so that the smallest one is not much smaller than a tile.
+	 *
+	 * @param width  The image width.
+	 * @param height The image height.
+	 *
+	 * @return See above.
+	 */
+	static int getResolutionCount(int width, int height) {
+		int resolutions = 1;
+		int size = Math.max(width, height);
+		while (size / 2 >= TILE_SIZE) {
+			size /= 2;
+			resolutions++;
+		}
+		return resolutions;
+	}
+
+
+	/**
+	 * Adds the sizes of the sub-resolutions to the metadata.
+	 *
+	 * @param meta        The metadata.
+	 * @param width       The image width.
+	 * @param height      The image height.
+	 * @param resolutions The number of resolutions.
+	 */
+	private static void addResolutions(IMetadata meta, int width, int height, int resolutions) {
+		if (meta instanceof IPyramidStore) {
+			IPyramidStore pyramid = (IPyramidStore) meta;
+			int sizeX = width;
+			int sizeY = height;
+			for (int r = 1; r < resolutions; r++) {
+				sizeX = Math.max(sizeX / 2, 1);
+				sizeY = Math.max(sizeY / 2, 1);
+				pyramid.setResolutionSizeX(new PositiveInteger(sizeX), 0, r);
+				pyramid.setResolutionSizeY(new PositiveInteger(sizeY), 0, r);
+			}
+		}
+	}
+
+
+	/**
+	 * Averages a 2x2 block of RGB pixels.
+	 *
+	 * @param ip The RGB plane.
+	 * @param x  The X coordinate of the block.
+	 * @param y  The Y coordinate of the block.
+	 *
+	 * @return See above.
+	 */
+	private static int averageRGB(ImageProcessor ip, int x, int y) {
+		int[] sums = new int[3];
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				int rgb = ip.getPixel(Math.min(x + dx, ip.getWidth() - 1), Math.min(y + dy, ip.getHeight() - 1));
+				sums[0] += (rgb >> 16) & 0xff;
+				sums[1] += (rgb >> 8) & 0xff;
+				sums[2] += rgb & 0xff;
+			}
+		}
+		return ((sums[0] + 2) / 4 << 16) | ((sums[1] + 2) / 4 << 8) | (sums[2] + 2) / 4;
+	}
+
+
+	/**
+	 * Averages a 2x2 block of grayscale pixels.
+	 *
+	 * @param ip The grayscale plane.
+	 * @param x  The X coordinate of the block.
+	 * @param y  The Y coordinate of the block.
+	 *
+	 * @return See above.
+	 */
+	private static float average(ImageProcessor ip, int x, int y) {
+		float sum = 0.0f;
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				sum += ip.getf(Math.min(x + dx, ip.getWidth() - 1), Math.min(y + dy, ip.getHeight() - 1));
+			}
+		}
+		return sum / 4;
+	}
+
+
+	/**
+	 * Halves the size of a plane by averaging 2x2 blocks of pixels. Tiles are computed in parallel.
+	 *
+	 * @param ip The plane.
+	 *
+	 * @return The downsampled plane.
+	 */
+	static ImageProcessor downsample(ImageProcessor ip) {
+		int width = Math.max(ip.getWidth() / 2, 1);
+		int height = Math.max(ip.getHeight() / 2, 1);
+		ImageProcessor result = ip.createProcessor(width, height);
+		boolean rgb = ip instanceof ColorProcessor;
+		// Integer values are rounded instead of truncated
+		float offset = ip instanceof FloatProcessor ? 0.0f : 0.5f;
+		int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		IntStream.range(0, tilesX * tilesY).parallel().forEach(tile -> {
+			int x0 = tile % tilesX * TILE_SIZE;
+			int y0 = tile / tilesX * TILE_SIZE;
+			for (int y = y0; y < Math.min(y0 + TILE_SIZE, height); y++) {
+				for (int x = x0; x < Math.min(x0 + TILE_SIZE, width); x++) {
+					if (rgb) {
+						result.set(x, y, averageRGB(ip, 2 * x, 2 * y));
+					} else {
+						result.setf(x, y, average(ip, 2 * x, 2 * y) + offset);
+					}
+				}
+			}
+		});
+		return result;
+	}
+
+
+	/**
+	 * Returns the planes of an image in the order they are written (XYCZT).
+	 *
+	 * @param imp The image.
+	 *
+	 * @return See above.
+	 */
+	private static ImageProcessor[] getPlanes(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		int sizeC = imp.getNChannels();
+		int sizeZ = imp.getNSlices();
+		int sizeT = imp.getNFrames();
+		ImageProcessor[] planes = new ImageProcessor[sizeC * sizeZ * sizeT];
+		for (int t = 0; t < sizeT; t++) {
+			for (int z = 0; z < sizeZ; z++) {
+				for (int c = 0; c < sizeC; c++) {
+					int plane = c + sizeC * (z + sizeZ * t);
+					planes[plane] = stack.getProcessor(imp.getStackIndex(c + 1, z + 1, t + 1));
+				}
+			}
+		}
+		return planes;
+	}
+
+
+	/**
+	 * Writes a plane tile by tile.
+	 *
+	 * @param writer The writer.
+	 * @param plane  The plane index.
+	 * @param ip     The plane.
+	 * @param tileX  The tile width.
+	 * @param tileY  The tile height.
+	 *
+	 * @throws FormatException If the tiles could not be written.
+	 * @throws IOException     If the file could not be written.
+	 */
+	private static void saveTiles(OMETiffWriter writer, int plane, ImageProcessor ip, int tileX, int tileY)
+	throws FormatException, IOException {
+		for (int y = 0; y < ip.getHeight(); y += tileY) {
+			for (int x = 0; x < ip.getWidth(); x += tileX) {
+				int width = Math.min(tileX, ip.getWidth() - x);
+				int height = Math.min(tileY, ip.getHeight() - y);
+				ip.setRoi(x, y, width, height);
+				writer.saveBytes(plane, getBytes(ip.crop()), x, y, width, height);
+			}
+		}
+		ip.resetRoi();
+	}
+
+
+	/**
+	 * Saves an image as OME-TIFF.
+	 *
+	 * @param imp  The image.
+	 * @param path The path to the file (should end with ".ome.tif").
+	 *
+	 * @throws IOException If the file could not be written.
+	 */
+	public void save(ImagePlus imp, String path) throws IOException {
+		// Bio-Formats writers append to existing files
+		Files.deleteIfExists(Paths.get(path));
+		try (OMETiffWriter writer = new OMETiffWriter()) {
+			IMetadata meta = createMetadata(imp);
+			int resolutions = pyramidal ? getResolutionCount(imp.getWidth(), imp.getHeight()) : 1;
+			addResolutions(meta, imp.getWidth(), imp.getHeight(), resolutions);
+			// Sub-resolutions add up to a third of the full resolution
+			double size = pyramidal ? imp.getSizeInBytes() * 4 / 3 : imp.getSizeInBytes();
+			writer.setMetadataRetrieve(meta);
+			writer.setCompression(compression.getCodec());
+			writer.setInterleaved(imp.getType() == ImagePlus.COLOR_RGB);
+			writer.setBigTiff(size > BIG_TIFF_THRESHOLD);
+			int tileX = pyramidal ? writer.setTileSizeX(TILE_SIZE) : imp.getWidth();
+			int tileY = pyramidal ? writer.setTileSizeY(TILE_SIZE) : imp.getHeight();
+			writer.setId(path);
+
+			ImageProcessor[] planes = getPlanes(imp);
+			for (int r = 0; r < resolutions; r++) {
+				if (r > 0) {
+					writer.setResolution(r);
+					for (int i = 0; i < planes.length; i++) {
+						planes[i] = downsample(planes[i]);
+					}
+				}
+				for (int i = 0; i < planes.length; i++) {
+					if (pyramidal) {
+						saveTiles(writer, i, planes[i], tileX, tileY);
+					} else {
+						writer.saveBytes(i, getBytes(planes[i]));
+					}
+				}
+			}
+		} catch (FormatException | DependencyException | ServiceException e) {
+			throw new IOException("Could not write OME-TIFF: " + e.getMessage(), e);
+		}
+	}
+
+}
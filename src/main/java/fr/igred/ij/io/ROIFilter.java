@@ -0,0 +1,344 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.roi.ROIWrapper;
+import omero.RLong;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.ROIData;
+import omero.model.IObject;
+import omero.sys.ParametersI;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static omero.rtypes.unwrap;
+
+
+/**
+ * Filters applied on the OMERO server when ROIs are loaded, so that only the relevant shapes are transferred.
+ * <p>Filters are written as space-separated {@code key=value} pairs:</p>
+ * <ul>
+ *     <li>{@code owner=me} or {@code owner=<user ID>}: ROIs owned by this user</li>
+ *     <li>{@code name=<pattern>}: ROIs whose name or comment matches the pattern ({@code *} matches anything)</li>
+ *     <li>{@code shape=<types>}: shapes of these types, separated by commas (e.g. {@code Polygon,Ellipse})</li>
+ *     <li>{@code z=<plane>} and {@code t=<frame>}: shapes on this plane or frame (starting at 1),
+ *     including shapes on all planes or frames</li>
+ * </ul>
+ * ROIs are retrieved by pages.
+ */
+public class ROIFilter {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The number of ROIs retrieved at once. */
+	private static final int PAGE_SIZE = 500;
+
+	/** The value used to select the current user. */
+	private static final String ME = "me";
+
+	/** The shape types on OMERO. */
+	private static final List<String> SHAPE_TYPES = Collections.unmodifiableList(Arrays.asList(
+			"Rectangle", "Ellipse", "Line", "Polyline", "Polygon", "Point", "Label", "Mask"));
+
+	/** The shape types to load (all if empty). */
+	private final Set<String> shapeTypes = new LinkedHashSet<>(0);
+
+	/** Whether only the current user's ROIs are loaded. */
+	private boolean mine = false;
+
+	/** The owner ID, or -1 for any owner. */
+	private long ownerId = -1L;
+
+	/** The name or comment pattern, or null. */
+	private String namePattern;
+
+	/** The Z plane (starting at 1), or 0 for any. */
+	private int z = 0;
+
+	/** The time frame (starting at 1), or 0 for any. */
+	private int t = 0;
+
+
+	/**
+	 * Creates a filter which loads all ROIs.
+	 */
+	public ROIFilter() {
+	}
+
+
+	/**
+	 * Parses a filter written as space-separated {@code key=value} pairs.
+	 * <p>Unknown keys and invalid values are ignored.</p>
+	 *
+	 * @param text The filter.
+	 *
+	 * @return See above.
+	 */
+	public static ROIFilter parse(String text) {
+		ROIFilter filter = new ROIFilter();
+		String trimmed = text == null ? "" : text.trim();
+		for (String token : trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+")) {
+			String[] pair = token.split("=", 2);
+			String key = pair[0].toLowerCase(Locale.ROOT);
+			String value = pair.length > 1 ? pair[1] : "";
+			try {
+				switch (key) {
+					case "owner":
+						filter.mine = ME.equalsIgnoreCase(value);
+						filter.ownerId = filter.mine ? -1L : Long.parseLong(value);
+						break;
+					case "name":
+						filter.namePattern = value.isEmpty() ? null : value;
+						break;
+					case "shape":
+						for (String type : value.split(",")) {
+							SHAPE_TYPES.stream().filter(type::equalsIgnoreCase).forEach(filter.shapeTypes::add);
+						}
+						break;
+					case "z":
+						filter.z = Math.max(Integer.parseInt(value), 0);
+						break;
+					case "t":
+						filter.t = Math.max(Integer.parseInt(value), 0);
+						break;
+					default:
+						LOGGER.warning("Unknown ROI filter: " + token);
+				}
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Invalid ROI filter: " + token);
+			}
+		}
+		return filter;
+	}
+
+
+	/**
+	 * Checks whether this filter loads all ROIs.
+	 *
+	 * @return See above.
+	 */
+	public boolean isEmpty() {
+		return !mine && ownerId < 0 && namePattern == null && shapeTypes.isEmpty() && z == 0 && t == 0;
+	}
+
+
+	/**
+	 * Checks whether this filter selects shapes, in which case the ROIs it loads may lack some of their shapes.
+	 *
+	 * @return See above.
+	 */
+	public boolean hasShapeConditions() {
+		return !shapeTypes.isEmpty() || z > 0 || t > 0;
+	}
+
+
+	/**
+	 * Returns a copy of this filter without the conditions on shapes, which loads whole ROIs.
+	 *
+	 * @return See above.
+	 */
+	public ROIFilter withoutShapeConditions() {
+		ROIFilter filter = new ROIFilter();
+		filter.mine = mine;
+		filter.ownerId = ownerId;
+		filter.namePattern = namePattern;
+		return filter;
+	}
+
+
+	/**
+	 * Builds the query conditions and sets the corresponding parameters.
+	 *
+	 * @param client The OMERO client.
+	 * @param params The query parameters.
+	 *
+	 * @return The conditions on the ROI (alias {@code roi}) and its shapes (alias {@code shape}).
+	 */
+	private String getConditions(Client client, ParametersI params) {
+		StringBuilder conditions = new StringBuilder(128);
+		long owner = mine ? client.getId() : ownerId;
+		if (owner >= 0) {
+			conditions.append(" and roi.details.owner.id = :owner");
+			params.addLong("owner", owner);
+		}
+		if (namePattern != null) {
+			conditions.append(" and (lower(roi.name) like :name or lower(roi.description) like :name)");
+			String pattern = namePattern.toLowerCase(Locale.ROOT).replace('*', '%');
+			params.addString("name", pattern);
+		}
+		if (!shapeTypes.isEmpty()) {
+			// Types are checked against SHAPE_TYPES when parsed
+			conditions.append(" and shape.class in (").append(String.join(", ", shapeTypes)).append(")");
+		}
+		if (z > 0) {
+			// Shapes without Z (or T) are displayed on every plane (or frame)
+			conditions.append(" and (shape.theZ = :z or shape.theZ is null)");
+			params.addInteger("z", z - 1);
+		}
+		if (t > 0) {
+			conditions.append(" and (shape.theT = :t or shape.theT is null)");
+			params.addInteger("t", t - 1);
+		}
+		return conditions.toString();
+	}
+
+
+	/**
+	 * Loads the ROIs of an image matching this filter, with the matching shapes only.
+	 *
+	 * @param client  The OMERO client.
+	 * @param imageId The image ID.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException If the connection is lost.
+	 * @throws ServerError             If the query fails on the server.
+	 */
+	public List<ROIWrapper> load(Client client, long imageId) throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = client.getGateway().getQueryService(client.getCtx());
+
+		ParametersI idParams = new ParametersI();
+		idParams.addLong("image", imageId);
+		String conditions = getConditions(client, idParams);
+		String idQuery = "select distinct roi.id from Roi as roi join roi.shapes as shape" +
+						 " where roi.image.id = :image" + conditions +
+						 " order by roi.id";
+
+		List<ROIWrapper> rois = new ArrayList<>(0);
+		int offset = 0;
+		List<Long> ids;
+		do {
+			idParams.page(offset, PAGE_SIZE);
+			ids = qs.projection(idQuery, idParams)
+					.stream()
+					.map(row -> row.get(0))
+					.filter(RLong.class::isInstance)
+					.map(id -> ((RLong) id).getValue())
+					.collect(Collectors.toList());
+			if (!ids.isEmpty()) {
+				rois.addAll(loadPage(client, qs, ids));
+			}
+			offset += PAGE_SIZE;
+		} while (ids.size() == PAGE_SIZE);
+		return rois;
+	}
+
+
+	/**
+	 * Returns a string which changes when the ROIs of an image matching this filter are added, removed or modified:
+	 * the number of ROIs and shapes, and their last update events.
+	 *
+	 * @param client  The OMERO client.
+	 * @param imageId The image ID.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException If the connection is lost.
+	 * @throws ServerError             If the query fails on the server.
+	 */
+	public String getState(Client client, long imageId) throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = client.getGateway().getQueryService(client.getCtx());
+		ParametersI params = new ParametersI();
+		params.addLong("image", imageId);
+		String query = "select count(distinct roi.id), count(shape.id)," +
+					   " max(roi.details.updateEvent.id), max(shape.details.updateEvent.id)" +
+					   " from Roi as roi join roi.shapes as shape" +
+					   " where roi.image.id = :image" + getConditions(client, params);
+		List<String> values = new ArrayList<>(4);
+		for (List<RType> row : qs.projection(query, params)) {
+			row.forEach(value -> values.add(String.valueOf(unwrap(value))));
+		}
+		return String.join(":", values);
+	}
+
+
+	/**
+	 * Loads a page of ROIs, with the shapes matching this filter.
+	 *
+	 * @param client The OMERO client.
+	 * @param qs     The query service.
+	 * @param ids    The ROI IDs.
+	 *
+	 * @return See above.
+	 *
+	 * @throws ServerError If the query fails on the server.
+	 */
+	private List<ROIWrapper> loadPage(Client client, IQueryPrx qs, Collection<Long> ids) throws ServerError {
+		ParametersI params = new ParametersI();
+		params.addIds(ids);
+		String query = "select distinct roi from Roi as roi join fetch roi.shapes as shape" +
+					   " left outer join fetch shape.transform" +
+					   " join fetch roi.details.owner" +
+					   " where roi.id in (:ids)" + getConditions(client, params);
+		List<IObject> results = qs.findAllByQuery(query, params);
+		List<ROIWrapper> rois = new ArrayList<>(results.size());
+		for (IObject result : results) {
+			try {
+				rois.add(new ROIWrapper(new ROIData((omero.model.Roi) result)));
+			} catch (RuntimeException e) {
+				LOGGER.warning("Could not read ROI " + unwrap(result.getId()) + ": " + e.getMessage());
+			}
+		}
+		return rois;
+	}
+
+
+	/**
+	 * Returns this filter as space-separated {@code key=value} pairs.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public String toString() {
+		List<String> tokens = new ArrayList<>(5);
+		if (mine) {
+			tokens.add("owner=" + ME);
+		} else if (ownerId >= 0) {
+			tokens.add("owner=" + ownerId);
+		}
+		if (namePattern != null) {
+			tokens.add("name=" + namePattern);
+		}
+		if (!shapeTypes.isEmpty()) {
+			tokens.add("shape=" + String.join(",", shapeTypes));
+		}
+		if (z > 0) {
+			tokens.add("z=" + z);
+		}
+		if (t > 0) {
+			tokens.add("t=" + t);
+		}
+		return String.join(" ", tokens);
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.repository.ImageWrapper;
+import fr.igred.omero.roi.ROIWrapper;
+import ij.gui.Roi;
+import ij.gui.TextRoi;
+import ij.process.FloatPolygon;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+
+/**
+ * Synchronizes ImageJ ROIs with the ROIs of an image on OMERO, using the ROI IDs carried by the ImageJ ROIs loaded
+ * from OMERO.
+ * <p>New ROIs are uploaded, owned ROIs which were removed are deleted, and owned ROIs whose shapes changed are
+ * replaced. Unchanged ROIs are left untouched. Changed ROIs are uploaded first, and the ROIs they replace are only
+ * deleted if they were uploaded.</p>
+ * <p>The remote ROIs should contain all their shapes: a ROI loaded with only some of its shapes would otherwise be
+ * replaced by these shapes.</p>
+ */
+public class ROISynchronizer {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The OMERO client. */
+	private final Client client;
+
+	/** The uploader used for new and changed ROIs. */
+	private final ROIUploader uploader;
+
+
+	/**
+	 * Creates a new synchronizer.
+	 *
+	 * @param client   The OMERO client.
+	 * @param uploader The uploader used for new and changed ROIs.
+	 */
+	public ROISynchronizer(Client client, ROIUploader uploader) {
+		this.client = client;
+		this.uploader = uploader;
+	}
+
+
+	/**
+	 * Returns a string describing the geometry, position, name and text of an ImageJ ROI.
+	 *
+	 * @param roi The ROI.
+	 *
+	 * @return See above.
+	 */
+	private static String getSignature(Roi roi) {
+		StringBuilder signature = new StringBuilder(64);
+		signature.append(roi.getType())
+				 .append('|').append(roi.getCPosition())
+				 .append(',').append(roi.getZPosition())
+				 .append(',').append(roi.getTPosition())
+				 .append('|').append(roi.getName());
+		if (roi instanceof TextRoi) {
+			signature.append('|').append(((TextRoi) roi).getText());
+		}
+		FloatPolygon polygon = roi.getFloatPolygon();
+		for (int i = 0; i < polygon.npoints; i++) {
+			signature.append(format(Locale.ROOT, "|%.2f,%.2f", polygon.xpoints[i], polygon.ypoints[i]));
+		}
+		return signature.toString();
+	}
+
+
+	/**
+	 * Returns the sorted signatures of a group of ImageJ ROIs.
+	 *
+	 * @param rois The ROIs.
+	 *
+	 * @return See above.
+	 */
+	private static List<String> getSignatures(Collection<? extends Roi> rois) {
+		List<String> signatures = new ArrayList<>(rois.size());
+		for (Roi roi : rois) {
+			signatures.add(getSignature(roi));
+		}
+		Collections.sort(signatures);
+		return signatures;
+	}
+
+
+	/**
+	 * Retrieves the OMERO ROI ID carried by an ImageJ ROI.
+	 *
+	 * @param roi      The ImageJ ROI.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 *
+	 * @return See above, or null if the ROI does not come from OMERO.
+	 */
+	private static Long getId(Roi roi, String property) {
+		String value = roi.getProperty(ROIWrapper.ijIDProperty(property));
+		Long id = null;
+		if (value != null) {
+			try {
+				id = Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				LOGGER.fine("Invalid ROI ID: " + value);
+			}
+		}
+		return id;
+	}
+
+
+	/**
+	 * Synchronizes ImageJ ROIs with the ROIs of an image on OMERO.
+	 *
+	 * @param image    The image on OMERO.
+	 * @param ijRois   The ImageJ ROIs.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 * @param remote   The ROIs currently on OMERO, which can be updated or deleted.
+	 *
+	 * @return A summary of the changes.
+	 *
+	 * @throws AccessException      Cannot access data.
+	 * @throws ServiceException     Cannot connect to OMERO.
+	 * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+	 * @throws OMEROServerError     Server error.
+	 * @throws InterruptedException If the current thread was interrupted.
+	 */
+	public String sync(ImageWrapper image, Collection<? extends Roi> ijRois, String property,
+					   Collection<? extends ROIWrapper> remote)
+	throws AccessException, ServiceException, ExecutionException, OMEROServerError, InterruptedException {
+		Map<Long, List<Roi>> local = new LinkedHashMap<>(ijRois.size());
+		List<Roi> toUpload = new ArrayList<>(0);
+		for (Roi roi : ijRois) {
+			Long id = getId(roi, property);
+			if (id != null) {
+				local.computeIfAbsent(id, k -> new ArrayList<>(1)).add(roi);
+			} else {
+				toUpload.add(roi);
+			}
+		}
+		int added = toUpload.size();
+
+		Map<Long, ROIWrapper> server = new HashMap<>(remote.size());
+		remote.forEach(roi -> server.put(roi.getId(), roi));
+
+		List<ROIWrapper> toDelete = new ArrayList<>(0);
+		Map<ROIWrapper, List<Roi>> toReplace = new LinkedHashMap<>(0);
+		int changed = 0;
+		int unchanged = 0;
+		int deleted = 0;
+		for (ROIWrapper roi : remote) {
+			boolean owned = roi.getOwner().getId() == client.getId();
+			List<Roi> shapes = local.get(roi.getId());
+			if (shapes == null && owned) {
+				toDelete.add(roi);
+				deleted++;
+			} else if (shapes != null) {
+				List<Roi> current = ROIWrapper.toImageJ(Collections.singletonList(roi));
+				if (!getSignatures(current).equals(getSignatures(shapes))) {
+					// Changed ROIs are replaced, other users' ROIs are copied
+					if (owned) {
+						toReplace.put(roi, shapes);
+					}
+					toUpload.addAll(shapes);
+					changed++;
+				} else {
+					unchanged++;
+				}
+			}
+		}
+		// ROIs coming from another image or not loaded with the current filter
+		for (Map.Entry<Long, List<Roi>> entry : local.entrySet()) {
+			if (!server.containsKey(entry.getKey())) {
+				toUpload.addAll(entry.getValue());
+				added++;
+			}
+		}
+
+		List<Roi> failed = toUpload.isEmpty() ? new ArrayList<>(0) : uploader.uploadOrReturn(image, toUpload, property);
+		Set<Roi> notUploaded = Collections.newSetFromMap(new IdentityHashMap<>(failed.size()));
+		notUploaded.addAll(failed);
+		for (Map.Entry<ROIWrapper, List<Roi>> entry : toReplace.entrySet()) {
+			if (entry.getValue().stream().noneMatch(notUploaded::contains)) {
+				toDelete.add(entry.getKey());
+			}
+		}
+		if (!toDelete.isEmpty()) {
+			client.delete(toDelete);
+		}
+		String summary = format("%d added, %d changed, %d deleted, %d unchanged",
+								added, changed, deleted, unchanged);
+		if (!failed.isEmpty()) {
+			summary += format(" (%d ROI(s) could not be uploaded)", failed.size());
+		}
+		return summary;
+	}
+
+}
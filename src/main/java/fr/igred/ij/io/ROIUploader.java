@@ -0,0 +1,410 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.repository.ImageWrapper;
+import fr.igred.omero.roi.ROIWrapper;
+import ij.gui.Roi;
+import omero.RLong;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.sys.ParametersI;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+
+/**
+ * Saves large sets of ImageJ ROIs to OMERO: ROIs are converted in parallel and uploaded in chunks, concurrently if
+ * several sessions are available, and each chunk is retried if it fails.
+ * <p>A failed upload may still have been saved on the server, so a chunk is only retried once the number of ROIs on
+ * the image shows that nothing was saved.</p>
+ */
+public class ROIUploader {
+
+	/** The default number of ROIs per chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The maximum number of attempts to upload a chunk. */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** The delay before the first retry, in milliseconds (doubled for each retry). */
+	private static final long RETRY_DELAY = 1000L;
+
+	/** The client used if there is no session pool. */
+	private final Client client;
+
+	/** The sessions used to upload chunks concurrently, or null. */
+	private final SessionPool sessions;
+
+	/** The executor running concurrent uploads, or null. */
+	private final ExecutorService executor;
+
+	/** The maximum number of ROIs per chunk. */
+	private final int chunkSize;
+
+
+	/**
+	 * Creates a new uploader, uploading chunks one after the other.
+	 *
+	 * @param client    The OMERO client.
+	 * @param chunkSize The maximum number of ROIs per chunk.
+	 */
+	public ROIUploader(Client client, int chunkSize) {
+		this(client, null, null, chunkSize);
+	}
+
+
+	/**
+	 * Creates a new uploader, uploading chunks concurrently with the specified sessions.
+	 *
+	 * @param client    The OMERO client, used if there is no session pool.
+	 * @param sessions  The session pool (can be null).
+	 * @param executor  The executor running the uploads (can be null).
+	 * @param chunkSize The maximum number of ROIs per chunk.
+	 */
+	public ROIUploader(Client client, SessionPool sessions, ExecutorService executor, int chunkSize) {
+		this.client = client;
+		this.sessions = sessions;
+		this.executor = executor;
+		this.chunkSize = Math.max(chunkSize, 1);
+	}
+
+
+	/**
+	 * Splits ROIs in chunks, keeping the ROIs which form a single OMERO ROI (same property value) in the same chunk.
+	 *
+	 * @param ijRois    The ImageJ ROIs.
+	 * @param property  The ROI property used to group shapes on OMERO.
+	 * @param chunkSize The maximum number of ROIs per chunk (exceeded only by larger groups).
+	 *
+	 * @return See above.
+	 */
+	public static List<List<Roi>> split(Collection<? extends Roi> ijRois, String property, int chunkSize) {
+		Map<String, List<Roi>> groups = new LinkedHashMap<>(ijRois.size());
+		int ungrouped = 0;
+		for (Roi roi : ijRois) {
+			String value = roi.getProperty(property);
+			String key = value != null ? "p:" + value : "u:" + ungrouped++;
+			groups.computeIfAbsent(key, k -> new ArrayList<>(1)).add(roi);
+		}
+
+		List<List<Roi>> chunks = new ArrayList<>(ijRois.size() / Math.max(chunkSize, 1) + 1);
+		List<Roi> chunk = new ArrayList<>(chunkSize);
+		for (List<Roi> group : groups.values()) {
+			if (!chunk.isEmpty() && chunk.size() + group.size() > chunkSize) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>(chunkSize);
+			}
+			chunk.addAll(group);
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+
+	/**
+	 * Converts chunks of ImageJ ROIs to OMERO ROIs in parallel.
+	 *
+	 * @param chunks   The chunks of ImageJ ROIs.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 *
+	 * @return The chunks of OMERO ROIs.
+	 */
+	public static List<List<ROIWrapper>> convert(List<? extends List<Roi>> chunks, String property) {
+		return chunks.parallelStream()
+					 .map(chunk -> ROIWrapper.fromImageJ(chunk, property))
+					 .collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Counts the ROIs of an image on OMERO.
+	 *
+	 * @param session The OMERO client.
+	 * @param image   The image on OMERO.
+	 *
+	 * @return See above.
+	 *
+	 * @throws DSOutOfServiceException If the connection is lost.
+	 * @throws ServerError             If the query fails on the server.
+	 */
+	private static long countROIs(Client session, ImageWrapper image) throws DSOutOfServiceException, ServerError {
+		IQueryPrx qs = session.getGateway().getQueryService(session.getCtx());
+		ParametersI params = new ParametersI();
+		params.addLong("image", image.getId());
+		String query = "select count(roi.id) from Roi as roi where roi.image.id = :image";
+		List<List<RType>> rows = qs.projection(query, params);
+		return ((RLong) rows.get(0).get(0)).getValue();
+	}
+
+
+	/**
+	 * Uploads a chunk, retrying with an increasing delay if it fails and nothing was saved.
+	 *
+	 * @param session The OMERO client.
+	 * @param upload  The ongoing upload to the image.
+	 * @param chunk   The OMERO ROIs.
+	 *
+	 * @return True if the chunk was uploaded.
+	 *
+	 * @throws InterruptedException If the current thread was interrupted.
+	 */
+	private static boolean saveChunk(Client session, ImageUpload upload, Collection<? extends ROIWrapper> chunk)
+	throws InterruptedException {
+		boolean uploaded = false;
+		boolean retry = true;
+		long delay = RETRY_DELAY;
+		for (int attempt = 1; !uploaded && retry && attempt <= MAX_ATTEMPTS; attempt++) {
+			upload.lock.readLock().lock();
+			try {
+				upload.image.saveROIs(session, chunk);
+				upload.saved.addAndGet(chunk.size());
+				uploaded = true;
+			} catch (ServiceException | AccessException | ExecutionException e) {
+				LOGGER.warning(String.format("Could not upload %d ROIs (attempt %d/%d): %s",
+											 chunk.size(), attempt, MAX_ATTEMPTS, e.getMessage()));
+				upload.unresolved.incrementAndGet();
+			} finally {
+				upload.lock.readLock().unlock();
+			}
+			if (!uploaded) {
+				Outcome outcome = upload.verify(session, chunk.size());
+				uploaded = outcome == Outcome.SAVED;
+				retry = outcome == Outcome.NOT_SAVED;
+				if (outcome == Outcome.UNKNOWN) {
+					LOGGER.warning(String.format("%d ROIs may have been partly saved: they are not uploaded again",
+												 chunk.size()));
+				} else if (retry && attempt < MAX_ATTEMPTS) {
+					Thread.sleep(delay);
+					delay *= 2;
+				}
+			}
+		}
+		return uploaded;
+	}
+
+
+	/**
+	 * Converts and uploads ROIs to an image on OMERO.
+	 *
+	 * @param image    The image on OMERO.
+	 * @param ijRois   The ImageJ ROIs.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 *
+	 * @return The number of chunks which could not be uploaded.
+	 *
+	 * @throws InterruptedException If the current thread was interrupted while waiting for the uploads.
+	 */
+	public int upload(ImageWrapper image, Collection<? extends Roi> ijRois, String property)
+	throws InterruptedException {
+		List<List<Roi>> chunks = split(ijRois, property, chunkSize);
+		List<Boolean> uploaded = save(image, convert(chunks, property));
+		return (int) uploaded.stream().filter(done -> !done).count();
+	}
+
+
+	/**
+	 * Converts and uploads ROIs to an image on OMERO, and returns the ROIs which could not be uploaded.
+	 *
+	 * @param image    The image on OMERO.
+	 * @param ijRois   The ImageJ ROIs.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 *
+	 * @return The ImageJ ROIs from the chunks which could not be uploaded.
+	 *
+	 * @throws InterruptedException If the current thread was interrupted while waiting for the uploads.
+	 */
+	public List<Roi> uploadOrReturn(ImageWrapper image, Collection<? extends Roi> ijRois, String property)
+	throws InterruptedException {
+		List<List<Roi>> chunks = split(ijRois, property, chunkSize);
+		List<Boolean> uploaded = save(image, convert(chunks, property));
+		List<Roi> failed = new ArrayList<>(0);
+		for (int i = 0; i < chunks.size(); i++) {
+			if (!uploaded.get(i)) {
+				failed.addAll(chunks.get(i));
+			}
+		}
+		return failed;
+	}
+
+
+	/**
+	 * Uploads chunks of ROIs, concurrently if possible.
+	 *
+	 * @param image  The image on OMERO.
+	 * @param chunks The chunks of OMERO ROIs.
+	 *
+	 * @return Whether each chunk was uploaded.
+	 *
+	 * @throws InterruptedException If the current thread was interrupted while waiting for the uploads.
+	 */
+	private List<Boolean> save(ImageWrapper image, List<? extends List<ROIWrapper>> chunks)
+	throws InterruptedException {
+		List<Boolean> uploaded = new ArrayList<>(chunks.size());
+		ImageUpload imageUpload = chunks.isEmpty() ? null : new ImageUpload(client, image);
+		if (executor != null && sessions != null && chunks.size() > 1) {
+			List<Future<Boolean>> uploads = new ArrayList<>(chunks.size());
+			for (List<ROIWrapper> chunk : chunks) {
+				uploads.add(executor.submit(() -> uploadWithSession(imageUpload, chunk)));
+			}
+			for (Future<Boolean> upload : uploads) {
+				try {
+					uploaded.add(upload.get());
+				} catch (ExecutionException e) {
+					LOGGER.warning("ROI upload failed: " + e.getMessage());
+					uploaded.add(false);
+				}
+			}
+		} else {
+			for (List<ROIWrapper> chunk : chunks) {
+				uploaded.add(saveChunk(client, imageUpload, chunk));
+			}
+		}
+		return uploaded;
+	}
+
+
+	/**
+	 * Uploads a chunk with a session borrowed from the pool.
+	 *
+	 * @param upload The ongoing upload to the image.
+	 * @param chunk  The OMERO ROIs.
+	 *
+	 * @return True if the chunk was uploaded.
+	 *
+	 * @throws InterruptedException If the current thread was interrupted.
+	 */
+	private boolean uploadWithSession(ImageUpload upload, Collection<? extends ROIWrapper> chunk)
+	throws InterruptedException {
+		Client session = sessions.borrow();
+		try {
+			return saveChunk(session, upload, chunk);
+		} finally {
+			sessions.release(session);
+		}
+	}
+
+
+	/**
+	 * What is known about a chunk after a failed upload.
+	 */
+	private enum Outcome {
+		/** The chunk was saved anyway. */
+		SAVED,
+		/** Nothing was saved: the chunk can be uploaded again. */
+		NOT_SAVED,
+		/** The chunk may have been saved, partly or entirely. */
+		UNKNOWN
+	}
+
+
+	/**
+	 * The chunks being uploaded to an image, and the number of ROIs they saved.
+	 * <p>Uploads hold the read lock; failures are checked one at a time with the write lock, once no upload is
+	 * running, by comparing the number of ROIs on the image with the number expected.</p>
+	 */
+	private static class ImageUpload {
+
+		/** The image on OMERO. */
+		private final ImageWrapper image;
+		/** The lock preventing uploads while a failure is checked. */
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		/** The number of ROIs saved by the successful uploads. */
+		private final AtomicLong saved = new AtomicLong();
+		/** The number of failed uploads which were not checked yet. */
+		private final AtomicInteger unresolved = new AtomicInteger();
+		/** The number of ROIs on the image before the upload, or -1 if it is unknown. */
+		private final long initial;
+
+
+		/**
+		 * Creates a new upload to the specified image.
+		 *
+		 * @param client The OMERO client.
+		 * @param image  The image on OMERO.
+		 */
+		ImageUpload(Client client, ImageWrapper image) {
+			this.image = image;
+			long count = -1L;
+			try {
+				count = countROIs(client, image);
+			} catch (DSOutOfServiceException | ServerError | RuntimeException e) {
+				LOGGER.warning("Could not count ROIs, failed uploads will not be retried: " + e.getMessage());
+			}
+			this.initial = count;
+		}
+
+
+		/**
+		 * Checks whether a failed chunk was saved, from the number of ROIs on the image.
+		 * <p>The extra ROIs can only be attributed to the chunk if no other failure is unresolved.</p>
+		 *
+		 * @param session The OMERO client.
+		 * @param size    The number of ROIs in the chunk.
+		 *
+		 * @return See above.
+		 */
+		Outcome verify(Client session, int size) {
+			Outcome outcome = Outcome.UNKNOWN;
+			lock.writeLock().lock();
+			try {
+				if (initial >= 0) {
+					long extra = countROIs(session, image) - initial - saved.get();
+					if (extra == 0) {
+						outcome = Outcome.NOT_SAVED;
+					} else if (extra == size && unresolved.get() == 1) {
+						saved.addAndGet(size);
+						outcome = Outcome.SAVED;
+					}
+				}
+			} catch (DSOutOfServiceException | ServerError | RuntimeException e) {
+				LOGGER.warning("Could not count ROIs: " + e.getMessage());
+			} finally {
+				unresolved.decrementAndGet();
+				lock.writeLock().unlock();
+			}
+			return outcome;
+		}
+
+	}
+
+}
@@ -0,0 +1,540 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.measure.ResultsTable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * On-disk cache of the results produced by a script on an image.
+ * <p>Entries are keyed by the image content, the script content, its arguments and the ROI mode, so that unchanged
+ * images do not have to be processed again.</p>
+ * <p>The total size of the cache is bounded: the least recently used entries are removed when it is exceeded.</p>
+ */
+public class ResultCache {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The field separator. */
+	private static final String SEPARATOR = "\t";
+
+	/** The characters that cannot be stored in a field. */
+	private static final Pattern FORBIDDEN = Pattern.compile("[\t\r\n]");
+
+	/** The names of the cache entries (SHA-256 checksums), so that other folders are never evicted. */
+	private static final Pattern ENTRY = Pattern.compile("[0-9a-f]{64}");
+
+	/** The name of the manifest file, written last. */
+	private static final String MANIFEST = "manifest.tsv";
+
+	/** The line type for images. */
+	private static final String IMAGE = "I";
+	/** The line type for results tables. */
+	private static final String TABLE = "T";
+	/** The line type for the ROI Manager content. */
+	private static final String ROIS = "R";
+	/** The line type for the log. */
+	private static final String LOG = "L";
+
+	/** The preference holding the cache directory. */
+	private static final String DIRECTORY_PREF = "omero.batch.cachedir";
+	/** The preference holding the maximum cache size, in megabytes. */
+	private static final String SIZE_PREF = "omero.batch.cachesize";
+	/** The default maximum cache size, in megabytes. */
+	private static final int DEFAULT_SIZE = 4096;
+
+	/** The cache directory. */
+	private final File directory;
+	/** The maximum total size of the cache, in bytes. */
+	private final long maxSize;
+
+
+	/**
+	 * Creates a new cache, in the directory and with the maximum size set in the ImageJ preferences.
+	 * <p>By default, the cache is stored in the ImageJ preferences directory.</p>
+	 */
+	public ResultCache() {
+		this(getDefaultDirectory(), Math.max(Prefs.getInt(SIZE_PREF, DEFAULT_SIZE), 0) * 1024L * 1024L);
+	}
+
+
+	/**
+	 * Creates a new cache in the specified directory.
+	 *
+	 * @param directory The cache directory.
+	 * @param maxSize   The maximum total size of the cache, in bytes.
+	 */
+	public ResultCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+
+	/**
+	 * Returns the cache directory set in the ImageJ preferences, or the default one if none is set.
+	 *
+	 * @return See above.
+	 */
+	private static File getDefaultDirectory() {
+		String path = Prefs.get(DIRECTORY_PREF, "");
+		File dir = new File(Prefs.getPrefsDir(), "omero_batch" + File.separator + "results");
+		if (!path.trim().isEmpty()) {
+			dir = new File(path.trim());
+		}
+		return dir;
+	}
+
+
+	/**
+	 * Returns a new SHA-256 digest.
+	 *
+	 * @return See above.
+	 */
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+
+	/**
+	 * Converts bytes to a hexadecimal string.
+	 *
+	 * @param bytes The bytes.
+	 *
+	 * @return See above.
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+
+	/**
+	 * Computes the checksum of a file.
+	 *
+	 * @param path The path to the file.
+	 *
+	 * @return The SHA-256 checksum, as a hexadecimal string.
+	 *
+	 * @throws IOException If the file could not be read.
+	 */
+	public static String checksum(Path path) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[65536];
+		try (InputStream is = Files.newInputStream(path)) {
+			int n = is.read(buffer);
+			while (n >= 0) {
+				digest.update(buffer, 0, n);
+				n = is.read(buffer);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+
+	/**
+	 * Computes the cache key for an image processed by a script.
+	 *
+	 * @param image     The image.
+	 * @param script    The checksum of the script.
+	 * @param arguments The script arguments.
+	 * @param mode      The mode used to load ROIs.
+	 * @param rois      The state of the ROIs loaded from OMERO with the image (empty if none are loaded).
+	 *
+	 * @return The key, or null if the image content cannot be identified.
+	 */
+	public static String getKey(BatchImage image, String script, String arguments, ROIMode mode, String rois) {
+		String fingerprint = image.getFingerprint();
+		String key = null;
+		if (fingerprint != null && rois != null) {
+			MessageDigest digest = sha256();
+			String[] values = {fingerprint, script, arguments, String.valueOf(mode), rois};
+			for (String value : values) {
+				digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+			key = toHex(digest.digest());
+		}
+		return key;
+	}
+
+
+	/**
+	 * Removes the characters that cannot be stored in a field.
+	 *
+	 * @param value The value.
+	 *
+	 * @return See above.
+	 */
+	private static String clean(String value) {
+		return value == null ? "" : FORBIDDEN.matcher(value).replaceAll(" ");
+	}
+
+
+	/**
+	 * Returns the total size of the files in a cache entry.
+	 *
+	 * @param entry The cache entry directory.
+	 *
+	 * @return See above.
+	 */
+	private static long getSize(File entry) {
+		long size = 0L;
+		File[] files = entry.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.length();
+			}
+		}
+		return size;
+	}
+
+
+	/**
+	 * Returns the time a cache entry was last used, from its manifest, or from the directory if it is incomplete.
+	 *
+	 * @param entry The cache entry directory.
+	 *
+	 * @return See above.
+	 */
+	private static long getLastUse(File entry) {
+		File manifest = new File(entry, MANIFEST);
+		return manifest.isFile() ? manifest.lastModified() : entry.lastModified();
+	}
+
+
+	/**
+	 * Deletes a cache entry.
+	 *
+	 * @param entry The cache entry directory.
+	 */
+	private static void delete(File entry) {
+		// The manifest is deleted first, so that the entry is not considered valid if a file cannot be deleted
+		File manifest = new File(entry, MANIFEST);
+		if (manifest.isFile() && !manifest.delete()) {
+			LOGGER.fine("Could not delete " + manifest);
+		}
+		File[] files = entry.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					LOGGER.fine("Could not delete " + file);
+				}
+			}
+		}
+		if (!entry.delete()) {
+			LOGGER.fine("Could not delete " + entry);
+		}
+	}
+
+
+	/**
+	 * Saves ImageJ ROIs to a zip file.
+	 *
+	 * @param ijRois The ROIs.
+	 * @param file   The file.
+	 *
+	 * @throws IOException If the file could not be written.
+	 */
+	private static void saveRois(List<? extends Roi> ijRois, File file) throws IOException {
+		try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())));
+			 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(zos))) {
+			RoiEncoder re = new RoiEncoder(dos);
+			for (int i = 0; i < ijRois.size(); i++) {
+				if (ijRois.get(i) != null) {
+					zos.putNextEntry(new ZipEntry(i + "-" + ijRois.get(i).getName() + ".roi"));
+					re.write(ijRois.get(i));
+					dos.flush();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the results produced by a script to a cache entry. The manifest is written last.
+	 *
+	 * @param entry  The cache entry directory.
+	 * @param input  The input image.
+	 * @param images The images open after the script was run, the current image first.
+	 * @param rois   The ROIs in the ROI Manager.
+	 * @param tables The results tables.
+	 * @param log    The log content.
+	 */
+	private static void write(File entry, ImagePlus input, List<? extends ImagePlus> images,
+							  List<? extends Roi> rois, Collection<? extends ResultsTable> tables, String log) {
+		List<String> lines = new ArrayList<>(images.size() + tables.size() + 2);
+		for (int i = 0; i < images.size(); i++) {
+			ImagePlus imp = images.get(i);
+			String name = "image_" + i + ".tif";
+			String title = imp.getTitle();
+			IJ.saveAsTiff(imp, new File(entry, name).getPath());
+			imp.setTitle(title); // Saving renames the image
+			lines.add(IMAGE + SEPARATOR + name + SEPARATOR + clean(title) + SEPARATOR +
+					  imp.equals(input) + SEPARATOR + clean(imp.getProp("Annotatable")));
+		}
+		int t = 0;
+		for (ResultsTable rt : tables) {
+			String name = "table_" + t++ + ".csv";
+			rt.save(new File(entry, name).getPath());
+			lines.add(TABLE + SEPARATOR + name + SEPARATOR + clean(rt.getTitle()));
+		}
+		try {
+			if (!rois.isEmpty()) {
+				saveRois(rois, new File(entry, "RoiSet.zip"));
+				lines.add(ROIS + SEPARATOR + "RoiSet.zip");
+			}
+			if (log != null) {
+				Files.write(new File(entry, "log.txt").toPath(), log.getBytes(StandardCharsets.UTF_8));
+				lines.add(LOG + SEPARATOR + "log.txt");
+			}
+			Files.write(new File(entry, MANIFEST).toPath(), lines, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			LOGGER.warning("Could not cache results: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Returns the directory for a cache entry.
+	 *
+	 * @param key The cache key.
+	 *
+	 * @return See above.
+	 */
+	private File getEntry(String key) {
+		return new File(directory, key);
+	}
+
+
+	/**
+	 * Checks if results are cached for the specified key.
+	 *
+	 * @param key The cache key.
+	 *
+	 * @return See above.
+	 */
+	public boolean contains(String key) {
+		return key != null && new File(getEntry(key), MANIFEST).isFile();
+	}
+
+
+	/**
+	 * Stores the results produced by a script.
+	 * <p>Nothing is stored if the input image is not open anymore, as it is required to restore the results.</p>
+	 *
+	 * @param key    The cache key.
+	 * @param input  The input image.
+	 * @param images The images open after the script was run, the current image first.
+	 * @param rois   The ROIs in the ROI Manager.
+	 * @param tables The results tables.
+	 * @param log    The log content.
+	 */
+	public void store(String key, ImagePlus input, List<? extends ImagePlus> images,
+					  List<? extends Roi> rois, Collection<? extends ResultsTable> tables, String log) {
+		File entry = getEntry(key);
+		if (!images.contains(input) || !entry.isDirectory() && !entry.mkdirs()) {
+			LOGGER.info("Results could not be cached for " + input.getTitle());
+		} else {
+			write(entry, input, images, rois, tables, log);
+			evict(entry);
+		}
+	}
+
+
+	/**
+	 * Removes the least recently used entries until the cache fits in its maximum size.
+	 *
+	 * @param current The entry that was just written, which is kept.
+	 */
+	private void evict(File current) {
+		File[] entries = directory.listFiles(f -> f.isDirectory() && ENTRY.matcher(f.getName()).matches());
+		if (entries != null) {
+			long[] sizes = new long[entries.length];
+			long total = 0L;
+			Arrays.sort(entries, Comparator.comparingLong(ResultCache::getLastUse));
+			for (int i = 0; i < entries.length; i++) {
+				sizes[i] = getSize(entries[i]);
+				total += sizes[i];
+			}
+			for (int i = 0; i < entries.length && total > maxSize; i++) {
+				if (!entries[i].equals(current)) {
+					delete(entries[i]);
+					total -= sizes[i];
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Loads the results stored for the specified key.
+	 *
+	 * @param key The cache key.
+	 *
+	 * @return The results, or null if they could not be loaded.
+	 */
+	public CachedResult load(String key) {
+		File entry = getEntry(key);
+		CachedResult result = new CachedResult();
+		if (!new File(entry, MANIFEST).setLastModified(System.currentTimeMillis())) {
+			LOGGER.fine("Could not update access time for " + entry);
+		}
+		try {
+			for (String line : Files.readAllLines(new File(entry, MANIFEST).toPath(), StandardCharsets.UTF_8)) {
+				String[] fields = line.split(SEPARATOR, -1);
+				String path = new File(entry, fields[1]).getPath();
+				if (IMAGE.equals(fields[0]) && fields.length == 5) {
+					ImagePlus imp = IJ.openImage(path);
+					if (imp == null) {
+						throw new IOException("Could not open cached image: " + path);
+					}
+					imp.setTitle(fields[2]);
+					if (!fields[4].isEmpty()) {
+						imp.setProp("Annotatable", fields[4]);
+					}
+					result.images.add(imp);
+					if (Boolean.parseBoolean(fields[3])) {
+						result.input = imp;
+					}
+				} else if (TABLE.equals(fields[0]) && fields.length == 3) {
+					result.tables.put(fields[2], ResultsTable.open(path));
+				} else if (ROIS.equals(fields[0])) {
+					result.roiSet = path;
+				} else if (LOG.equals(fields[0])) {
+					result.log = new String(Files.readAllBytes(new File(path).toPath()), StandardCharsets.UTF_8);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warning("Could not load cached results: " + e.getMessage());
+			result.input = null;
+		}
+		if (result.input == null) {
+			result.images.forEach(ImagePlus::close);
+			result = null;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Results restored from the cache.
+	 */
+	public static class CachedResult {
+
+		/** The images, the current image first. */
+		private final List<ImagePlus> images = new ArrayList<>(1);
+		/** The results tables, by title. */
+		private final Map<String, ResultsTable> tables = new LinkedHashMap<>(1);
+		/** The input image. */
+		private ImagePlus input;
+		/** The path to the ROI Manager content, if any. */
+		private String roiSet;
+		/** The log content, if any. */
+		private String log;
+
+
+		/**
+		 * Returns the input image.
+		 *
+		 * @return See above.
+		 */
+		public ImagePlus getInput() {
+			return input;
+		}
+
+
+		/**
+		 * Returns the images, the current image first.
+		 *
+		 * @return See above.
+		 */
+		public List<ImagePlus> getImages() {
+			return Collections.unmodifiableList(images);
+		}
+
+
+		/**
+		 * Returns the results tables, by title.
+		 *
+		 * @return See above.
+		 */
+		public Map<String, ResultsTable> getTables() {
+			return Collections.unmodifiableMap(tables);
+		}
+
+
+		/**
+		 * Returns the path to the ROI set saved from the ROI Manager, or null if there is none.
+		 *
+		 * @return See above.
+		 */
+		public String getRoiSet() {
+			return roiSet;
+		}
+
+
+		/**
+		 * Returns the log content, or null if there is none.
+		 *
+		 * @return See above.
+		 */
+		public String getLog() {
+			return log;
+		}
+
+	}
+
+}
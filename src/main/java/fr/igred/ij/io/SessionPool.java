@@ -0,0 +1,198 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.ServiceException;
+import ij.Prefs;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+
+/**
+ * Pool of OMERO sessions joined from a primary session, used to run transfers concurrently.
+ * <p>Disconnecting a joined client would end the session it shares with the primary client, so joined clients are
+ * never disconnected: when the pool is closed, they are kept aside and reused by the next pool on the same session.
+ * They end with the session, when the primary client disconnects.</p>
+ */
+public class SessionPool implements AutoCloseable {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The default OMERO host. */
+	private static final String DEFAULT_HOST = "localhost";
+	/** The default OMERO port. */
+	private static final int DEFAULT_PORT = 4064;
+
+	/** The joined clients not used by any pool, by session ID. */
+	private static final Map<String, Deque<Client>> IDLE = new HashMap<>(1);
+
+	/** The primary client. */
+	private final Client primary;
+	/** The clients currently available. */
+	private final BlockingQueue<Client> available;
+	/** The clients joined from the primary session. */
+	private final List<Client> joined;
+	/** The shared session ID, or null if no session could be joined. */
+	private final String sessionId;
+
+
+	/**
+	 * Creates a new pool of the specified size, joining the primary session on the last host used to connect.
+	 *
+	 * @param client The primary client.
+	 * @param size   The number of sessions in the pool.
+	 */
+	public SessionPool(Client client, int size) {
+		this(client,
+			 Prefs.get("omero.host", DEFAULT_HOST),
+			 Prefs.getInt("omero.port", DEFAULT_PORT),
+			 size);
+	}
+
+
+	/**
+	 * Creates a new pool of the specified size, joining the primary session on the specified host.
+	 * <p>Clients left by a previous pool on the same session are reused first. If no session can be joined, the pool
+	 * only contains the primary client.</p>
+	 *
+	 * @param client The primary client.
+	 * @param host   The OMERO host.
+	 * @param port   The OMERO port.
+	 * @param size   The number of sessions in the pool.
+	 */
+	public SessionPool(Client client, String host, int port, int size) {
+		this.primary = client;
+		this.available = new LinkedBlockingQueue<>();
+		this.joined = new ArrayList<>(Math.max(size, 0));
+
+		String id = null;
+		try {
+			id = client.getSessionId();
+		} catch (ServiceException e) {
+			LOGGER.warning("Could not retrieve session ID: " + e.getMessage());
+		}
+		this.sessionId = id;
+		long groupId = client.getCurrentGroupId();
+		for (int i = 0; id != null && i < size; i++) {
+			Client session = takeIdle(id);
+			try {
+				if (session == null) {
+					session = new Client();
+					session.connect(host, port, id);
+				}
+				session.switchGroup(groupId);
+				joined.add(session);
+				available.add(session);
+			} catch (ServiceException | ExecutionException e) {
+				LOGGER.warning("Could not join session: " + e.getMessage());
+				id = null;
+			}
+		}
+		if (joined.isEmpty()) {
+			available.add(primary);
+		}
+	}
+
+
+	/**
+	 * Takes a joined client left by a previous pool on the specified session.
+	 *
+	 * @param sessionId The session ID.
+	 *
+	 * @return See above, or null if there is none.
+	 */
+	private static Client takeIdle(String sessionId) {
+		synchronized (IDLE) {
+			Deque<Client> idle = IDLE.get(sessionId);
+			return idle != null ? idle.poll() : null;
+		}
+	}
+
+
+	/**
+	 * Returns the number of sessions in this pool.
+	 *
+	 * @return See above.
+	 */
+	public int size() {
+		return Math.max(joined.size(), 1);
+	}
+
+
+	/**
+	 * Returns the primary client.
+	 *
+	 * @return See above.
+	 */
+	public Client getPrimary() {
+		return primary;
+	}
+
+
+	/**
+	 * Borrows a client from the pool, waiting for one to be available if necessary.
+	 *
+	 * @return A client.
+	 *
+	 * @throws InterruptedException If the current thread was interrupted while waiting.
+	 */
+	public Client borrow() throws InterruptedException {
+		return available.take();
+	}
+
+
+	/**
+	 * Returns a client to the pool.
+	 *
+	 * @param session The client previously borrowed.
+	 */
+	public void release(Client session) {
+		if (session != null) {
+			available.add(session);
+		}
+	}
+
+
+	/**
+	 * Detaches the joined clients from this pool, without ending the shared session: they are kept for the next pool
+	 * on the same session. The primary client is left untouched.
+	 */
+	@Override
+	public void close() {
+		available.clear();
+		if (sessionId != null && !joined.isEmpty()) {
+			synchronized (IDLE) {
+				IDLE.computeIfAbsent(sessionId, k -> new ArrayDeque<>(joined.size())).addAll(joined);
+			}
+		}
+		joined.clear();
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.repository.ImageWrapper;
+import ij.Prefs;
+import omero.ServerError;
+import omero.api.ThumbnailStorePrx;
+import omero.gateway.exception.DSOutOfServiceException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import static omero.rtypes.rint;
+
+
+/**
+ * On-disk LRU cache of OMERO thumbnails, keyed by image ID and update time.
+ * <p>Thumbnails of images whose update time is unknown are not cached, as they could not be invalidated.</p>
+ */
+public class ThumbnailCache {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The default maximum number of thumbnails kept on disk. */
+	private static final int DEFAULT_CAPACITY = 2000;
+
+	/** The thumbnail file extension. */
+	private static final String EXTENSION = ".png";
+
+	/** The cache directory. */
+	private final File directory;
+	/** The maximum number of thumbnails kept on disk. */
+	private final int capacity;
+
+
+	/**
+	 * Creates a new cache in the ImageJ preferences directory.
+	 */
+	public ThumbnailCache() {
+		this(new File(Prefs.getPrefsDir(), "omero_batch" + File.separator + "thumbnails"), DEFAULT_CAPACITY);
+	}
+
+
+	/**
+	 * Creates a new cache in the specified directory.
+	 *
+	 * @param directory The cache directory.
+	 * @param capacity  The maximum number of thumbnails kept on disk.
+	 */
+	public ThumbnailCache(File directory, int capacity) {
+		this.directory = directory;
+		this.capacity = capacity;
+	}
+
+
+	/**
+	 * Returns the time the image was last updated, or 0 if it is unknown.
+	 *
+	 * @param image The image.
+	 *
+	 * @return See above.
+	 */
+	private static long getUpdateTime(ImageWrapper image) {
+		long time = 0L;
+		try {
+			Timestamp updated = image.asDataObject().getUpdated();
+			if (updated != null) {
+				time = updated.getTime();
+			}
+		} catch (RuntimeException e) {
+			// The update event was not loaded with the image
+			LOGGER.fine("Unknown update time for image " + image.getId());
+		}
+		return time;
+	}
+
+
+	/**
+	 * Retrieves thumbnails for all the specified pixels in a single request.
+	 *
+	 * @param client    The OMERO client.
+	 * @param pixelsIds The pixels IDs.
+	 * @param size      The thumbnail longest side.
+	 *
+	 * @return The thumbnails, as encoded images, mapped by pixels ID.
+	 *
+	 * @throws DSOutOfServiceException The thumbnail service could not be retrieved.
+	 * @throws ServerError             The server could not generate the thumbnails.
+	 */
+	private static Map<Long, byte[]> fetch(Client client, List<Long> pixelsIds, int size)
+	throws DSOutOfServiceException, ServerError {
+		ThumbnailStorePrx store = client.getGateway().getThumbnailService(client.getCtx());
+		try {
+			return store.getThumbnailByLongestSideSet(rint(size), pixelsIds);
+		} finally {
+			store.close();
+		}
+	}
+
+
+	/**
+	 * Retrieves a single thumbnail from OMERO.
+	 *
+	 * @param client The OMERO client.
+	 * @param image  The image.
+	 * @param size   The thumbnail longest side.
+	 *
+	 * @return See above.
+	 */
+	private static BufferedImage retrieve(Client client, ImageWrapper image, int size) {
+		BufferedImage thumbnail = null;
+		try {
+			thumbnail = image.getThumbnail(client, size);
+		} catch (ServiceException | AccessException | OMEROServerError | ExecutionException | IOException e) {
+			LOGGER.warning("Could not retrieve thumbnail: " + e.getMessage());
+		}
+		return thumbnail;
+	}
+
+
+	/**
+	 * Decodes a thumbnail.
+	 *
+	 * @param bytes The encoded thumbnail.
+	 *
+	 * @return The thumbnail, or null if it could not be decoded.
+	 */
+	private static BufferedImage decode(byte[] bytes) {
+		BufferedImage thumbnail = null;
+		if (bytes != null && bytes.length > 0) {
+			try {
+				thumbnail = ImageIO.read(new ByteArrayInputStream(bytes));
+			} catch (IOException e) {
+				LOGGER.warning("Could not decode thumbnail: " + e.getMessage());
+			}
+		}
+		return thumbnail;
+	}
+
+
+	/**
+	 * Reads a thumbnail from the cache and marks it as recently used.
+	 *
+	 * @param file The cache file.
+	 *
+	 * @return The thumbnail, or null if it is not cached.
+	 */
+	private static BufferedImage read(File file) {
+		BufferedImage thumbnail = null;
+		if (file.isFile()) {
+			try {
+				thumbnail = ImageIO.read(file);
+				if (!file.setLastModified(System.currentTimeMillis())) {
+					LOGGER.fine("Could not update access time for " + file);
+				}
+			} catch (IOException e) {
+				LOGGER.warning("Could not read cached thumbnail: " + e.getMessage());
+			}
+		}
+		return thumbnail;
+	}
+
+
+	/**
+	 * Returns the cache file for a thumbnail.
+	 *
+	 * @param image The image.
+	 * @param size  The thumbnail longest side.
+	 *
+	 * @return See above.
+	 */
+	private File getFile(ImageWrapper image, int size) {
+		String name = image.getId() + "_" + getUpdateTime(image) + "_" + size + EXTENSION;
+		return new File(directory, name);
+	}
+
+
+	/**
+	 * Retrieves the thumbnails for the specified images, from the cache when available, or from OMERO otherwise.
+	 * <p>Missing thumbnails are requested in a single batch, then stored in the cache.</p>
+	 *
+	 * @param client The OMERO client.
+	 * @param images The images.
+	 * @param size   The thumbnail longest side.
+	 *
+	 * @return The thumbnails, mapped by image ID.
+	 */
+	public Map<Long, BufferedImage> getThumbnails(Client client, Collection<? extends ImageWrapper> images, int size) {
+		Map<Long, BufferedImage> thumbnails = new HashMap<>(images.size());
+		Map<Long, ImageWrapper> missing = new HashMap<>(images.size());
+		for (ImageWrapper image : images) {
+			BufferedImage thumbnail = getUpdateTime(image) > 0 ? read(getFile(image, size)) : null;
+			if (thumbnail != null) {
+				thumbnails.put(image.getId(), thumbnail);
+			} else {
+				missing.put(image.getPixels().getId(), image);
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			Map<Long, byte[]> fetched = new HashMap<>(0);
+			try {
+				fetched = fetch(client, new ArrayList<>(missing.keySet()), size);
+			} catch (DSOutOfServiceException | ServerError e) {
+				LOGGER.warning("Could not retrieve thumbnails in batch: " + e.getMessage());
+			}
+			for (Map.Entry<Long, ImageWrapper> entry : missing.entrySet()) {
+				ImageWrapper image = entry.getValue();
+				BufferedImage thumbnail = decode(fetched.get(entry.getKey()));
+				if (thumbnail == null) {
+					thumbnail = retrieve(client, image, size);
+				}
+				if (thumbnail != null) {
+					thumbnails.put(image.getId(), thumbnail);
+				}
+				if (thumbnail != null && getUpdateTime(image) > 0) {
+					write(image, size, thumbnail);
+				}
+			}
+			evict();
+		}
+		return thumbnails;
+	}
+
+
+	/**
+	 * Writes a thumbnail to the cache, replacing previous versions for the same image.
+	 *
+	 * @param image     The image.
+	 * @param size      The thumbnail longest side.
+	 * @param thumbnail The thumbnail.
+	 */
+	private void write(ImageWrapper image, int size, BufferedImage thumbnail) {
+		if (directory.isDirectory() || directory.mkdirs()) {
+			String prefix = image.getId() + "_";
+			String suffix = "_" + size + EXTENSION;
+			File[] previous = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+			if (previous != null) {
+				for (File file : previous) {
+					if (!file.delete()) {
+						LOGGER.fine("Could not delete " + file);
+					}
+				}
+			}
+			try {
+				ImageIO.write(thumbnail, "png", getFile(image, size));
+			} catch (IOException e) {
+				LOGGER.warning("Could not cache thumbnail: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Removes the least recently used thumbnails when the cache is over capacity.
+	 */
+	private void evict() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if (files != null && files.length > capacity) {
+			Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+			for (int i = 0; i < files.length - capacity; i++) {
+				if (!files[i].delete()) {
+					LOGGER.fine("Could not delete " + files[i]);
+				}
+			}
+		}
+	}
+
+}
@@ -21,6 +21,24 @@
  *     <li>{@link fr.igred.ij.io.OMEROBatchImage} to manage images from OMERO</li>
  *     <li>{@link fr.igred.ij.io.LocalBatchImage} to manage local images</li>
  * </ul>
- * It also contains {@link fr.igred.ij.io.ROIMode} to handle ROI loading.
+ * It also contains:
+ * <ul>
+ *     <li>{@link fr.igred.ij.io.ROIMode} to handle ROI loading</li>
+ *     <li>{@link fr.igred.ij.io.BatchOrder} to choose the order in which images are processed</li>
+ *     <li>{@link fr.igred.ij.io.SessionPool} to transfer data with several OMERO sessions</li>
+ *     <li>{@link fr.igred.ij.io.ThumbnailCache} to keep OMERO thumbnails on disk</li>
+ *     <li>{@link fr.igred.ij.io.ContainerPager} to list OMERO projects and screens page by page</li>
+ *     <li>{@link fr.igred.ij.io.HierarchyCache} to keep the {@link fr.igred.ij.io.GroupHierarchy} on disk</li>
+ *     <li>{@link fr.igred.ij.io.ResultCache} to reuse the results of previous runs</li>
+ *     <li>{@link fr.igred.ij.io.ColumnarResults} to save results tables in columnar files</li>
+ *     <li>{@link fr.igred.ij.io.ROIUploader} to upload large sets of ROIs to OMERO</li>
+ *     <li>{@link fr.igred.ij.io.ROIFilter} to load only the relevant ROIs from OMERO</li>
+ *     <li>{@link fr.igred.ij.io.ROISynchronizer} to save only the ROIs which changed</li>
+ *     <li>{@link fr.igred.ij.io.BatchImporter} to import images to OMERO in groups</li>
+ *     <li>{@link fr.igred.ij.io.AttachmentArchive} to attach the files of many images at once</li>
+ *     <li>{@link fr.igred.ij.io.KeyValueWriter} to save scalar results as key-value pairs on images</li>
+ *     <li>{@link fr.igred.ij.io.OMETiffExporter} to save compressed or pyramidal images</li>
+ *     <li>{@link fr.igred.ij.io.ImageCompression} to choose how output images are compressed</li>
+ * </ul>
  */
 package fr.igred.ij.io;
\ No newline at end of file
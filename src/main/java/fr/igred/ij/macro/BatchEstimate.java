@@ -0,0 +1,281 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import fr.igred.ij.io.BatchImage;
+import ij.IJ;
+import ij.Prefs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+
+/**
+ * Estimates the cost of a batch from the image metadata, before any pixel is transferred.
+ */
+public class BatchEstimate {
+
+	/** The preference storing the throughput measured during previous runs, in bytes per second. */
+	private static final String THROUGHPUT = "omero.batch.throughput";
+
+	/** The weight of the last measure in the recorded throughput. */
+	private static final double SMOOTHING = 0.3;
+
+	/** The memory required to process an image, relative to its size (scripts usually duplicate images). */
+	static final int MEMORY_FACTOR = 2;
+
+	/** The size units. */
+	private static final String[] UNITS = {"B", "KB", "MB", "GB", "TB"};
+
+	/** The images that will probably not fit in memory. */
+	private final List<String> oversized = new ArrayList<>(0);
+	/** The maximum memory available to ImageJ. */
+	private final long maxMemory;
+	/** The throughput measured during previous runs, in bytes per second. */
+	private final double throughput;
+
+	/** The number of images. */
+	private int imageCount = 0;
+	/** The number of images with an unknown size. */
+	private int unknownCount = 0;
+	/** The total size of the images. */
+	private long totalBytes = 0L;
+	/** The size of the largest image. */
+	private long largestBytes = 0L;
+	/** The name of the largest image. */
+	private String largestName = "";
+
+
+	/**
+	 * Estimates the cost of processing the specified images with the current memory and recorded throughput.
+	 *
+	 * @param images The images, grouped by batch.
+	 */
+	public BatchEstimate(Map<String, ? extends Collection<? extends BatchImage>> images) {
+		this(images, IJ.maxMemory(), Prefs.get(THROUGHPUT, 0.0d));
+	}
+
+
+	/**
+	 * Estimates the cost of processing the specified images.
+	 *
+	 * @param images     The images, grouped by batch.
+	 * @param maxMemory  The maximum memory available, in bytes.
+	 * @param throughput The expected throughput, in bytes per second (0 if unknown).
+	 */
+	public BatchEstimate(Map<String, ? extends Collection<? extends BatchImage>> images,
+						 long maxMemory, double throughput) {
+		this.maxMemory = maxMemory;
+		this.throughput = throughput;
+		for (Collection<? extends BatchImage> batch : images.values()) {
+			for (BatchImage image : batch) {
+				add(image);
+			}
+		}
+	}
+
+
+	/**
+	 * Records the throughput measured during a run, smoothed with the previous measures.
+	 *
+	 * @param bytes  The number of bytes processed.
+	 * @param millis The elapsed time, in milliseconds.
+	 */
+	public static void recordThroughput(long bytes, long millis) {
+		if (bytes > 0 && millis > 0) {
+			double measured = 1000.0d * bytes / millis;
+			double previous = Prefs.get(THROUGHPUT, 0.0d);
+			double smoothed = previous > 0 ? (1 - SMOOTHING) * previous + SMOOTHING * measured : measured;
+			Prefs.set(THROUGHPUT, smoothed);
+		}
+	}
+
+
+	/**
+	 * Formats a size in bytes with the appropriate unit.
+	 *
+	 * @param bytes The size in bytes.
+	 *
+	 * @return See above.
+	 */
+	public static String formatBytes(long bytes) {
+		double value = bytes;
+		int unit = 0;
+		while (value >= 1024 && unit < UNITS.length - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return format(Locale.ROOT, unit == 0 ? "%.0f %s" : "%.1f %s", value, UNITS[unit]);
+	}
+
+
+	/**
+	 * Formats a duration.
+	 *
+	 * @param seconds The duration in seconds.
+	 *
+	 * @return See above.
+	 */
+	private static String formatDuration(long seconds) {
+		String duration;
+		if (seconds < 60) {
+			duration = seconds + " s";
+		} else if (seconds < 3600) {
+			duration = format(Locale.ROOT, "%d min %02d s", seconds / 60, seconds % 60);
+		} else {
+			duration = format(Locale.ROOT, "%d h %02d min", seconds / 3600, seconds % 3600 / 60);
+		}
+		return duration;
+	}
+
+
+	/**
+	 * Adds an image to the estimate.
+	 *
+	 * @param image The image.
+	 */
+	private void add(BatchImage image) {
+		imageCount++;
+		long size = image.getSizeInBytes();
+		if (size < 0) {
+			unknownCount++;
+		} else {
+			totalBytes += size;
+			if (size > largestBytes) {
+				largestBytes = size;
+				largestName = image.getName();
+			}
+			if (size * MEMORY_FACTOR > maxMemory) {
+				oversized.add(image.getName() + " (" + formatBytes(size) + ")");
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the number of images.
+	 *
+	 * @return See above.
+	 */
+	public int getImageCount() {
+		return imageCount;
+	}
+
+
+	/**
+	 * Returns the number of images for which the size could not be estimated.
+	 *
+	 * @return See above.
+	 */
+	public int getUnknownCount() {
+		return unknownCount;
+	}
+
+
+	/**
+	 * Returns the total size of the images, in bytes.
+	 *
+	 * @return See above.
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+
+	/**
+	 * Returns the size of the largest image, in bytes.
+	 *
+	 * @return See above.
+	 */
+	public long getLargestBytes() {
+		return largestBytes;
+	}
+
+
+	/**
+	 * Returns the images which will probably not fit in memory, with their size.
+	 *
+	 * @return See above.
+	 */
+	public List<String> getOversized() {
+		return Collections.unmodifiableList(oversized);
+	}
+
+
+	/**
+	 * Returns whether some images will probably not fit in memory.
+	 *
+	 * @return See above.
+	 */
+	public boolean hasOversized() {
+		return !oversized.isEmpty();
+	}
+
+
+	/**
+	 * Returns the estimated duration, from the throughput measured during previous runs.
+	 *
+	 * @return The duration in seconds, or -1 if it is unknown.
+	 */
+	public long getDuration() {
+		return throughput > 0 ? (long) Math.ceil(totalBytes / throughput) : -1L;
+	}
+
+
+	/**
+	 * Returns a summary of this estimate.
+	 *
+	 * @return See above.
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder(256);
+		report.append(format("Images: %d%n", imageCount));
+		if (unknownCount > 0) {
+			report.append(format("Images of unknown size: %d%n", unknownCount));
+		}
+		report.append(format("Total size: %s%n", formatBytes(totalBytes)));
+		if (largestBytes > 0) {
+			report.append(format("Largest image: %s (%s)%n", largestName, formatBytes(largestBytes)));
+		}
+		report.append(format("Memory available: %s%n", formatBytes(maxMemory)));
+		long duration = getDuration();
+		if (duration >= 0) {
+			report.append(format("Estimated duration: %s%n", formatDuration(duration)));
+		} else {
+			report.append(format("Estimated duration: unknown (no previous run)%n"));
+		}
+		if (!oversized.isEmpty()) {
+			report.append(format("%nThe following images will probably not fit in memory:%n"));
+			int shown = Math.min(oversized.size(), 10);
+			for (String image : oversized.subList(0, shown)) {
+				report.append(format("- %s%n", image));
+			}
+			if (oversized.size() > shown) {
+				report.append(format("+ %d more...%n", oversized.size() - shown));
+			}
+		}
+		return report.toString();
+	}
+
+}
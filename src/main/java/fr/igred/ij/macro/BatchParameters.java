@@ -17,7 +17,11 @@
 package fr.igred.ij.macro;
 
 
+import fr.igred.ij.io.BatchOrder;
+import fr.igred.ij.io.ImageCompression;
+import fr.igred.ij.io.ROIFilter;
 import fr.igred.ij.io.ROIMode;
+import fr.igred.ij.io.ROIUploader;
 
 
 /**
@@ -38,6 +42,23 @@ public class BatchParameters {
 	private long outputScreenId;
 	private String directoryOut;
 	private String suffix;
+	private int sessions;
+	private boolean batchMode;
+	private boolean reuseResults;
+	private BatchOrder order;
+	private int timeout;
+	private int parallelScripts;
+	private boolean columnarResults;
+	private String summaryKey;
+	private int roiChunkSize;
+	private ROIFilter roiFilter;
+	private boolean syncROIs;
+	private ImageCompression compression;
+	private boolean pyramids;
+	private int importBatchSize;
+	private int importInterval;
+	private boolean bundleAttachments;
+	private String keyValueColumns;
 
 
 	/**
@@ -57,6 +78,23 @@ public class BatchParameters {
 		this.outputProjectId = -1L;
 		this.suffix = "";
 		this.directoryOut = null;
+		this.sessions = 1;
+		this.batchMode = false;
+		this.reuseResults = false;
+		this.order = BatchOrder.AS_LISTED;
+		this.timeout = 0;
+		this.parallelScripts = 1;
+		this.columnarResults = false;
+		this.summaryKey = ResultsSummary.NONE;
+		this.roiChunkSize = ROIUploader.DEFAULT_CHUNK_SIZE;
+		this.roiFilter = new ROIFilter();
+		this.syncROIs = false;
+		this.compression = ImageCompression.NONE;
+		this.pyramids = false;
+		this.importBatchSize = 1;
+		this.importInterval = 0;
+		this.bundleAttachments = false;
+		this.keyValueColumns = "";
 	}
 
 
@@ -79,6 +117,23 @@ public class BatchParameters {
 		this.outputScreenId = parameters.outputScreenId;
 		this.suffix = parameters.suffix;
 		this.directoryOut = parameters.directoryOut;
+		this.sessions = parameters.sessions;
+		this.batchMode = parameters.batchMode;
+		this.reuseResults = parameters.reuseResults;
+		this.order = parameters.order;
+		this.timeout = parameters.timeout;
+		this.parallelScripts = parameters.parallelScripts;
+		this.columnarResults = parameters.columnarResults;
+		this.summaryKey = parameters.summaryKey;
+		this.roiChunkSize = parameters.roiChunkSize;
+		this.roiFilter = parameters.roiFilter;
+		this.syncROIs = parameters.syncROIs;
+		this.compression = parameters.compression;
+		this.pyramids = parameters.pyramids;
+		this.importBatchSize = parameters.importBatchSize;
+		this.importInterval = parameters.importInterval;
+		this.bundleAttachments = parameters.bundleAttachments;
+		this.keyValueColumns = parameters.keyValueColumns;
 	}
 
 
@@ -346,4 +401,354 @@ public class BatchParameters {
 		this.saveLog = saveLog;
 	}
 
+
+	/**
+	 * Returns the number of OMERO sessions used for concurrent transfers.
+	 *
+	 * @return See above.
+	 */
+	public int getSessions() {
+		return sessions;
+	}
+
+
+	/**
+	 * Sets the number of OMERO sessions used for concurrent transfers.
+	 *
+	 * @param sessions See above.
+	 */
+	public void setSessions(int sessions) {
+		this.sessions = Math.max(sessions, 1);
+	}
+
+
+	/**
+	 * Returns whether macros should be run in batch mode (without displaying images) or not.
+	 *
+	 * @return See above.
+	 */
+	public boolean isBatchMode() {
+		return batchMode;
+	}
+
+
+	/**
+	 * Sets whether macros should be run in batch mode (without displaying images) or not.
+	 *
+	 * @param batchMode See above.
+	 */
+	public void setBatchMode(boolean batchMode) {
+		this.batchMode = batchMode;
+	}
+
+
+	/**
+	 * Returns whether results cached from previous runs should be reused or not.
+	 *
+	 * @return See above.
+	 */
+	public boolean shouldReuseResults() {
+		return reuseResults;
+	}
+
+
+	/**
+	 * Sets whether results cached from previous runs should be reused or not.
+	 *
+	 * @param reuseResults See above.
+	 */
+	public void setReuseResults(boolean reuseResults) {
+		this.reuseResults = reuseResults;
+	}
+
+
+	/**
+	 * Returns the order in which images are processed.
+	 *
+	 * @return See above.
+	 */
+	public BatchOrder getOrder() {
+		return order;
+	}
+
+
+	/**
+	 * Sets the order in which images are processed.
+	 *
+	 * @param order See above.
+	 */
+	public void setOrder(BatchOrder order) {
+		if (order != null) {
+			this.order = order;
+		}
+	}
+
+
+	/**
+	 * Returns the time limit to process an image, in seconds (0 if there is none).
+	 *
+	 * @return See above.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+
+	/**
+	 * Sets the time limit to process an image, in seconds (0 if there is none).
+	 *
+	 * @param timeout See above.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = Math.max(timeout, 0);
+	}
+
+
+	/**
+	 * Returns whether results tables should also be saved locally in columnar files, one directory per table.
+	 *
+	 * @return See above.
+	 */
+	public boolean shouldSaveColumnarResults() {
+		return columnarResults;
+	}
+
+
+	/**
+	 * Sets whether results tables should also be saved locally in columnar files, one directory per table.
+	 *
+	 * @param columnarResults See above.
+	 */
+	public void setColumnarResults(boolean columnarResults) {
+		this.columnarResults = columnarResults;
+	}
+
+
+	/**
+	 * Returns the key used to group results in the summary table, or {@link ResultsSummary#NONE} if results should
+	 * not be summarized.
+	 *
+	 * @return See above.
+	 */
+	public String getSummaryKey() {
+		return summaryKey;
+	}
+
+
+	/**
+	 * Sets the key used to group results in the summary table: {@link ResultsSummary#BY_INPUT},
+	 * {@link ResultsSummary#BY_IMAGE}, a column heading, or {@link ResultsSummary#NONE}.
+	 *
+	 * @param summaryKey See above.
+	 */
+	public void setSummaryKey(String summaryKey) {
+		this.summaryKey = ResultsSummary.isEnabled(summaryKey) ? summaryKey.trim() : ResultsSummary.NONE;
+	}
+
+
+	/**
+	 * Returns the maximum number of ROIs uploaded to OMERO at once.
+	 *
+	 * @return See above.
+	 */
+	public int getROIChunkSize() {
+		return roiChunkSize;
+	}
+
+
+	/**
+	 * Sets the maximum number of ROIs uploaded to OMERO at once.
+	 *
+	 * @param roiChunkSize See above.
+	 */
+	public void setROIChunkSize(int roiChunkSize) {
+		this.roiChunkSize = Math.max(roiChunkSize, 1);
+	}
+
+
+	/**
+	 * Returns the filter applied when ROIs are loaded from OMERO.
+	 *
+	 * @return See above.
+	 */
+	public ROIFilter getROIFilter() {
+		return roiFilter;
+	}
+
+
+	/**
+	 * Sets the filter applied when ROIs are loaded from OMERO.
+	 *
+	 * @param roiFilter See above.
+	 */
+	public void setROIFilter(ROIFilter roiFilter) {
+		this.roiFilter = roiFilter != null ? roiFilter : new ROIFilter();
+	}
+
+
+	/**
+	 * Returns whether ROIs on OMERO should be synchronized (only changes are saved) instead of uploaded again.
+	 *
+	 * @return See above.
+	 */
+	public boolean shouldSyncROIs() {
+		return syncROIs;
+	}
+
+
+	/**
+	 * Sets whether ROIs on OMERO should be synchronized (only changes are saved) instead of uploaded again.
+	 *
+	 * @param syncROIs See above.
+	 */
+	public void setSyncROIs(boolean syncROIs) {
+		this.syncROIs = syncROIs;
+	}
+
+
+	/**
+	 * Returns the compression of the output images.
+	 *
+	 * @return See above.
+	 */
+	public ImageCompression getCompression() {
+		return compression;
+	}
+
+
+	/**
+	 * Sets the compression of the output images.
+	 *
+	 * @param compression See above.
+	 */
+	public void setCompression(ImageCompression compression) {
+		if (compression != null) {
+			this.compression = compression;
+		}
+	}
+
+
+	/**
+	 * Returns whether output images should be saved as tiled, pyramidal OME-TIFF.
+	 *
+	 * @return See above.
+	 */
+	public boolean shouldSavePyramids() {
+		return pyramids;
+	}
+
+
+	/**
+	 * Sets whether output images should be saved as tiled, pyramidal OME-TIFF.
+	 *
+	 * @param pyramids See above.
+	 */
+	public void setPyramids(boolean pyramids) {
+		this.pyramids = pyramids;
+	}
+
+
+	/**
+	 * Returns the number of output images imported to OMERO at once (1 to import each image when it is saved).
+	 *
+	 * @return See above.
+	 */
+	public int getImportBatchSize() {
+		return importBatchSize;
+	}
+
+
+	/**
+	 * Sets the number of output images imported to OMERO at once (1 to import each image when it is saved).
+	 *
+	 * @param importBatchSize See above.
+	 */
+	public void setImportBatchSize(int importBatchSize) {
+		this.importBatchSize = Math.max(importBatchSize, 1);
+	}
+
+
+	/**
+	 * Returns the time after which queued output images are imported, in seconds (0 for no limit).
+	 *
+	 * @return See above.
+	 */
+	public int getImportInterval() {
+		return importInterval;
+	}
+
+
+	/**
+	 * Sets the time after which queued output images are imported, in seconds (0 for no limit).
+	 *
+	 * @param importInterval See above.
+	 */
+	public void setImportInterval(int importInterval) {
+		this.importInterval = Math.max(importInterval, 0);
+	}
+
+
+	/**
+	 * Returns whether the files attached to images (results and logs) should be gathered in one archive per batch on
+	 * OMERO.
+	 *
+	 * @return See above.
+	 */
+	public boolean shouldBundleAttachments() {
+		return bundleAttachments;
+	}
+
+
+	/**
+	 * Sets whether the files attached to images (results and logs) should be gathered in one archive per batch on
+	 * OMERO.
+	 *
+	 * @param bundleAttachments See above.
+	 */
+	public void setBundleAttachments(boolean bundleAttachments) {
+		this.bundleAttachments = bundleAttachments;
+	}
+
+
+	/**
+	 * Returns the results columns saved as key-value pairs on images, separated by commas ("*" for all numeric
+	 * columns, empty for none).
+	 *
+	 * @return See above.
+	 */
+	public String getKeyValueColumns() {
+		return keyValueColumns;
+	}
+
+
+	/**
+	 * Sets the results columns saved as key-value pairs on images, separated by commas ("*" for all numeric columns,
+	 * empty for none).
+	 *
+	 * @param keyValueColumns See above.
+	 */
+	public void setKeyValueColumns(String keyValueColumns) {
+		this.keyValueColumns = keyValueColumns != null ? keyValueColumns.trim() : "";
+	}
+
+
+	/**
+	 * Returns the number of images processed at once by scripts which support it.
+	 *
+	 * @return See above.
+	 */
+	public int getParallelScripts() {
+		return parallelScripts;
+	}
+
+
+	/**
+	 * Sets the number of images processed at once by scripts which support it.
+	 *
+	 * @param parallelScripts See above.
+	 */
+	public void setParallelScripts(int parallelScripts) {
+		this.parallelScripts = Math.max(parallelScripts, 1);
+	}
+
 }
@@ -0,0 +1,47 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import ij.ImagePlus;
+
+
+/**
+ * Script which can run on an image without using the ImageJ windows, so that several images can be processed at once.
+ */
+public interface IsolatedScript {
+
+	/**
+	 * Checks whether the script can run on several images at once, each in its own thread, without using the ImageJ
+	 * windows.
+	 *
+	 * @return See above.
+	 */
+	boolean isParallelizable();
+
+
+	/**
+	 * Runs the script on an image, passing the image and retrieving the outputs directly instead of using the ImageJ
+	 * windows.
+	 *
+	 * @param imp The image.
+	 *
+	 * @return The outputs of the script.
+	 */
+	ScriptOutputs runIsolated(ImagePlus imp);
+
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import ij.IJ;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+
+/**
+ * Captures the log produced while processing each image, without saving the Log window.
+ * <p>ImageJ does not notify log listeners, so the Log window is cleared when each image starts, even if the log is
+ * not saved: its content is then the log of the current image only, and it does not keep growing during the batch.
+ * Without ImageJ UI, {@link IJ#log(String)} writes to the standard output, which is copied to an in-memory buffer
+ * that is emptied for each image.</p>
+ */
+public class LogCapture implements AutoCloseable {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The text written to the standard output since the last start. */
+	private final ByteArrayOutputStream console = new ByteArrayOutputStream(1024);
+
+	/** The original standard output, while it is replaced. */
+	private PrintStream original;
+
+
+	/**
+	 * Returns the content of the Log window.
+	 *
+	 * @return See above, or an empty string if there is no Log window.
+	 */
+	private static String getWindowLog() {
+		String log = IJ.getLog();
+		return log == null ? "" : log;
+	}
+
+
+	/**
+	 * Starts capturing the log for a new image.
+	 */
+	public synchronized void start() {
+		if (!getWindowLog().isEmpty()) {
+			IJ.log("\\Clear");
+		}
+		console.reset();
+		if (original == null && IJ.getInstance() == null) {
+			original = System.out;
+			try {
+				System.setOut(new PrintStream(new Tee(original), true, StandardCharsets.UTF_8.name()));
+			} catch (UnsupportedEncodingException e) {
+				LOGGER.warning("Could not capture standard output: " + e.getMessage());
+				original = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the log captured since the last start.
+	 *
+	 * @return See above.
+	 */
+	public synchronized String getText() {
+		String text = getWindowLog();
+		try {
+			text += console.toString(StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			LOGGER.warning("Could not read standard output: " + e.getMessage());
+		}
+		return text;
+	}
+
+
+	/**
+	 * Restores the standard output.
+	 */
+	@Override
+	public synchronized void close() {
+		if (original != null) {
+			System.setOut(original);
+			original = null;
+		}
+	}
+
+
+	/**
+	 * Copies the standard output to the in-memory buffer.
+	 */
+	private class Tee extends OutputStream {
+
+		/** The original standard output. */
+		private final PrintStream out;
+
+
+		/**
+		 * Creates a new stream writing to the original output and to the buffer.
+		 *
+		 * @param out The original standard output.
+		 */
+		Tee(PrintStream out) {
+			this.out = out;
+		}
+
+
+		/**
+		 * Writes a byte to both streams.
+		 *
+		 * @param b The byte.
+		 */
+		@Override
+		public void write(int b) {
+			synchronized (LogCapture.this) {
+				console.write(b);
+			}
+			out.write(b);
+		}
+
+
+		/**
+		 * Writes bytes to both streams.
+		 *
+		 * @param b   The bytes.
+		 * @param off The start offset.
+		 * @param len The number of bytes to write.
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) {
+			synchronized (LogCapture.this) {
+				console.write(b, off, len);
+			}
+			out.write(b, off, len);
+		}
+
+
+		/**
+		 * Flushes the original output.
+		 */
+		@Override
+		public void flush() {
+			out.flush();
+		}
+
+	}
+
+}
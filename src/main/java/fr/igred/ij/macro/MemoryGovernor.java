@@ -0,0 +1,187 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import fr.igred.ij.io.BatchImage;
+import ij.IJ;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Decides how many images can be held in memory at once, from the heap usage and the estimated image sizes.
+ * <p>Images are only loaded in advance, or processed at the same time, while enough memory is left, and huge images
+ * are processed last, alone.</p>
+ */
+public class MemoryGovernor {
+
+	/** The fraction of the heap kept free for the script. */
+	private static final double HEADROOM = 0.2;
+
+	/** The fraction of the heap above which an image is processed on its own. */
+	private static final double HUGE = 0.5;
+
+	/** The memory bean. */
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	/** The estimated image sizes. */
+	private final Map<BatchImage, Long> sizes = new IdentityHashMap<>();
+
+	/** The memory reserved for images being processed at the same time. */
+	private final Map<BatchImage, Long> processing = new IdentityHashMap<>();
+
+	/** The memory reserved for images being loaded in advance or processed. */
+	private long reserved = 0L;
+
+
+	/**
+	 * Returns the maximum heap size.
+	 *
+	 * @return See above.
+	 */
+	public long getMaxMemory() {
+		long max = memory.getHeapMemoryUsage().getMax();
+		return max > 0 ? max : IJ.maxMemory();
+	}
+
+
+	/**
+	 * Returns the memory which can still be used, not counting the memory reserved for images loaded in advance.
+	 *
+	 * @return See above.
+	 */
+	public synchronized long getAvailableMemory() {
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		long max = getMaxMemory();
+		return max - heap.getUsed() - reserved - (long) (HEADROOM * max);
+	}
+
+
+	/**
+	 * Returns the estimated size of an image in memory.
+	 *
+	 * @param image The image.
+	 *
+	 * @return The size in bytes, or -1 if it is unknown.
+	 */
+	public synchronized long getSize(BatchImage image) {
+		return sizes.computeIfAbsent(image, BatchImage::getSizeInBytes);
+	}
+
+
+	/**
+	 * Checks whether an image is too large to be processed while other images are in memory.
+	 *
+	 * @param image The image.
+	 *
+	 * @return See above.
+	 */
+	public boolean isHuge(BatchImage image) {
+		return getSize(image) * BatchEstimate.MEMORY_FACTOR > HUGE * getMaxMemory();
+	}
+
+
+	/**
+	 * Moves huge images to the end of the list, so that they are processed last, without other images in memory.
+	 * <p>This is not needed when the largest images are processed first.</p>
+	 *
+	 * @param images The images.
+	 *
+	 * @return A new list, with the same images.
+	 */
+	public List<BatchImage> defer(List<? extends BatchImage> images) {
+		List<BatchImage> ordered = new ArrayList<>(images.size());
+		List<BatchImage> huge = new ArrayList<>(0);
+		for (BatchImage image : images) {
+			if (isHuge(image)) {
+				huge.add(image);
+			} else {
+				ordered.add(image);
+			}
+		}
+		ordered.addAll(huge);
+		return ordered;
+	}
+
+
+	/**
+	 * Reserves memory to load an image in advance, if enough memory is available.
+	 * <p>Huge images are never loaded in advance.</p>
+	 *
+	 * @param image The image.
+	 *
+	 * @return True if the memory was reserved, false otherwise.
+	 */
+	public synchronized boolean reserve(BatchImage image) {
+		long size = Math.max(getSize(image), 0L);
+		boolean granted = !isHuge(image) && size * BatchEstimate.MEMORY_FACTOR <= getAvailableMemory();
+		if (granted) {
+			reserved += size;
+		}
+		return granted;
+	}
+
+
+	/**
+	 * Releases the memory reserved for an image, once it has been loaded.
+	 *
+	 * @param image The image.
+	 */
+	public synchronized void release(BatchImage image) {
+		reserved = Math.max(reserved - Math.max(getSize(image), 0L), 0L);
+	}
+
+
+	/**
+	 * Reserves the memory needed to process an image (the image and the copies made by the script), if enough memory
+	 * is available.
+	 *
+	 * @param image The image.
+	 *
+	 * @return True if the memory was reserved, false otherwise.
+	 */
+	public synchronized boolean reserveProcessing(BatchImage image) {
+		long needed = Math.max(getSize(image), 0L) * BatchEstimate.MEMORY_FACTOR;
+		boolean granted = !processing.containsKey(image) && needed <= getAvailableMemory();
+		if (granted) {
+			processing.put(image, needed);
+			reserved += needed;
+		}
+		return granted;
+	}
+
+
+	/**
+	 * Releases the memory reserved to process an image, if any.
+	 *
+	 * @param image The image.
+	 */
+	public synchronized void releaseProcessing(BatchImage image) {
+		Long needed = processing.remove(image);
+		if (needed != null) {
+			reserved = Math.max(reserved - needed, 0L);
+		}
+	}
+
+}
@@ -18,8 +18,20 @@ package fr.igred.ij.macro;
 
 
 import fr.igred.ij.gui.ProgressDialog;
+import fr.igred.ij.io.AttachmentArchive;
 import fr.igred.ij.io.BatchImage;
+import fr.igred.ij.io.BatchImporter;
+import fr.igred.ij.io.BatchOrder;
+import fr.igred.ij.io.ColumnarResults;
+import fr.igred.ij.io.ImageCompression;
+import fr.igred.ij.io.KeyValueWriter;
+import fr.igred.ij.io.OMETiffExporter;
+import fr.igred.ij.io.ROIFilter;
 import fr.igred.ij.io.ROIMode;
+import fr.igred.ij.io.ROISynchronizer;
+import fr.igred.ij.io.ROIUploader;
+import fr.igred.ij.io.ResultCache;
+import fr.igred.ij.io.SessionPool;
 import fr.igred.omero.AnnotatableWrapper;
 import fr.igred.omero.Client;
 import fr.igred.omero.annotations.TableWrapper;
@@ -32,15 +44,23 @@ import fr.igred.omero.roi.ROIWrapper;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.MessageDialog;
 import ij.gui.Overlay;
 import ij.gui.Roi;
+import ij.gui.WaitForUserDialog;
+import ij.gui.YesNoCancelDialog;
 import ij.io.RoiEncoder;
+import ij.macro.Interpreter;
 import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
 import ij.text.TextWindow;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
 
 import java.awt.Component;
 import java.awt.Frame;
+import java.awt.Window;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -48,19 +68,31 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -82,6 +114,9 @@ public class OMEROBatchRunner extends Thread {
 	/** The empty int array. */
 	private static final int[] EMPTY_INT_ARRAY = new int[0];
 
+	/** The time given to a script to stop after it was aborted, in milliseconds. */
+	private static final long ABORT_DELAY = 5000L;
+
 	/** The pattern to remove the file extension from an image title. */
 	private static final Pattern TITLE_AFTER_EXT = Pattern.compile("\\w+\\s?\\[?([^\\[\\]]*)]?");
 
@@ -98,6 +133,56 @@ public class OMEROBatchRunner extends Thread {
 
 	/** The tables. */
 	private final Map<String, TableWrapper> tables = new HashMap<>(5);
+	/** The columnar outputs for the results, per table title. */
+	private final Map<String, ColumnarResults> columnar = new HashMap<>(5);
+
+	/** The images being loaded in the background. */
+	private final Deque<Future<ImagePlus>> prefetched = new ArrayDeque<>(2);
+	/** The uploads running in the background. */
+	private final List<Future<?>> pendingTransfers = new ArrayList<>(0);
+	/** The memory governor, which limits the number of images loaded in advance. */
+	private final MemoryGovernor governor = new MemoryGovernor();
+	/** The log capture, to save the log of each image. */
+	private final LogCapture logCapture = new LogCapture();
+	/** The images for which the time limit was exceeded. */
+	private final List<String> timedOut = new ArrayList<>(0);
+
+	/** The OMERO sessions used for concurrent transfers. */
+	private SessionPool sessions;
+	/** The executor running concurrent transfers. */
+	private ExecutorService transfers;
+	/** The ROI uploader. */
+	private ROIUploader roiUploader;
+	/** The ROI synchronizer. */
+	private ROISynchronizer roiSynchronizer;
+	/** The importer of output images, if they are imported in groups. */
+	private BatchImporter importer;
+
+	/** The saves waiting for their output images to be imported. */
+	private final List<PendingSave> pendingSaves = new ArrayList<>(0);
+	/** The OMERO IDs of the output images imported in groups. */
+	private final Map<ImagePlus, List<Long>> importedIds = new HashMap<>(0);
+	/** The outputs declared by the script on the current image, or null if they are retrieved from ImageJ. */
+	private ScriptOutputs declared;
+	/** The filter used to load ROIs from OMERO. */
+	private ROIFilter roiFilter = new ROIFilter();
+
+	/** The cache of previous results, if they should be reused. */
+	private ResultCache cache;
+	/** The checksum of the script, used to identify cached results. */
+	private String scriptChecksum;
+
+	/** The size of the images processed so far, used to measure the throughput. */
+	private long processedBytes;
+
+	/** The name of the current batch. */
+	private String batchName = "";
+	/** The archive gathering the files attached to the images of the current batch, if required. */
+	private AttachmentArchive attachments;
+	/** The summary of the results, if required. */
+	private ResultsSummary summary;
+	/** The writer of key-value pairs on images, if required. */
+	private KeyValueWriter keyValues;
 
 	/** The ROI manager. */
 	private RoiManager rm;
@@ -140,6 +225,8 @@ public class OMEROBatchRunner extends Thread {
 		this.progress = progress;
 		this.rm = null;
 		this.listener = null;
+		this.sessions = null;
+		this.transfers = null;
 	}
 
 
@@ -208,18 +295,22 @@ public class OMEROBatchRunner extends Thread {
 	/**
 	 * Retrieves the list of images open after the script was run.
 	 *
+	 * <p>In batch mode, only the images created in batch mode are considered.</p>
+	 *
 	 * @param inputImage The input image.
 	 *
 	 * @return See above.
 	 */
-	private static List<ImagePlus> getOutputImages(ImagePlus inputImage) {
+	private static List<ImagePlus> getOpenImages(ImagePlus inputImage) {
 		ImagePlus outputImage = WindowManager.getCurrentImage();
 		if (outputImage == null) {
 			outputImage = inputImage;
 		}
 		int ijOutputId = outputImage.getID();
 
-		int[] imageIds = WindowManager.getIDList();
+		int[] imageIds = Interpreter.isBatchMode()
+						 ? Interpreter.getBatchModeImageIDs()
+						 : WindowManager.getIDList();
 		if (imageIds == null) {
 			imageIds = EMPTY_INT_ARRAY;
 		}
@@ -233,6 +324,40 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Returns the OMERO ID of an image.
+	 *
+	 * @param image The image.
+	 *
+	 * @return See above, or null if the image is not on OMERO.
+	 */
+	private static Long getInputId(BatchImage image) {
+		ImageWrapper imageWrapper = image.getImageWrapper();
+		return imageWrapper != null ? imageWrapper.getId() : null;
+	}
+
+
+	/**
+	 * Retrieves the non-empty results tables, with distinct titles.
+	 *
+	 * @return See above.
+	 */
+	private static List<ResultsTable> getOpenTables() {
+		String[] candidates = WindowManager.getNonImageTitles();
+		List<ResultsTable> results = Arrays.stream(candidates)
+										   .map(ResultsTable::getResultsTable)
+										   .collect(Collectors.toList());
+		results.add(0, ResultsTable.getResultsTable());
+		Map<String, ResultsTable> tables = new LinkedHashMap<>(results.size());
+		for (ResultsTable rt : results) {
+			if (rt != null && rt.getHeadings().length > 0) {
+				tables.putIfAbsent(rt.getTitle(), rt);
+			}
+		}
+		return new ArrayList<>(tables.values());
+	}
+
+
 	/**
 	 * Retrieves the list of ROIs from an image overlay.
 	 *
@@ -253,25 +378,6 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
-	/**
-	 * Converts ROIs from an image overlay to OMERO ROIs.
-	 *
-	 * @param imp      The image ROIs are linked to.
-	 * @param property The ROI property used to group shapes in OMERO.
-	 *
-	 * @return A list of OMERO ROIs.
-	 */
-	private static List<ROIWrapper> getROIsFromOverlay(ImagePlus imp, String property) {
-		List<ROIWrapper> rois = new ArrayList<>(0);
-		if (imp != null) {
-			List<Roi> ijRois = getOverlay(imp);
-			rois = ROIWrapper.fromImageJ(ijRois, property);
-		}
-
-		return rois;
-	}
-
-
 	/**
 	 * Saves ImageJ ROIs to a file.
 	 *
@@ -331,6 +437,74 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Aborts a script which exceeded its time limit: the macro is aborted, the thread is interrupted and the dialogs
+	 * opened by the script are closed. The thread is abandoned if it does not stop.
+	 *
+	 * @param worker The thread running the script.
+	 */
+	private static void abort(Thread worker) {
+		Interpreter.abort();
+		worker.interrupt();
+		for (Window window : Window.getWindows()) {
+			boolean dialog = window instanceof GenericDialog
+							 || window instanceof WaitForUserDialog
+							 || window instanceof YesNoCancelDialog
+							 || window instanceof MessageDialog;
+			if (dialog && window.isVisible()) {
+				window.dispose();
+			}
+		}
+		try {
+			worker.join(ABORT_DELAY);
+		} catch (InterruptedException e) {
+			LOGGER.warning(e.getMessage());
+			currentThread().interrupt();
+		}
+		if (worker.isAlive()) {
+			LOGGER.warning("Script could not be stopped: " + worker.getName());
+		}
+	}
+
+
+	/**
+	 * Waits for an image to be loaded in the background.
+	 *
+	 * @param loading The image being loaded.
+	 *
+	 * @return The image, or null if it could not be loaded.
+	 */
+	private static ImagePlus await(Future<ImagePlus> loading) {
+		ImagePlus imp = null;
+		try {
+			imp = loading.get();
+		} catch (ExecutionException e) {
+			LOGGER.severe("Could not load image: " + e.getMessage());
+		} catch (InterruptedException e) {
+			LOGGER.warning(e.getMessage());
+			currentThread().interrupt();
+		}
+		return imp;
+	}
+
+
+	/**
+	 * Creates the threads running scripts on several images at once. They do not prevent ImageJ from exiting if a
+	 * script never ends.
+	 *
+	 * @param threads The number of threads.
+	 *
+	 * @return See above.
+	 */
+	private static ExecutorService newWorkers(int threads) {
+		return Executors.newFixedThreadPool(threads, task -> {
+			Thread thread = new Thread(task, "omero-batch-script");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
 	/**
 	 * Initializes the ROI manager.
 	 */
@@ -398,14 +572,39 @@ public class OMEROBatchRunner extends Thread {
 				setState("Temporary directory creation...");
 				params.setDirectoryOut(Files.createTempDirectory("Fiji_analysis").toString());
 			}
+			openSessions();
+			roiUploader = new ROIUploader(client, sessions, transfers, params.getROIChunkSize());
+			roiSynchronizer = new ROISynchronizer(client, roiUploader);
+			if (params.isOutputOnOMERO() && params.shouldSaveImages() && params.getImportBatchSize() > 1) {
+				importer = new BatchImporter(client, params.getImportBatchSize(), params.getImportInterval());
+			}
+			openCache();
+			roiFilter = getROIFilter();
+			if (params.shouldSaveResults() && ResultsSummary.isEnabled(params.getSummaryKey())) {
+				summary = new ResultsSummary(params.getSummaryKey());
+			}
+			if (params.isOutputOnOMERO() && params.shouldSaveResults() &&
+				KeyValueWriter.isEnabled(params.getKeyValueColumns())) {
+				keyValues = new KeyValueWriter(client, params.getKeyValueColumns());
+			}
 
+			long begin = System.currentTimeMillis();
 			for (Entry<String, List<BatchImage>> entry : images.entrySet()) {
 				setState("Macro running...");
+				batchName = entry.getKey();
 				runMacro(entry);
 				setProgress("");
 				uploadTables(entry.getKey());
+				flushKeyValues();
+				uploadAttachments();
+				closeColumnar();
+				awaitTransfers();
 				tables.clear();
 			}
+			BatchEstimate.recordThroughput(processedBytes, System.currentTimeMillis() - begin);
+			saveSummary();
+			awaitTransfers();
+			reportTimeouts();
 
 			if (!params.isOutputOnLocal()) {
 				setState("Temporary directory deletion...");
@@ -425,6 +624,13 @@ public class OMEROBatchRunner extends Thread {
 			}
 			IJ.error(e.getMessage());
 		} finally {
+			logCapture.close();
+			closeAttachments();
+			closeColumnar();
+			closeSessions();
+			if (params.isBatchMode()) {
+				Interpreter.setBatchMode(false);
+			}
 			if (running) {
 				setDone();
 				setProgress("An unexpected error occurred.");
@@ -441,275 +647,997 @@ public class OMEROBatchRunner extends Thread {
 
 
 	/**
-	 * Deletes all owned ROIs from an image on OMERO.
-	 *
-	 * @param image The image on OMERO.
+	 * Lists the images for which the time limit was exceeded in the log.
 	 */
-	private void deleteROIs(ImageWrapper image) {
-		setState("ROIs deletion from OMERO");
-		try {
-			List<ROIWrapper> rois = image.getROIs(client);
-			rois.removeIf(roi -> roi.getOwner().getId() != client.getId());
-			client.delete(rois);
-		} catch (ExecutionException | OMEROServerError | ServiceException | AccessException exception) {
-			LOGGER.warning(exception.getMessage());
-		} catch (InterruptedException e) {
-			LOGGER.warning(e.getMessage());
-			currentThread().interrupt();
+	private void reportTimeouts() {
+		if (!timedOut.isEmpty()) {
+			IJ.log(format("Time limit (%d s) exceeded for %d image(s):", params.getTimeout(), timedOut.size()));
+			timedOut.forEach(name -> IJ.log("- " + name));
 		}
 	}
 
 
 	/**
-	 * Retrieves the list of ROIs from the ROI manager.
-	 *
-	 * @param imp The image ROIs are linked to.
-	 *
-	 * @return See above.
+	 * Joins additional OMERO sessions to run transfers concurrently, if required.
 	 */
-	private List<Roi> getManagedRois(ImagePlus imp) {
-		List<Roi> ijRois = new ArrayList<>(Arrays.asList(rm.getRoisAsArray()));
-		for (Roi roi : ijRois) {
-			roi.setImage(imp);
+	private void openSessions() {
+		if (client != null && client.isConnected() && params.getSessions() > 1) {
+			setState("Joining OMERO sessions...");
+			sessions = new SessionPool(client, params.getSessions());
+			transfers = Executors.newFixedThreadPool(sessions.size());
 		}
-		return ijRois;
 	}
 
 
 	/**
-	 * Converts ROIs from the ROI Manager to OMERO ROIs.
-	 *
-	 * @param imp      The image ROIs are linked to.
-	 * @param property The ROI property used to group shapes in OMERO.
-	 *
-	 * @return A list of OMERO ROIs.
+	 * Waits for pending transfers, then closes the additional OMERO sessions.
 	 */
-	private List<ROIWrapper> getROIsFromManager(ImagePlus imp, String property) {
-		List<ROIWrapper> rois = new ArrayList<>(0);
-		if (imp != null) {
-			List<Roi> ijRois = getManagedRois(imp);
-			rois = ROIWrapper.fromImageJ(ijRois, property);
+	private void closeSessions() {
+		if (transfers != null) {
+			prefetched.forEach(f -> f.cancel(true));
+			prefetched.clear();
+			awaitTransfers();
+			transfers.shutdownNow();
+			transfers = null;
+		}
+		if (sessions != null) {
+			sessions.close();
+			sessions = null;
 		}
-
-		return rois;
 	}
 
 
 	/**
-	 * Runs a macro on images and saves the results.
+	 * Waits for all the uploads running in the background.
 	 */
-	private void runMacro(Entry<String, ? extends List<BatchImage>> imgList) {
-		String property = ROIWrapper.IJ_PROPERTY;
-		WindowManager.closeAllWindows();
-
-		int index = 0;
-		for (BatchImage image : imgList.getValue()) {
-			// Initialize ROI Manager
-			initRoiManager();
-
-			//noinspection HardcodedFileSeparator
-			String prog = format("Processing %s: %n Image %d/%d",
-										imgList.getKey(),
-										index + 1,
-										imgList.getValue().size());
-
-			setProgress(prog);
-			setState("Opening image...");
-			ImagePlus imp = image.getImagePlus(params.getROIMode());
-			// If image could not be loaded, continue to next image.
-			if (imp != null) {
-				ImageWrapper imageWrapper = image.getImageWrapper();
-				Long inputImageId = imageWrapper != null ? imageWrapper.getId() : null;
-				imp.show();
-
-				// Process the image
-				setState("Processing image...");
-				script.setImage(imp);
-				script.run();
-
-				imp.changes = false; // Prevent "Save Changes?" dialog
-				save(imp, inputImageId, property);
+	private void awaitTransfers() {
+		if (!pendingTransfers.isEmpty()) {
+			setState("Waiting for uploads...");
+		}
+		for (Future<?> transfer : pendingTransfers) {
+			try {
+				transfer.get();
+			} catch (ExecutionException e) {
+				LOGGER.warning("Transfer failed: " + e.getMessage());
+			} catch (InterruptedException e) {
+				LOGGER.warning(e.getMessage());
+				currentThread().interrupt();
 			}
-			closeWindows();
-			index++;
 		}
+		pendingTransfers.clear();
 	}
 
 
 	/**
-	 * Loads ROIs from an image in OMERO into ImageJ.
+	 * Starts loading the upcoming OMERO images in the background, one per available session.
 	 *
-	 * @param image   The OMERO image.
-	 * @param imp     The image in ImageJ ROIs should be linked to.
-	 * @param roiMode The mode used to load ROIs.
+	 * @param batch The images.
+	 * @param from  The index of the current image.
 	 */
-	private void loadROIs(ImageWrapper image, ImagePlus imp, ROIMode roiMode) {
-		List<Roi> ijRois = new ArrayList<>(0);
-		try {
-			ijRois = ROIWrapper.toImageJ(image.getROIs(client));
-		} catch (ExecutionException | ServiceException | AccessException e) {
-			IJ.error("Could not load ROIs: " + e.getMessage());
-		}
-		if (roiMode == ROIMode.OVERLAY) {
-			Overlay overlay = imp.getOverlay();
-			if (overlay != null) {
-				overlay.clear();
-			} else {
-				overlay = new Overlay();
-			}
-			for (Roi ijRoi : ijRois) {
-				ijRoi.setImage(imp);
-				overlay.add(ijRoi, ijRoi.getName());
-			}
-		} else if (roiMode == ROIMode.MANAGER) {
-			rm.reset(); // Reset ROI manager to clear previous ROIs
-			for (Roi ijRoi : ijRois) {
-				ijRoi.setImage(imp);
-				rm.addRoi(ijRoi);
+	private void prefetch(List<? extends BatchImage> batch, int from) {
+		if (transfers != null && from < batch.size() && batch.get(from).getImageWrapper() != null) {
+			int depth = sessions.size();
+			boolean room = true;
+			for (int i = from + prefetched.size(); room && i < batch.size() && prefetched.size() < depth; i++) {
+				BatchImage image = batch.get(i);
+				room = governor.reserve(image);
+				if (room) {
+					prefetched.add(transfers.submit(() -> load(image)));
+				}
 			}
 		}
 	}
 
 
 	/**
-	 * Saves the images, results and ROIs.
+	 * Discards the image loaded in advance for an image that does not need to be processed, if any.
 	 *
-	 * @param inputImage   The input image in ImageJ.
-	 * @param omeroInputId The OMERO image input ID.
-	 * @param property     The ROI property used to group shapes in OMERO.
+	 * @param image The image.
 	 */
-	private void save(ImagePlus inputImage, Long omeroInputId, String property) {
-		String inputTitle = removeExtension(inputImage.getTitle());
-
-		Long omeroOutputId = omeroInputId;
-		List<ImagePlus> outputs = getOutputImages(inputImage);
+	private void discardPrefetched(BatchImage image) {
+		Future<ImagePlus> unused = prefetched.poll();
+		if (unused != null) {
+			unused.cancel(true);
+			governor.release(image);
+		}
+	}
 
-		ImagePlus outputImage = outputs.isEmpty() ? inputImage : outputs.get(0);
 
-		boolean annotatable = Boolean.parseBoolean(inputImage.getProp("Annotatable"));
-		boolean outputIsNotInput = !inputImage.equals(outputImage);
-		if (!params.isOutputOnOMERO() || !params.shouldSaveROIs() || annotatable || outputIsNotInput) {
-			outputs.removeIf(inputImage::equals);
+	/**
+	 * Loads an image (without ROIs) with a session borrowed from the pool.
+	 *
+	 * @param image The image to load.
+	 *
+	 * @return See above.
+	 *
+	 * @throws InterruptedException If the thread was interrupted while waiting for a session.
+	 */
+	private ImagePlus load(BatchImage image) throws InterruptedException {
+		Client session = sessions.borrow();
+		try {
+			return image.getImagePlus(ROIMode.DO_NOT_LOAD, session);
+		} finally {
+			sessions.release(session);
 		}
+	}
 
-		if (params.shouldSaveImages()) {
-			List<Long> outputIds = saveImages(outputs, property);
-			if (!outputIds.isEmpty() && outputIsNotInput) {
-				omeroOutputId = outputIds.get(0);
-			}
-		}
 
-		if (params.shouldSaveROIs()) {
-			if (!params.shouldSaveImages()) {
-				saveOverlay(outputImage, omeroOutputId, inputTitle, property);
-			}
-			saveROIManager(outputImage, omeroOutputId, inputTitle, property);
-		}
-		if (params.shouldSaveResults()) {
-			saveResults(outputImage, omeroOutputId, inputTitle, property);
+	/**
+	 * Opens an image, using the prefetched one if available.
+	 *
+	 * @param batch The images.
+	 * @param index The index of the image to open.
+	 * @param mode  The mode used to load ROIs.
+	 *
+	 * @return The image, or null if it could not be opened.
+	 */
+	private ImagePlus open(List<? extends BatchImage> batch, int index, ROIMode mode) {
+		BatchImage image = batch.get(index);
+		prefetch(batch, index);
+		Future<ImagePlus> loading = prefetched.poll();
+		// ROIs from OMERO are loaded here, with the filter
+		boolean omero = image.getImageWrapper() != null;
+		ImagePlus imp;
+		if (loading != null) {
+			imp = await(loading);
+			governor.release(image);
+		} else {
+			imp = image.getImagePlus(omero ? ROIMode.DO_NOT_LOAD : mode);
 		}
-		if (params.shouldSaveLog()) {
-			saveLog(omeroOutputId, inputTitle);
+		if (imp != null && omero && mode != ROIMode.DO_NOT_LOAD) {
+			loadROIs(image.getImageWrapper(), imp, mode, roiFilter);
 		}
+		return imp;
+	}
 
-		for (ImagePlus imp : outputs) {
-			imp.changes = false;
-			imp.close();
+
+	/**
+	 * Returns the filter used to load ROIs from OMERO.
+	 * <p>When ROIs are cleared or synchronized on OMERO, the conditions on shapes are ignored: the ROIs would otherwise
+	 * be deleted or replaced with shapes that were not loaded, and would not be uploaded again.</p>
+	 *
+	 * @return See above.
+	 */
+	private ROIFilter getROIFilter() {
+		ROIFilter filter = params.getROIFilter();
+		boolean replacing = params.shouldClearROIs() || params.shouldSyncROIs();
+		if (params.isOutputOnOMERO() && params.shouldSaveROIs() && replacing && filter.hasShapeConditions()) {
+			LOGGER.warning("Shape filters are ignored when ROIs are cleared or synchronized on OMERO.");
+			filter = filter.withoutShapeConditions();
 		}
+		return filter;
 	}
 
 
 	/**
-	 * Saves images.
-	 *
-	 * @param outputs  The images to save.
-	 * @param property The ROI property used to group shapes in OMERO.
+	 * Deletes the owned ROIs matching the ROI filter from an image on OMERO.
 	 *
-	 * @return The OMERO IDs of the (possibly) uploaded images.
+	 * @param image The image on OMERO.
 	 */
-	private List<Long> saveImages(Collection<? extends ImagePlus> outputs, String property) {
-		if (outputs.isEmpty()) {
-			LOGGER.info("Warning: there is no new image.");
+	private void deleteROIs(ImageWrapper image) {
+		setState("ROIs deletion from OMERO");
+		try {
+			List<ROIWrapper> rois = roiFilter.load(client, image.getId());
+			rois.removeIf(roi -> roi.getOwner().getId() != client.getId());
+			client.delete(rois);
+		} catch (ExecutionException | OMEROServerError | ServiceException | AccessException | DSOutOfServiceException |
+				 ServerError exception) {
+			LOGGER.warning(exception.getMessage());
+		} catch (InterruptedException e) {
+			LOGGER.warning(e.getMessage());
+			currentThread().interrupt();
 		}
-		List<Long> outputIds = new ArrayList<>(outputs.size());
-		outputs.forEach(imp -> outputIds.addAll(saveImage(imp, property)));
-		return outputIds;
 	}
 
 
 	/**
-	 * Saves an image.
+	 * Retrieves the output images: the images declared by the script, or the images open after it was run, the
+	 * current one first. The input image is included if it is still open.
 	 *
-	 * @param image    The image to save.
-	 * @param property The ROI property to group shapes in OMERO.
+	 * @param inputImage The input image.
 	 *
-	 * @return The OMERO IDs of the (possibly) uploaded image. Should be empty or contain one value.
+	 * @return See above.
 	 */
-	private List<Long> saveImage(ImagePlus image, String property) {
-		List<Long> ids = new ArrayList<>(0);
-		String title = removeExtension(image.getTitle());
-		String path = params.getDirectoryOut() + File.separator +
-					  title + params.getSuffix() + ".tif";
-		IJ.saveAsTiff(image, path);
-		if (params.isOutputOnOMERO()) {
-			try {
-				setState("Import on OMERO...");
-				DatasetWrapper dataset = client.getDataset(params.getOutputDatasetId());
-				ids = dataset.importImage(client, path);
-				if (params.shouldSaveROIs() && !ids.isEmpty()) {
-					saveOverlay(image, ids.get(0), title, property);
-				}
-			} catch (AccessException | ServiceException | OMEROServerError | ExecutionException e) {
-				IJ.error("Could not import image: " + e.getMessage());
+	private List<ImagePlus> getOutputImages(ImagePlus inputImage) {
+		List<ImagePlus> outputs;
+		if (declared != null && declared.declaresImages()) {
+			outputs = new ArrayList<>(declared.getImages());
+			if (!outputs.contains(inputImage)) {
+				outputs.add(inputImage);
 			}
+		} else {
+			outputs = getOpenImages(inputImage);
 		}
-		return ids;
+		return outputs;
 	}
 
 
 	/**
-	 * Saves the ROIs from an image overlay in ImageJ.
+	 * Retrieves the results tables declared by the script, or the non-empty results tables open after it was run.
 	 *
-	 * @param imp      The image.
-	 * @param imageId  The image ID on OMERO.
-	 * @param title    The image title used to name the file when saving locally.
-	 * @param property The ROI property used to group shapes on OMERO.
+	 * @return See above.
 	 */
-	private void saveOverlay(ImagePlus imp, Long imageId, String title, String property) {
-		if (params.isOutputOnLocal()) {  //  local save
-			setState("Saving overlay ROIs...");
-			String timestamp = params.shouldClearROIs() ? "" : timestamp() + "_";
-			String path = params.getDirectoryOut() + File.separator +
-						  title + "_" + timestamp + "RoiSet.zip";
-			List<Roi> ijRois = getOverlay(imp);
-			saveRoiFile(ijRois, path);
-		}
-		if (params.isOutputOnOMERO() && imageId != null) { // save on Omero
-			List<ROIWrapper> rois = getROIsFromOverlay(imp, property);
-			try {
-				ImageWrapper image = client.getImage(imageId);
-				if (params.shouldClearROIs()) {
-					deleteROIs(image);
-				}
-				setState("Saving overlay ROIs on OMERO...");
-				image.saveROIs(client, rois);
-				loadROIs(image, imp, ROIMode.OVERLAY); // reload ROIs
-			} catch (ServiceException | AccessException | ExecutionException e) {
-				IJ.error("Could not import overlay ROIs to OMERO: " + e.getMessage());
-			}
-		}
+	private List<ResultsTable> getResultsTables() {
+		return declared != null && declared.declaresTables()
+			   ? new ArrayList<>(declared.getTables().values())
+			   : getOpenTables();
 	}
 
 
 	/**
-	 * Saves the ROIs from the ROI Manager (for an image).
+	 * Retrieves the list of ROIs declared by the script, or from the ROI manager.
 	 *
-	 * @param imp      The image.
-	 * @param imageId  The image ID on OMERO.
-	 * @param title    The image title used to name the file when saving locally.
-	 * @param property The ROI property used to group shapes on OMERO.
+	 * @param imp The image ROIs are linked to.
+	 *
+	 * @return See above.
 	 */
-	private void saveROIManager(ImagePlus imp, Long imageId, String title, String property) {
+	private List<Roi> getManagedRois(ImagePlus imp) {
+		List<Roi> ijRois = declared != null && declared.declaresROIs()
+						   ? new ArrayList<>(declared.getROIs())
+						   : new ArrayList<>(Arrays.asList(rm.getRoisAsArray()));
+		for (Roi roi : ijRois) {
+			roi.setImage(imp);
+		}
+		return ijRois;
+	}
+
+
+	/**
+	 * Runs a macro on images and saves the results.
+	 */
+	private void runMacro(Entry<String, ? extends List<BatchImage>> imgList) {
+		String property = ROIWrapper.IJ_PROPERTY;
+		WindowManager.closeAllWindows();
+
+		List<BatchImage> batch = params.getOrder().sort(imgList.getValue(), governor::getSize);
+		// Largest first already starts with the huge images, which are then processed one at a time
+		if (params.getOrder() != BatchOrder.LARGEST_FIRST) {
+			batch = governor.defer(batch);
+		}
+		if (params.getParallelScripts() > 1 && script instanceof IsolatedScript &&
+			((IsolatedScript) script).isParallelizable()) {
+			runParallel(imgList.getKey(), batch, (IsolatedScript) script, property);
+		} else {
+			int index = 0;
+			for (BatchImage image : batch) {
+				// Initialize ROI Manager
+				initRoiManager();
+
+				//noinspection HardcodedFileSeparator
+				String prog = format("Processing %s: %n Image %d/%d",
+											imgList.getKey(),
+											index + 1,
+											batch.size());
+
+				setProgress(prog);
+				ImageWrapper imageWrapper = image.getImageWrapper();
+				Long inputImageId = imageWrapper != null ? imageWrapper.getId() : null;
+				String key = getCacheKey(image);
+				logCapture.start();
+				if (replay(key, inputImageId, property)) {
+					discardPrefetched(image);
+				} else {
+					try {
+						process(batch, index, key, property);
+					} catch (OutOfMemoryError e) {
+						closeWindows();
+						LOGGER.severe("Not enough memory to process " + image.getName());
+						IJ.log("Not enough memory to process " + image.getName());
+					}
+				}
+				closeWindows();
+				if (importer != null && importer.isDue()) {
+					flushImports(property);
+				}
+				index++;
+			}
+		}
+		flushImports(property);
+	}
+
+
+	/**
+	 * Returns the end of a group of images processed at once, reserving the memory needed to process them: images are
+	 * added while enough memory is left for them and their copies. Huge images are processed alone, and the first
+	 * image is processed even if memory is short.
+	 *
+	 * @param batch   The images.
+	 * @param from    The index of the first image in the group.
+	 * @param threads The maximum number of images in a group.
+	 *
+	 * @return The index after the last image in the group.
+	 */
+	private int getGroupEnd(List<? extends BatchImage> batch, int from, int threads) {
+		int to = from + 1;
+		if (!governor.isHuge(batch.get(from)) && governor.reserveProcessing(batch.get(from))) {
+			while (to < batch.size() && to - from < threads && !governor.isHuge(batch.get(to)) &&
+				   governor.reserveProcessing(batch.get(to))) {
+				to++;
+			}
+		}
+		return to;
+	}
+
+
+	/**
+	 * Runs the script on several images at once, then saves the results of each image in turn.
+	 * <p>Images are opened one after the other (ROIs are loaded in their overlay), and the script runs in a new
+	 * module for each of them, without using the ImageJ windows. The declared outputs are then saved one image at a
+	 * time. The log saved for an image contains the log of the images processed at the same time. Groups are limited
+	 * by the memory needed to process their images, and huge images are processed on their own. The time limit
+	 * applies to each image from the moment its script starts, and the threads are replaced if a script exceeded it,
+	 * as it may still be running.</p>
+	 *
+	 * @param name     The batch name.
+	 * @param batch    The images.
+	 * @param isolated The script, which can run without the ImageJ windows.
+	 * @param property The ROI property used to group shapes in OMERO.
+	 */
+	private void runParallel(String name, List<? extends BatchImage> batch, IsolatedScript isolated,
+							 String property) {
+		int threads = params.getParallelScripts();
+		ROIMode mode = params.getROIMode() == ROIMode.MANAGER ? ROIMode.OVERLAY : params.getROIMode();
+		ExecutorService workers = newWorkers(threads);
+		try {
+			int to;
+			for (int from = 0; from < batch.size(); from = to) {
+				to = getGroupEnd(batch, from, threads);
+				//noinspection HardcodedFileSeparator
+				setProgress(format("Processing %s: %n Images %d-%d/%d", name, from + 1, to, batch.size()));
+				initRoiManager();
+				logCapture.start();
+
+				Map<Integer, ImagePlus> opened = new LinkedHashMap<>(threads);
+				Map<Integer, String> keys = new HashMap<>(threads);
+				Map<Integer, Future<ScriptOutputs>> running = new LinkedHashMap<>(threads);
+				Map<Integer, Long> starts = new HashMap<>(threads);
+				for (int i = from; i < to; i++) {
+					BatchImage image = batch.get(i);
+					keys.put(i, getCacheKey(image));
+					if (replay(keys.get(i), getInputId(image), property)) {
+						discardPrefetched(image);
+					} else {
+						setState("Opening image...");
+						ImagePlus imp = open(batch, i, mode);
+						if (imp != null) {
+							processedBytes += (long) imp.getSizeInBytes();
+							opened.put(i, imp);
+							starts.put(i, System.currentTimeMillis());
+							running.put(i, workers.submit(() -> isolated.runIsolated(imp)));
+						}
+					}
+					closeWindows();
+				}
+
+				setState("Processing images...");
+				boolean stuck = false;
+				for (Entry<Integer, Future<ScriptOutputs>> entry : running.entrySet()) {
+					BatchImage image = batch.get(entry.getKey());
+					long deadline = starts.get(entry.getKey()) + TimeUnit.SECONDS.toMillis(params.getTimeout());
+					ScriptOutputs outputs = awaitScript(entry.getValue(), image.getName(), deadline);
+					stuck |= entry.getValue().isCancelled();
+					if (outputs != null) {
+						ImagePlus imp = opened.get(entry.getKey());
+						display(imp);
+						outputs.getImages().forEach(this::display);
+						complete(imp, outputs, keys.get(entry.getKey()), getInputId(image), property);
+						WindowManager.setTempCurrentImage(null);
+					}
+					closeWindows();
+					if (importer != null && importer.isDue()) {
+						flushImports(property);
+					}
+				}
+				batch.subList(from, to).forEach(governor::releaseProcessing);
+				if (stuck) {
+					workers.shutdownNow();
+					workers = newWorkers(threads);
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Waits for a script running on an image, until the deadline if there is a time limit.
+	 *
+	 * @param running  The running script.
+	 * @param name     The image name.
+	 * @param deadline The time limit, in milliseconds since the epoch (ignored if there is no time limit).
+	 *
+	 * @return The outputs of the script, or null if it failed or exceeded the time limit.
+	 */
+	private ScriptOutputs awaitScript(Future<ScriptOutputs> running, String name, long deadline) {
+		ScriptOutputs outputs = null;
+		try {
+			if (params.getTimeout() > 0) {
+				long remaining = Math.max(deadline - System.currentTimeMillis(), 0L);
+				outputs = running.get(remaining, TimeUnit.MILLISECONDS);
+			} else {
+				outputs = running.get();
+			}
+		} catch (TimeoutException e) {
+			running.cancel(true);
+			timedOut.add(name);
+			LOGGER.warning("Time limit exceeded for " + name);
+		} catch (ExecutionException e) {
+			LOGGER.warning("Script error on " + name + ": " + e.getCause());
+		} catch (InterruptedException e) {
+			LOGGER.warning(e.getMessage());
+			currentThread().interrupt();
+		}
+		return outputs;
+	}
+
+
+	/**
+	 * Opens an image, runs the script on it and saves the results.
+	 *
+	 * @param batch    The images.
+	 * @param index    The index of the image to process.
+	 * @param key      The cache key, or null if the results should not be cached.
+	 * @param property The ROI property used to group shapes in OMERO.
+	 */
+	private void process(List<? extends BatchImage> batch, int index, String key, String property) {
+		ImageWrapper imageWrapper = batch.get(index).getImageWrapper();
+		Long inputImageId = imageWrapper != null ? imageWrapper.getId() : null;
+
+		setState("Opening image...");
+		ImagePlus imp = open(batch, index, params.getROIMode());
+		// If image could not be loaded, continue to next image.
+		if (imp != null && !runScript(imp)) {
+			String name = batch.get(index).getName();
+			timedOut.add(name);
+			LOGGER.warning("Time limit exceeded for " + name);
+		} else if (imp != null) {
+			complete(imp, script.getOutputs(), key, inputImageId, property);
+		}
+	}
+
+
+	/**
+	 * Caches the results of the script on an image, if required, and saves them.
+	 *
+	 * @param imp          The input image.
+	 * @param outputs      The outputs declared by the script.
+	 * @param key          The cache key, or null if the results should not be cached.
+	 * @param inputImageId The OMERO image input ID.
+	 * @param property     The ROI property used to group shapes in OMERO.
+	 */
+	private void complete(ImagePlus imp, ScriptOutputs outputs, String key, Long inputImageId, String property) {
+		imp.changes = false; // Prevent "Save Changes?" dialog
+		declared = outputs;
+		declared.showUntitledTables();
+		try {
+			if (key != null) {
+				setState("Caching results...");
+				List<ImagePlus> images = getOutputImages(imp);
+				cache.store(key, imp, images, getManagedRois(imp), getResultsTables(), logCapture.getText());
+			}
+			save(imp, inputImageId, property);
+		} finally {
+			declared = null;
+		}
+	}
+
+
+	/**
+	 * Displays an image and runs the script on it, within the time limit if there is one.
+	 * <p>If the time limit is exceeded, the script is aborted and its dialogs are closed.</p>
+	 *
+	 * @param imp The image.
+	 *
+	 * @return True if the script completed, false if it exceeded the time limit.
+	 */
+	private boolean runScript(ImagePlus imp) {
+		processedBytes += (long) imp.getSizeInBytes();
+		display(imp);
+
+		// Process the image
+		setState("Processing image...");
+		boolean completed = true;
+		if (params.getTimeout() > 0) {
+			AtomicReference<ImagePlus> current = new AtomicReference<>();
+			Thread worker = new Thread(() -> {
+				try {
+					if (params.isBatchMode()) {
+						WindowManager.setTempCurrentImage(imp);
+					}
+					script.setImage(imp);
+					script.run();
+					current.set(WindowManager.getCurrentImage());
+				} catch (RuntimeException e) {
+					LOGGER.warning("Script error: " + e.getMessage());
+				}
+			}, getName() + "-script");
+			worker.start();
+			try {
+				worker.join(TimeUnit.SECONDS.toMillis(params.getTimeout()));
+			} catch (InterruptedException e) {
+				LOGGER.warning(e.getMessage());
+				currentThread().interrupt();
+			}
+			if (worker.isAlive()) {
+				completed = false;
+				abort(worker);
+			} else if (params.isBatchMode() && current.get() != null) {
+				// The current image in batch mode is specific to each thread
+				WindowManager.setTempCurrentImage(current.get());
+			}
+		} else {
+			script.setImage(imp);
+			script.run();
+		}
+		return completed;
+	}
+
+
+	/**
+	 * Displays an image, or adds it to the batch mode images if required.
+	 *
+	 * @param imp The image.
+	 */
+	private void display(ImagePlus imp) {
+		if (params.isBatchMode()) {
+			Interpreter.setBatchMode(true);
+			Interpreter.addBatchModeImage(imp);
+			WindowManager.setTempCurrentImage(imp);
+		} else {
+			imp.show();
+		}
+	}
+
+
+	/**
+	 * Enables the result cache, if required.
+	 */
+	private void openCache() {
+		if (params.shouldReuseResults()) {
+			try {
+				scriptChecksum = ResultCache.checksum(Paths.get(script.getPath()));
+				cache = new ResultCache();
+			} catch (IOException e) {
+				LOGGER.warning("Previous results will not be reused: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Computes the cache key for an image, with the current script arguments.
+	 *
+	 * @param image The image.
+	 *
+	 * @return The key, or null if results should not be cached for this image.
+	 */
+	private String getCacheKey(BatchImage image) {
+		String key = null;
+		if (cache != null) {
+			String rois = getROIState(image);
+			key = ResultCache.getKey(image, scriptChecksum, script.getArguments(), params.getROIMode(), rois);
+		}
+		return key;
+	}
+
+
+	/**
+	 * Returns the state of the ROIs loaded with an image from OMERO, so that cached results are not reused when they
+	 * change: the ROI filter, then the number of ROIs and shapes and their last updates.
+	 *
+	 * @param image The image.
+	 *
+	 * @return See above, an empty string if no ROIs are loaded from OMERO, or null if it could not be retrieved.
+	 */
+	private String getROIState(BatchImage image) {
+		String state = "";
+		ImageWrapper imageWrapper = image.getImageWrapper();
+		if (params.getROIMode() != ROIMode.DO_NOT_LOAD && imageWrapper != null) {
+			try {
+				state = roiFilter + "|" + roiFilter.getState(client, imageWrapper.getId());
+			} catch (DSOutOfServiceException | ServerError e) {
+				LOGGER.warning("Could not check the ROIs of image " + imageWrapper.getId() + ": " + e.getMessage());
+				state = null;
+			}
+		}
+		return state;
+	}
+
+
+	/**
+	 * Restores the results previously produced by the script on an image, if they are cached, and saves them.
+	 *
+	 * @param key          The cache key.
+	 * @param inputImageId The OMERO image input ID.
+	 * @param property     The ROI property used to group shapes in OMERO.
+	 *
+	 * @return True if the results were restored, false otherwise.
+	 */
+	private boolean replay(String key, Long inputImageId, String property) {
+		ResultCache.CachedResult result = cache != null && cache.contains(key) ? cache.load(key) : null;
+		if (result != null) {
+			setState("Restoring previous results...");
+			script.skip();
+
+			List<ImagePlus> imps = result.getImages();
+			imps.forEach(this::display);
+			WindowManager.setTempCurrentImage(imps.get(0));
+			if (result.getRoiSet() != null) {
+				rm.open(result.getRoiSet());
+			}
+			result.getTables().forEach((title, rt) -> rt.show(title));
+			if (result.getLog() != null) {
+				IJ.log(result.getLog());
+			}
+			save(result.getInput(), inputImageId, property);
+			WindowManager.setTempCurrentImage(null);
+		}
+		return result != null;
+	}
+
+
+	/**
+	 * Loads ROIs from an image in OMERO into ImageJ.
+	 *
+	 * @param image   The OMERO image.
+	 * @param imp     The image in ImageJ ROIs should be linked to.
+	 * @param roiMode The mode used to load ROIs.
+	 * @param filter  The filter applied on the server.
+	 */
+	private void loadROIs(ImageWrapper image, ImagePlus imp, ROIMode roiMode, ROIFilter filter) {
+		List<Roi> ijRois = new ArrayList<>(0);
+		try {
+			for (ROIWrapper roi : filter.load(client, image.getId())) {
+				try {
+					ijRois.addAll(ROIWrapper.toImageJ(Collections.singletonList(roi)));
+				} catch (RuntimeException e) {
+					LOGGER.warning("Could not convert ROI " + roi.getId() + ": " + e.getMessage());
+				}
+			}
+		} catch (DSOutOfServiceException | ServerError e) {
+			IJ.error("Could not load ROIs: " + e.getMessage());
+		}
+		if (roiMode == ROIMode.OVERLAY) {
+			Overlay overlay = imp.getOverlay();
+			if (overlay != null) {
+				overlay.clear();
+			} else {
+				overlay = new Overlay();
+				imp.setOverlay(overlay);
+			}
+			for (Roi ijRoi : ijRois) {
+				ijRoi.setImage(imp);
+				overlay.add(ijRoi, ijRoi.getName());
+			}
+		} else if (roiMode == ROIMode.MANAGER) {
+			rm.reset(); // Reset ROI manager to clear previous ROIs
+			for (Roi ijRoi : ijRois) {
+				ijRoi.setImage(imp);
+				rm.addRoi(ijRoi);
+			}
+		}
+	}
+
+
+	/**
+	 * Retrieves the output images which should be saved as new images.
+	 *
+	 * @param inputImage The input image in ImageJ.
+	 * @param outputs    The output images, starting with the current one.
+	 *
+	 * @return See above.
+	 */
+	private List<ImagePlus> getNewImages(ImagePlus inputImage, Collection<? extends ImagePlus> outputs) {
+		List<ImagePlus> newImages = new ArrayList<>(outputs);
+		ImagePlus outputImage = newImages.isEmpty() ? inputImage : newImages.get(0);
+
+		boolean annotatable = Boolean.parseBoolean(inputImage.getProp("Annotatable"));
+		boolean outputIsNotInput = !inputImage.equals(outputImage);
+		if (!params.isOutputOnOMERO() || !params.shouldSaveROIs() || annotatable || outputIsNotInput) {
+			newImages.removeIf(inputImage::equals);
+		}
+		return newImages;
+	}
+
+
+	/**
+	 * Saves the images, results and ROIs, or queues them until the new images are imported if they are imported in
+	 * groups.
+	 *
+	 * @param inputImage   The input image in ImageJ.
+	 * @param omeroInputId The OMERO image input ID.
+	 * @param property     The ROI property used to group shapes in OMERO.
+	 */
+	private void save(ImagePlus inputImage, Long omeroInputId, String property) {
+		List<ImagePlus> outputs = getOutputImages(inputImage);
+		List<ImagePlus> newImages = getNewImages(inputImage, outputs);
+		if (importer != null && !newImages.isEmpty()) {
+			queueImport(inputImage, omeroInputId, outputs, newImages);
+		} else {
+			save(inputImage, omeroInputId, outputs, property);
+		}
+	}
+
+
+	/**
+	 * Saves the images, results and ROIs.
+	 *
+	 * @param inputImage   The input image in ImageJ.
+	 * @param omeroInputId The OMERO image input ID.
+	 * @param outputs      The output images, starting with the current one.
+	 * @param property     The ROI property used to group shapes in OMERO.
+	 */
+	private void save(ImagePlus inputImage, Long omeroInputId, List<ImagePlus> outputs, String property) {
+		String inputTitle = removeExtension(inputImage.getTitle());
+
+		Long omeroOutputId = omeroInputId;
+		List<ImagePlus> newImages = getNewImages(inputImage, outputs);
+
+		ImagePlus outputImage = outputs.isEmpty() ? inputImage : outputs.get(0);
+		boolean outputIsNotInput = !inputImage.equals(outputImage);
+
+		if (params.shouldSaveImages()) {
+			List<Long> outputIds = saveImages(newImages, property);
+			if (!outputIds.isEmpty() && outputIsNotInput) {
+				omeroOutputId = outputIds.get(0);
+			}
+		}
+
+		if (params.shouldSaveROIs()) {
+			if (!params.shouldSaveImages()) {
+				saveOverlay(outputImage, omeroOutputId, inputTitle, property, false);
+			}
+			saveROIManager(outputImage, omeroOutputId, inputTitle, property);
+			if (params.shouldSyncROIs()) {
+				syncROIs(outputImage, omeroOutputId, property, !params.shouldSaveImages());
+			}
+		}
+		if (params.shouldSaveResults()) {
+			saveResults(outputImage, omeroOutputId, inputTitle, property);
+		}
+		if (params.shouldSaveLog()) {
+			saveLog(omeroOutputId, inputTitle);
+		}
+
+		for (ImagePlus imp : newImages) {
+			imp.changes = false;
+			imp.close();
+		}
+	}
+
+
+	/**
+	 * Writes the new images and queues them for import, keeping what is needed to save the ROIs, results and log once
+	 * their OMERO IDs are known.
+	 * <p>The images are hidden, so that they are kept until then.</p>
+	 *
+	 * @param inputImage   The input image in ImageJ.
+	 * @param omeroInputId The OMERO image input ID.
+	 * @param outputs      The output images, starting with the current one.
+	 * @param newImages    The output images to save as new images.
+	 */
+	private void queueImport(ImagePlus inputImage, Long omeroInputId, List<ImagePlus> outputs,
+							 Collection<? extends ImagePlus> newImages) {
+		Map<String, ResultsTable> results = new LinkedHashMap<>(1);
+		for (ResultsTable rt : getResultsTables()) {
+			results.put(rt.getTitle(), (ResultsTable) rt.clone());
+			rt.reset();
+		}
+		List<Roi> managed = getManagedRois(inputImage);
+		PendingSave pending = new PendingSave(inputImage, omeroInputId, outputs, managed, results,
+											  logCapture.getText());
+		for (ImagePlus imp : newImages) {
+			String title = removeExtension(imp.getTitle());
+			String path = writeImage(imp, getQueuedBase(title + params.getSuffix(), pending));
+			pending.paths.put(imp, path);
+			importer.add(path);
+		}
+		inputImage.hide();
+		outputs.forEach(ImagePlus::hide);
+		pendingSaves.add(pending);
+	}
+
+
+	/**
+	 * Returns the path, without extension, to which a queued image should be written: an image whose name is already
+	 * queued is written in a folder named after its position in the queue, so that the queued file is not overwritten
+	 * before it is imported, and the image keeps its name on OMERO.
+	 *
+	 * @param name    The file name, without extension.
+	 * @param pending The results being queued, which are not in the pending saves yet.
+	 *
+	 * @return See above.
+	 */
+	private String getQueuedBase(String name, PendingSave pending) {
+		String base = params.getDirectoryOut() + File.separator + name;
+		List<String> queued = new ArrayList<>(pending.paths.values());
+		pendingSaves.forEach(save -> queued.addAll(save.paths.values()));
+		if (queued.contains(base + ".tif") || queued.contains(base + ".ome.tif")) {
+			try {
+				Path folder = Paths.get(params.getDirectoryOut(), "queued_" + importer.size());
+				base = Files.createDirectories(folder).resolve(name).toString();
+			} catch (IOException e) {
+				LOGGER.warning("Queued image could be overwritten: " + e.getMessage());
+			}
+		}
+		return base;
+	}
+
+
+	/**
+	 * Imports the queued images to OMERO, then saves the ROIs, results and log of each of them as if they had just
+	 * been produced.
+	 *
+	 * @param property The ROI property used to group shapes in OMERO.
+	 */
+	private void flushImports(String property) {
+		if (!pendingSaves.isEmpty()) {
+			setState("Importing images on OMERO...");
+			Map<String, List<Long>> ids = new HashMap<>(0);
+			try {
+				DatasetWrapper dataset = client.getDataset(params.getOutputDatasetId());
+				ids = importer.flush(dataset);
+			} catch (AccessException | ServiceException | ExecutionException | DSOutOfServiceException |
+					 IOException e) {
+				IJ.error("Could not import images: " + e.getMessage());
+			}
+			for (PendingSave pending : pendingSaves) {
+				for (Entry<ImagePlus, String> entry : pending.paths.entrySet()) {
+					List<Long> imageIds = ids.get(entry.getValue());
+					if (imageIds == null) {
+						LOGGER.warning("Could not import image: " + entry.getValue());
+						imageIds = new ArrayList<>(0);
+					}
+					importedIds.put(entry.getKey(), imageIds);
+				}
+				logCapture.start();
+				if (pending.log != null && !pending.log.isEmpty()) {
+					IJ.log(pending.log);
+				}
+				declared = new ScriptOutputs(pending.outputs, pending.tables, pending.rois);
+				try {
+					declared.showUntitledTables();
+					save(pending.input, pending.inputId, pending.outputs, property);
+				} finally {
+					declared = null;
+				}
+				closeWindows();
+			}
+			pendingSaves.clear();
+			importedIds.clear();
+		}
+	}
+
+
+	/**
+	 * Saves images.
+	 *
+	 * @param outputs  The images to save.
+	 * @param property The ROI property used to group shapes in OMERO.
+	 *
+	 * @return The OMERO IDs of the (possibly) uploaded images.
+	 */
+	private List<Long> saveImages(Collection<? extends ImagePlus> outputs, String property) {
+		if (outputs.isEmpty()) {
+			LOGGER.info("Warning: there is no new image.");
+		}
+		List<Long> outputIds = new ArrayList<>(outputs.size());
+		outputs.forEach(imp -> outputIds.addAll(saveImage(imp, property)));
+		return outputIds;
+	}
+
+
+	/**
+	 * Saves an image.
+	 *
+	 * @param image    The image to save.
+	 * @param property The ROI property to group shapes in OMERO.
+	 *
+	 * @return The OMERO IDs of the (possibly) uploaded image. Should be empty or contain one value.
+	 */
+	private List<Long> saveImage(ImagePlus image, String property) {
+		String title = removeExtension(image.getTitle());
+		// Images imported in groups were already written and imported
+		List<Long> ids = importedIds.remove(image);
+		if (ids == null) {
+			ids = new ArrayList<>(0);
+			String path = writeImage(image, params.getDirectoryOut() + File.separator + title + params.getSuffix());
+			if (params.isOutputOnOMERO()) {
+				try {
+					setState("Import on OMERO...");
+					DatasetWrapper dataset = client.getDataset(params.getOutputDatasetId());
+					ids = dataset.importImage(client, path);
+				} catch (AccessException | ServiceException | OMEROServerError | ExecutionException e) {
+					IJ.error("Could not import image: " + e.getMessage());
+				}
+			}
+		}
+		if (params.isOutputOnOMERO() && params.shouldSaveROIs() && !ids.isEmpty()) {
+			saveOverlay(image, ids.get(0), title, property, true);
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Writes an image to a TIFF file, compressed and pyramidal if required.
+	 * <p>Compressed and pyramidal images are written as OME-TIFF by Bio-Formats. If this fails, an uncompressed TIFF
+	 * is written instead.</p>
+	 *
+	 * @param image The image.
+	 * @param base  The path to the file, without extension.
+	 *
+	 * @return The path to the file.
+	 */
+	private String writeImage(ImagePlus image, String base) {
+		ImageCompression compression = params.getCompression();
+		String path = base + ".tif";
+		boolean written = false;
+		boolean pyramidal = params.shouldSavePyramids();
+		if (compression != ImageCompression.NONE || pyramidal) {
+			setState(pyramidal ? "Building pyramid..." : "Compressing image...");
+			try {
+				new OMETiffExporter(compression, pyramidal).save(image, base + ".ome.tif");
+				path = base + ".ome.tif";
+				written = true;
+			} catch (IOException e) {
+				LOGGER.warning(e.getMessage());
+			}
+		}
+		if (!written) {
+			IJ.saveAsTiff(image, path);
+		}
+		return path;
+	}
+
+
+	/**
+	 * Saves the ROIs from an image overlay in ImageJ.
+	 * <p>The overlay of a new image is uploaded even when ROIs are synchronized, as there is nothing to synchronize
+	 * it with.</p>
+	 *
+	 * @param imp      The image.
+	 * @param imageId  The image ID on OMERO.
+	 * @param title    The image title used to name the file when saving locally.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 * @param newImage Whether the image was just imported on OMERO.
+	 */
+	private void saveOverlay(ImagePlus imp, Long imageId, String title, String property, boolean newImage) {
+		if (params.isOutputOnLocal()) {  //  local save
+			setState("Saving overlay ROIs...");
+			String timestamp = params.shouldClearROIs() ? "" : timestamp() + "_";
+			String path = params.getDirectoryOut() + File.separator +
+						  title + "_" + timestamp + "RoiSet.zip";
+			List<Roi> ijRois = getOverlay(imp);
+			saveRoiFile(ijRois, path);
+		}
+		if (params.isOutputOnOMERO() && imageId != null && (newImage || !params.shouldSyncROIs())) { // save on Omero
+			List<Roi> ijRois = getOverlay(imp);
+			try {
+				ImageWrapper image = client.getImage(imageId);
+				if (params.shouldClearROIs()) {
+					deleteROIs(image);
+				}
+				setState("Saving overlay ROIs on OMERO...");
+				uploadROIs(image, ijRois, property);
+				loadROIs(image, imp, ROIMode.OVERLAY, new ROIFilter()); // reload ROIs
+			} catch (ServiceException | AccessException | ExecutionException e) {
+				IJ.error("Could not import overlay ROIs to OMERO: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Saves the ROIs from the ROI Manager (for an image).
+	 *
+	 * @param imp      The image.
+	 * @param imageId  The image ID on OMERO.
+	 * @param title    The image title used to name the file when saving locally.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 */
+	private void saveROIManager(ImagePlus imp, Long imageId, String title, String property) {
 		if (params.isOutputOnLocal()) {  //  local save
 			setState("Saving ROIs...");
 			String timestamp = params.shouldClearROIs() ? "" : timestamp() + "_";
@@ -718,16 +1646,16 @@ public class OMEROBatchRunner extends Thread {
 			List<Roi> ijRois = getManagedRois(imp);
 			saveRoiFile(ijRois, path);
 		}
-		if (params.isOutputOnOMERO() && imageId != null) { // save on Omero
-			List<ROIWrapper> rois = getROIsFromManager(imp, property);
+		if (params.isOutputOnOMERO() && imageId != null && !params.shouldSyncROIs()) { // save on Omero
+			List<Roi> ijRois = getManagedRois(imp);
 			try {
 				ImageWrapper image = client.getImage(imageId);
 				if (params.shouldClearROIs()) {
 					deleteROIs(image);
 				}
 				setState("Saving ROIs on OMERO...");
-				image.saveROIs(client, rois);
-				loadROIs(image, imp, ROIMode.MANAGER); // reload ROIs
+				uploadROIs(image, ijRois, property);
+				loadROIs(image, imp, ROIMode.MANAGER, new ROIFilter()); // reload ROIs
 			} catch (ServiceException | AccessException | ExecutionException e) {
 				IJ.error("Could not import ROIs to OMERO: " + e.getMessage());
 			}
@@ -735,6 +1663,62 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Synchronizes the ROIs from the ROI Manager (and the overlay, if required) with the ROIs on OMERO: only new,
+	 * changed and removed ROIs are saved.
+	 *
+	 * @param imp      The image.
+	 * @param imageId  The image ID on OMERO.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 * @param overlay  Whether the overlay ROIs should also be synchronized.
+	 */
+	private void syncROIs(ImagePlus imp, Long imageId, String property, boolean overlay) {
+		if (params.isOutputOnOMERO() && imageId != null) {
+			setState("Synchronizing ROIs on OMERO...");
+			List<Roi> ijRois = getManagedRois(imp);
+			if (overlay) {
+				ijRois.addAll(getOverlay(imp));
+			}
+			try {
+				ImageWrapper image = client.getImage(imageId);
+				List<ROIWrapper> remote = roiFilter.load(client, imageId);
+				String summary = roiSynchronizer.sync(image, ijRois, property, remote);
+				LOGGER.info("ROIs synchronized for image " + imageId + ": " + summary);
+				if (overlay) {
+					loadROIs(image, imp, ROIMode.OVERLAY, new ROIFilter()); // reload ROIs
+				}
+				loadROIs(image, imp, ROIMode.MANAGER, new ROIFilter()); // reload ROIs
+			} catch (ServiceException | AccessException | ExecutionException | OMEROServerError |
+					 DSOutOfServiceException | ServerError e) {
+				IJ.error("Could not synchronize ROIs on OMERO: " + e.getMessage());
+			} catch (InterruptedException e) {
+				LOGGER.warning(e.getMessage());
+				currentThread().interrupt();
+			}
+		}
+	}
+
+
+	/**
+	 * Converts and uploads ROIs to OMERO in chunks, reporting the chunks which could not be uploaded.
+	 *
+	 * @param image    The image on OMERO.
+	 * @param ijRois   The ImageJ ROIs.
+	 * @param property The ROI property used to group shapes on OMERO.
+	 */
+	private void uploadROIs(ImageWrapper image, List<? extends Roi> ijRois, String property) {
+		try {
+			int failed = roiUploader.upload(image, ijRois, property);
+			if (failed > 0) {
+				IJ.error(format("Could not import %d chunk(s) of ROIs to OMERO.", failed));
+			}
+		} catch (InterruptedException e) {
+			LOGGER.warning(e.getMessage());
+			currentThread().interrupt();
+		}
+	}
+
+
 	/**
 	 * Saves the results (linked to an image).
 	 *
@@ -748,28 +1732,21 @@ public class OMEROBatchRunner extends Thread {
 		ijRois.addAll(getManagedRois(imp));
 
 		setState("Saving results files...");
-		String[] candidates = WindowManager.getNonImageTitles();
-		List<ResultsTable> results = Arrays.stream(candidates)
-										   .map(ResultsTable::getResultsTable)
-										   .collect(Collectors.toList());
-		results.add(0, ResultsTable.getResultsTable());
-		Map<String, Boolean> processed = new HashMap<>(results.size());
-		for (ResultsTable rt : results) {
-			if (rt != null) {
-				String name = rt.getTitle();
-				if (!Boolean.TRUE.equals(processed.get(name)) && rt.getHeadings().length > 0) {
-					String path = params.getDirectoryOut() +
-								  File.separator +
-								  name + "_" +
-								  title + "_" +
-								  timestamp() + ".csv";
-					rt.save(path);
-					appendTable(rt, imageId, ijRois, property);
-					uploadFileToImage(imageId, path);
-					rt.reset();
-					processed.put(name, true);
-				}
+		for (ResultsTable rt : getResultsTables()) {
+			String path = params.getDirectoryOut() +
+						  File.separator +
+						  rt.getTitle() + "_" +
+						  title + "_" +
+						  timestamp() + ".csv";
+			rt.save(path);
+			appendColumnar(rt, title);
+			if (summary != null) {
+				summary.add(rt, batchName, title);
 			}
+			appendTable(rt, imageId, ijRois, property);
+			addKeyValues(rt, imageId);
+			uploadFileToImage(imageId, title, path);
+			rt.reset();
 		}
 	}
 
@@ -782,20 +1759,26 @@ public class OMEROBatchRunner extends Thread {
 	 */
 	private void saveLog(Long imageId, String title) {
 		String path = params.getDirectoryOut() + File.separator + title + "_log.txt";
-		IJ.selectWindow("Log");
-		IJ.saveAs("txt", path);
-		uploadFileToImage(imageId, path);
+		try {
+			Files.write(Paths.get(path), logCapture.getText().getBytes(StandardCharsets.UTF_8));
+			uploadFileToImage(imageId, title, path);
+		} catch (IOException e) {
+			IJ.error("Could not save log: " + e.getMessage());
+		}
 	}
 
 
 	/**
-	 * Uploads a file to an image on OMERO.
+	 * Uploads a file to an image on OMERO, or adds it to the archive of the current batch if attachments are bundled.
 	 *
 	 * @param imageId The image ID on OMERO.
+	 * @param title   The image title.
 	 * @param path    The path to the file.
 	 */
-	private void uploadFileToImage(Long imageId, String path) {
-		if (imageId != null && params.isOutputOnOMERO()) {
+	private void uploadFileToImage(Long imageId, String title, String path) {
+		if (imageId != null && params.isOutputOnOMERO() && params.shouldBundleAttachments()) {
+			bundle(imageId, title, path);
+		} else if (imageId != null && params.isOutputOnOMERO()) {
 			ImageWrapper image = null;
 			try {
 				setState("Uploading results files...");
@@ -808,6 +1791,63 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Adds a file attached to an image to the archive of the current batch, creating it if needed. If this fails, the
+	 * file is uploaded to the image instead.
+	 *
+	 * @param imageId The image ID on OMERO.
+	 * @param title   The image title.
+	 * @param path    The path to the file.
+	 */
+	private void bundle(long imageId, String title, String path) {
+		try {
+			if (attachments == null) {
+				String name = batchName + "_attachments_" + timestamp() + ".zip";
+				attachments = new AttachmentArchive(Paths.get(params.getDirectoryOut(), name));
+			}
+			attachments.add(Paths.get(path), imageId, title);
+		} catch (IOException e) {
+			LOGGER.warning("Could not add file to archive: " + e.getMessage());
+			try {
+				uploadFile(client.getImage(imageId), path);
+			} catch (ExecutionException | ServiceException | AccessException ex) {
+				IJ.error("Error retrieving image:" + ex.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the archive of the current batch and uploads it to the output project or screen.
+	 */
+	private void uploadAttachments() {
+		if (attachments != null) {
+			setState("Uploading attachments...");
+			boolean empty = attachments.isEmpty();
+			String path = attachments.getPath().toString();
+			closeAttachments();
+			if (!empty) {
+				uploadFile(getOutputContainer(), path);
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the archive of the current batch, if any.
+	 */
+	private void closeAttachments() {
+		if (attachments != null) {
+			try {
+				attachments.close();
+			} catch (IOException e) {
+				LOGGER.warning("Could not close attachment archive: " + e.getMessage());
+			}
+			attachments = null;
+		}
+	}
+
+
 	/**
 	 * Uploads a file to an annotatable object on OMERO.
 	 *
@@ -816,18 +1856,54 @@ public class OMEROBatchRunner extends Thread {
 	 */
 	private void uploadFile(AnnotatableWrapper<?> object, String path) {
 		if (object != null && params.isOutputOnOMERO()) {
-			try {
-				object.addFile(client, new File(path));
-			} catch (ExecutionException e) {
-				IJ.error("Error adding file to object:" + e.getMessage());
-			} catch (InterruptedException e) {
-				IJ.error("Error adding file to object:" + e.getMessage());
-				currentThread().interrupt();
+			if (transfers != null) {
+				pendingTransfers.add(transfers.submit(() -> transferFile(object, path)));
+			} else {
+				addFile(client, object, path);
 			}
 		}
 	}
 
 
+	/**
+	 * Uploads a file to an annotatable object on OMERO with a session borrowed from the pool.
+	 *
+	 * @param object The object on OMERO.
+	 * @param path   The path to the file.
+	 */
+	private void transferFile(AnnotatableWrapper<?> object, String path) {
+		Client session = null;
+		try {
+			session = sessions.borrow();
+			addFile(session, object, path);
+		} catch (InterruptedException e) {
+			IJ.error("Error adding file to object:" + e.getMessage());
+			currentThread().interrupt();
+		} finally {
+			sessions.release(session);
+		}
+	}
+
+
+	/**
+	 * Uploads a file to an annotatable object on OMERO.
+	 *
+	 * @param session The OMERO client.
+	 * @param object  The object on OMERO.
+	 * @param path    The path to the file.
+	 */
+	private void addFile(Client session, AnnotatableWrapper<?> object, String path) {
+		try {
+			object.addFile(session, new File(path));
+		} catch (ExecutionException e) {
+			IJ.error("Error adding file to object:" + e.getMessage());
+		} catch (InterruptedException e) {
+			IJ.error("Error adding file to object:" + e.getMessage());
+			currentThread().interrupt();
+		}
+	}
+
+
 	/**
 	 * Adds the current results to the corresponding table.
 	 *
@@ -851,6 +1927,77 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Queues the scalar results of a table as key-value pairs on an image, if required.
+	 *
+	 * @param results The results table.
+	 * @param imageId The image ID on OMERO.
+	 */
+	private void addKeyValues(ResultsTable results, Long imageId) {
+		if (keyValues != null && imageId != null) {
+			try {
+				keyValues.add(imageId, results);
+			} catch (DSOutOfServiceException e) {
+				IJ.error("Could not save key-value pairs: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Saves the queued key-value pairs, if any.
+	 */
+	private void flushKeyValues() {
+		if (keyValues != null) {
+			setState("Saving key-value pairs...");
+			try {
+				keyValues.flush();
+			} catch (DSOutOfServiceException e) {
+				IJ.error("Could not save key-value pairs: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Appends the current results to the corresponding columnar output, if required.
+	 *
+	 * @param results The results table.
+	 * @param title   The image title.
+	 */
+	private void appendColumnar(ResultsTable results, String title) {
+		if (params.shouldSaveColumnarResults() && params.isOutputOnLocal()) {
+			String resultsName = results.getTitle();
+			try {
+				ColumnarResults output = columnar.get(resultsName);
+				if (output == null) {
+					String name = resultsName + "_" + batchName + "_columns";
+					output = new ColumnarResults(Paths.get(params.getDirectoryOut(), name));
+					columnar.put(resultsName, output);
+				}
+				output.append(results, title);
+			} catch (IOException e) {
+				IJ.error("Could not write columnar results: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the columnar outputs for the current batch.
+	 */
+	private void closeColumnar() {
+		for (ColumnarResults output : columnar.values()) {
+			try {
+				output.close();
+			} catch (IOException e) {
+				LOGGER.warning("Could not close columnar results: " + e.getMessage());
+			}
+		}
+		columnar.clear();
+	}
+
+
 	/**
 	 * Uploads a table to a project, if required.
 	 *
@@ -868,29 +2015,40 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Retrieves the project or screen where tables are uploaded on OMERO.
+	 *
+	 * @return See above, or null if results are not saved on OMERO or the container could not be retrieved.
+	 */
+	private AnnotatableWrapper<?> getOutputContainer() {
+		AnnotatableWrapper<?> ctner = null;
+		if (params.isOutputOnOMERO()) {
+			String type = "container";
+			try {
+				if (params.getOutputProjectId() > 0) {
+					type = "project";
+					ctner = client.getProject(params.getOutputProjectId());
+				} else {
+					type = "screen";
+					ctner = client.getScreen(params.getOutputScreenId());
+				}
+			} catch (ExecutionException | ServiceException | AccessException e) {
+				String msg = e.getMessage();
+				String err = format("Could not retrieve %s: %s", type, msg);
+				IJ.error(err);
+			}
+		}
+		return ctner;
+	}
+
+
 	/**
 	 * Upload the tables to OMERO.
 	 */
 	private void uploadTables(String parentName) {
-		AnnotatableWrapper<?> ctner = null;
 		if (params.shouldSaveResults()) {
 			setState("Uploading tables...");
-			if (params.isOutputOnOMERO()) {
-				String type = "container";
-				try {
-					if (params.getOutputProjectId() > 0) {
-						type = "project";
-						ctner = client.getProject(params.getOutputProjectId());
-					} else {
-						type = "screen";
-						ctner = client.getScreen(params.getOutputScreenId());
-					}
-				} catch (ExecutionException | ServiceException | AccessException e) {
-					String msg = e.getMessage();
-					String err = format("Could not retrieve %s: %s", type, msg);
-					IJ.error(err);
-				}
-			}
+			AnnotatableWrapper<?> ctner = getOutputContainer();
 			for (Entry<String, TableWrapper> entry : tables.entrySet()) {
 				String name = entry.getKey() + "_" + parentName;
 				TableWrapper table = entry.getValue();
@@ -904,16 +2062,40 @@ public class OMEROBatchRunner extends Thread {
 	}
 
 
+	/**
+	 * Saves the summary of the results and uploads it to OMERO, if required.
+	 */
+	private void saveSummary() {
+		if (summary != null && !summary.isEmpty()) {
+			setState("Saving summary...");
+			ResultsTable table = summary.toResultsTable();
+			String path = params.getDirectoryOut() + File.separator + "Summary_" + timestamp() + ".csv";
+			table.save(path);
+			uploadFile(getOutputContainer(), path);
+		}
+	}
+
+
 	/**
 	 * Closes all open windows in ImageJ.
 	 */
 	private void closeWindows() {
 		for (Frame frame : WindowManager.getNonImageWindows()) {
-			if (frame instanceof TextWindow) {
+			// The Log window is kept: the log of each image is captured from its content
+			if (frame instanceof TextWindow && !"Log".equals(frame.getTitle())) {
 				((TextWindow) frame).close(false);
 			}
 		}
 		rm.reset();
+		if (Interpreter.isBatchMode()) {
+			for (int id : Interpreter.getBatchModeImageIDs()) {
+				ImagePlus imp = WindowManager.getImage(id);
+				if (imp != null) {
+					imp.changes = false;
+					imp.close();
+				}
+			}
+		}
 		WindowManager.closeAllWindows();
 	}
 
@@ -937,4 +2119,54 @@ public class OMEROBatchRunner extends Thread {
 		this.listener = listener;
 	}
 
+
+	/**
+	 * What is needed to save the results of an image once its output images have been imported.
+	 */
+	private static class PendingSave {
+
+		/** The input image. */
+		private final ImagePlus input;
+
+		/** The OMERO image input ID. */
+		private final Long inputId;
+
+		/** The output images, starting with the current one. */
+		private final List<ImagePlus> outputs;
+
+		/** The ROIs from the ROI Manager. */
+		private final List<Roi> rois;
+
+		/** The results tables, by title. */
+		private final Map<String, ResultsTable> tables;
+
+		/** The log. */
+		private final String log;
+
+		/** The paths to the files written for the new images. */
+		private final Map<ImagePlus, String> paths = new LinkedHashMap<>(1);
+
+
+		/**
+		 * Creates a new pending save.
+		 *
+		 * @param input   The input image.
+		 * @param inputId The OMERO image input ID.
+		 * @param outputs The output images, starting with the current one.
+		 * @param rois    The ROIs from the ROI Manager.
+		 * @param tables  The results tables, by title.
+		 * @param log     The log.
+		 */
+		PendingSave(ImagePlus input, Long inputId, List<ImagePlus> outputs, List<Roi> rois,
+					Map<String, ResultsTable> tables, String log) {
+			this.input = input;
+			this.inputId = inputId;
+			this.outputs = new ArrayList<>(outputs);
+			this.rois = new ArrayList<>(rois);
+			this.tables = tables;
+			this.log = log;
+		}
+
+	}
+
 }
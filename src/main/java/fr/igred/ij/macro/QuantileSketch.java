@@ -0,0 +1,151 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Approximate quantiles of a stream of values, in bounded memory.
+ * <p>Values are kept in buffers of increasing weight: when a buffer is full, it is sorted and every other value is
+ * moved to the next buffer, with twice the weight. Sketches can be merged.</p>
+ */
+public class QuantileSketch {
+
+	/** The number of values kept per buffer. */
+	private static final int CAPACITY = 128;
+
+	/** The buffers: values in buffer {@code i} have a weight of {@code 2^i}. */
+	private final List<double[]> levels = new ArrayList<>(4);
+
+	/** The number of values in each buffer. */
+	private final List<Integer> sizes = new ArrayList<>(4);
+
+	/** Whether the next compaction keeps odd positions (alternated to avoid bias). */
+	private boolean odd = false;
+
+
+	/**
+	 * Adds a value.
+	 *
+	 * @param value The value.
+	 */
+	public void add(double value) {
+		insert(0, value);
+	}
+
+
+	/**
+	 * Adds the values summarized by another sketch.
+	 *
+	 * @param other The other sketch.
+	 */
+	public void merge(QuantileSketch other) {
+		for (int level = 0; level < other.levels.size(); level++) {
+			double[] buffer = Arrays.copyOf(other.levels.get(level), other.sizes.get(level));
+			for (double value : buffer) {
+				insert(level, value);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the approximate quantile.
+	 *
+	 * @param q The quantile, between 0 and 1.
+	 *
+	 * @return See above, or NaN if no value was added.
+	 */
+	public double getQuantile(double q) {
+		int count = 0;
+		for (Integer size : sizes) {
+			count += size;
+		}
+		double[] values = new double[count];
+		long[] weights = new long[count];
+		long total = 0L;
+		int index = 0;
+		for (int level = 0; level < levels.size(); level++) {
+			double[] buffer = levels.get(level);
+			for (int i = 0; i < sizes.get(level); i++) {
+				values[index] = buffer[i];
+				weights[index] = 1L << level;
+				total += weights[index];
+				index++;
+			}
+		}
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i, j) -> Double.compare(values[i], values[j]));
+
+		double quantile = Double.NaN;
+		double rank = Math.min(Math.max(q, 0.0d), 1.0d) * total;
+		long cumulated = 0L;
+		for (int i = 0; i < count && Double.isNaN(quantile); i++) {
+			cumulated += weights[order[i]];
+			if (cumulated >= rank) {
+				quantile = values[order[i]];
+			}
+		}
+		return quantile;
+	}
+
+
+	/**
+	 * Inserts a value in a buffer, and compacts the buffer if it is full.
+	 *
+	 * @param level The buffer level.
+	 * @param value The value.
+	 */
+	private void insert(int level, double value) {
+		while (levels.size() <= level) {
+			levels.add(new double[CAPACITY]);
+			sizes.add(0);
+		}
+		int size = sizes.get(level);
+		levels.get(level)[size] = value;
+		sizes.set(level, size + 1);
+		if (size + 1 == CAPACITY) {
+			compact(level);
+		}
+	}
+
+
+	/**
+	 * Moves every other value of a full buffer to the next one.
+	 *
+	 * @param level The buffer level.
+	 */
+	private void compact(int level) {
+		double[] buffer = levels.get(level);
+		Arrays.sort(buffer);
+		sizes.set(level, 0);
+		levels.set(level, new double[CAPACITY]);
+		int offset = odd ? 1 : 0;
+		odd = !odd;
+		for (int i = offset; i < CAPACITY; i += 2) {
+			insert(level + 1, buffer[i]);
+		}
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import ij.measure.ResultsTable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Summary statistics of the numeric columns of results tables, updated as tables are added during the batch.
+ * <p>Rows are grouped by input (dataset or plate), by image, or by the value of a column.</p>
+ */
+public class ResultsSummary {
+
+	/** The grouping key to disable the summary. */
+	public static final String NONE = "None";
+	/** The grouping key to group rows by input (dataset or plate). */
+	public static final String BY_INPUT = "Input";
+	/** The grouping key to group rows by image. */
+	public static final String BY_IMAGE = "Image";
+
+	/** The heading of the row labels column. */
+	private static final String LABEL = "Label";
+
+	/** The grouping key. */
+	private final String key;
+
+	/** The statistics, per table title, group and column. */
+	private final Map<String, Map<String, Map<String, Statistics>>> statistics = new LinkedHashMap<>(2);
+
+
+	/**
+	 * Creates a new summary.
+	 *
+	 * @param key The grouping key: {@link #BY_INPUT}, {@link #BY_IMAGE} or a column heading.
+	 */
+	public ResultsSummary(String key) {
+		this.key = key;
+	}
+
+
+	/**
+	 * Checks whether a grouping key enables the summary.
+	 *
+	 * @param key The grouping key.
+	 *
+	 * @return See above.
+	 */
+	public static boolean isEnabled(String key) {
+		return key != null && !key.trim().isEmpty() && !NONE.equals(key);
+	}
+
+
+	/**
+	 * Returns the group of a row.
+	 *
+	 * @param results The results table.
+	 * @param row     The row.
+	 * @param input   The input (dataset or plate) name.
+	 * @param image   The image title.
+	 *
+	 * @return See above.
+	 */
+	private String getGroup(ResultsTable results, int row, String input, String image) {
+		String group;
+		if (BY_INPUT.equals(key)) {
+			group = input;
+		} else if (BY_IMAGE.equals(key)) {
+			group = image;
+		} else if (results.columnExists(key)) {
+			group = results.getStringValue(key, row);
+		} else if (LABEL.equals(key)) {
+			group = results.getLabel(row);
+		} else {
+			group = "";
+		}
+		return group == null ? "" : group;
+	}
+
+
+	/**
+	 * Adds the rows of a results table.
+	 *
+	 * @param results The results table.
+	 * @param input   The input (dataset or plate) name.
+	 * @param image   The image title.
+	 */
+	public void add(ResultsTable results, String input, String image) {
+		Map<String, Map<String, Statistics>> groups = statistics.computeIfAbsent(results.getTitle(),
+																				  k -> new LinkedHashMap<>(1));
+		for (int row = 0; row < results.size(); row++) {
+			String group = getGroup(results, row, input, image);
+			Map<String, Statistics> columns = groups.computeIfAbsent(group, k -> new LinkedHashMap<>());
+			for (String heading : results.getHeadings()) {
+				if (results.columnExists(heading) && !heading.equals(key)) {
+					double value = results.getValue(heading, row);
+					if (!Double.isNaN(value)) {
+						columns.computeIfAbsent(heading, k -> new Statistics()).add(value);
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Checks whether any value was added.
+	 *
+	 * @return See above.
+	 */
+	public boolean isEmpty() {
+		return statistics.values()
+						 .stream()
+						 .flatMap(groups -> groups.values().stream())
+						 .allMatch(Map::isEmpty);
+	}
+
+
+	/**
+	 * Returns the summary as a results table, with one row per table, group and column.
+	 *
+	 * @return See above.
+	 */
+	public ResultsTable toResultsTable() {
+		ResultsTable summary = new ResultsTable();
+		for (Map.Entry<String, Map<String, Map<String, Statistics>>> table : statistics.entrySet()) {
+			for (Map.Entry<String, Map<String, Statistics>> group : table.getValue().entrySet()) {
+				for (Map.Entry<String, Statistics> column : group.getValue().entrySet()) {
+					Statistics stats = column.getValue();
+					summary.incrementCounter();
+					summary.addValue("Table", table.getKey());
+					summary.addValue("Group", group.getKey());
+					summary.addValue("Column", column.getKey());
+					summary.addValue("Count", stats.getCount());
+					summary.addValue("Mean", stats.getMean());
+					summary.addValue("Variance", stats.getVariance());
+					summary.addValue("Min", stats.getMin());
+					summary.addValue("Q1", stats.getQuantile(0.25));
+					summary.addValue("Median", stats.getQuantile(0.5));
+					summary.addValue("Q3", stats.getQuantile(0.75));
+					summary.addValue("Max", stats.getMax());
+				}
+			}
+		}
+		return summary;
+	}
+
+
+	/**
+	 * Running statistics of a column: count, mean, variance (Welford's algorithm), extrema and approximate
+	 * quantiles.
+	 */
+	public static class Statistics {
+
+		/** The approximate quantiles. */
+		private final QuantileSketch sketch = new QuantileSketch();
+
+		/** The number of values. */
+		private long count = 0L;
+		/** The mean. */
+		private double mean = 0.0d;
+		/** The sum of squared differences to the mean. */
+		private double squares = 0.0d;
+		/** The minimum. */
+		private double min = Double.POSITIVE_INFINITY;
+		/** The maximum. */
+		private double max = Double.NEGATIVE_INFINITY;
+
+
+		/**
+		 * Adds a value.
+		 *
+		 * @param value The value.
+		 */
+		public void add(double value) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			squares += delta * (value - mean);
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sketch.add(value);
+		}
+
+
+		/**
+		 * Adds the values summarized by other statistics.
+		 *
+		 * @param other The other statistics.
+		 */
+		public void merge(Statistics other) {
+			if (other.count > 0) {
+				long total = count + other.count;
+				double delta = other.mean - mean;
+				mean += delta * other.count / total;
+				squares += other.squares + delta * delta * count * other.count / total;
+				count = total;
+				min = Math.min(min, other.min);
+				max = Math.max(max, other.max);
+				sketch.merge(other.sketch);
+			}
+		}
+
+
+		/**
+		 * Returns the number of values.
+		 *
+		 * @return See above.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+
+		/**
+		 * Returns the mean.
+		 *
+		 * @return See above.
+		 */
+		public double getMean() {
+			return count > 0 ? mean : Double.NaN;
+		}
+
+
+		/**
+		 * Returns the sample variance.
+		 *
+		 * @return See above.
+		 */
+		public double getVariance() {
+			return count > 1 ? squares / (count - 1) : Double.NaN;
+		}
+
+
+		/**
+		 * Returns the minimum.
+		 *
+		 * @return See above.
+		 */
+		public double getMin() {
+			return count > 0 ? min : Double.NaN;
+		}
+
+
+		/**
+		 * Returns the maximum.
+		 *
+		 * @return See above.
+		 */
+		public double getMax() {
+			return count > 0 ? max : Double.NaN;
+		}
+
+
+		/**
+		 * Returns the approximate quantile.
+		 *
+		 * @param q The quantile, between 0 and 1.
+		 *
+		 * @return See above.
+		 */
+		public double getQuantile(double q) {
+			return sketch.getQuantile(q);
+		}
+
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import org.scijava.table.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * The images, results tables and ROIs declared as outputs by a script.
+ * <p>When the outputs are exclusive, the script left nothing else in ImageJ. Otherwise, the outputs of each type are
+ * only used if the script declared some, so that scripts which display their results instead still work.</p>
+ */
+public class ScriptOutputs {
+
+	/** The output images, in the order they were declared. */
+	private final List<ImagePlus> images = new ArrayList<>(1);
+
+	/** The output results tables, by title. */
+	private final Map<String, ResultsTable> tables = new LinkedHashMap<>(1);
+
+	/** The output ROIs. */
+	private final List<Roi> rois = new ArrayList<>(0);
+
+	/** Whether the script left nothing else in ImageJ. */
+	private final boolean exclusive;
+
+
+	/**
+	 * Sorts the outputs of a script by type. Values of other types are ignored.
+	 *
+	 * @param outputs   The script outputs, by name.
+	 * @param exclusive Whether the script left nothing else in ImageJ.
+	 */
+	public ScriptOutputs(Map<String, Object> outputs, boolean exclusive) {
+		this.exclusive = exclusive;
+		for (Map.Entry<String, Object> output : outputs.entrySet()) {
+			Object value = output.getValue();
+			if (value instanceof ImagePlus) {
+				images.add((ImagePlus) value);
+			} else if (value instanceof ResultsTable) {
+				ResultsTable rt = (ResultsTable) value;
+				String title = rt.getTitle() != null ? rt.getTitle() : output.getKey();
+				tables.putIfAbsent(title, rt);
+			} else if (value instanceof Table) {
+				tables.putIfAbsent(output.getKey(), toResultsTable((Table<?, ?>) value));
+			} else if (value instanceof Roi) {
+				rois.add((Roi) value);
+			} else if (value instanceof Roi[]) {
+				rois.addAll(Arrays.asList((Roi[]) value));
+			} else if (value instanceof Overlay) {
+				rois.addAll(Arrays.asList(((Overlay) value).toArray()));
+			}
+		}
+		rois.removeIf(Objects::isNull);
+	}
+
+
+	/**
+	 * Gathers outputs which were already sorted. They are exclusive.
+	 *
+	 * @param images The output images.
+	 * @param tables The output results tables, by title.
+	 * @param rois   The output ROIs.
+	 */
+	public ScriptOutputs(Collection<? extends ImagePlus> images, Map<String, ? extends ResultsTable> tables,
+						 Collection<? extends Roi> rois) {
+		this.exclusive = true;
+		this.images.addAll(images);
+		this.tables.putAll(tables);
+		this.rois.addAll(rois);
+	}
+
+
+	/**
+	 * Converts a SciJava table to a results table.
+	 *
+	 * @param table The SciJava table.
+	 *
+	 * @return See above.
+	 */
+	private static ResultsTable toResultsTable(Table<?, ?> table) {
+		ResultsTable rt = new ResultsTable(table.getRowCount());
+		for (int row = 0; row < table.getRowCount(); row++) {
+			String label = table.getRowHeader(row);
+			if (label != null) {
+				rt.setLabel(label, row);
+			}
+			for (int col = 0; col < table.getColumnCount(); col++) {
+				String heading = table.getColumnHeader(col);
+				if (heading == null) {
+					heading = "C" + (col + 1);
+				}
+				Object value = table.get(col, row);
+				if (value instanceof Number) {
+					rt.setValue(heading, row, ((Number) value).doubleValue());
+				} else {
+					rt.setValue(heading, row, String.valueOf(value));
+				}
+			}
+		}
+		return rt;
+	}
+
+
+	/**
+	 * Returns the output images.
+	 *
+	 * @return See above.
+	 */
+	public List<ImagePlus> getImages() {
+		return Collections.unmodifiableList(images);
+	}
+
+
+	/**
+	 * Returns the output results tables, by title.
+	 *
+	 * @return See above.
+	 */
+	public Map<String, ResultsTable> getTables() {
+		return Collections.unmodifiableMap(tables);
+	}
+
+
+	/**
+	 * Returns the output ROIs.
+	 *
+	 * @return See above.
+	 */
+	public List<Roi> getROIs() {
+		return Collections.unmodifiableList(rois);
+	}
+
+
+	/**
+	 * Checks whether the output images should be used instead of the images open in ImageJ.
+	 *
+	 * @return See above.
+	 */
+	public boolean declaresImages() {
+		return exclusive || !images.isEmpty();
+	}
+
+
+	/**
+	 * Checks whether the output results tables should be used instead of the results tables open in ImageJ.
+	 *
+	 * @return See above.
+	 */
+	public boolean declaresTables() {
+		return exclusive || !tables.isEmpty();
+	}
+
+
+	/**
+	 * Checks whether the output ROIs should be used instead of the ROIs in the ROI Manager.
+	 *
+	 * @return See above.
+	 */
+	public boolean declaresROIs() {
+		return exclusive || !rois.isEmpty();
+	}
+
+
+	/**
+	 * Shows the output results tables which have no title under their output name, so that they get one.
+	 */
+	public void showUntitledTables() {
+		tables.forEach((name, rt) -> {
+			if (rt.getTitle() == null) {
+				rt.show(name);
+			}
+		});
+	}
+
+
+	/**
+	 * Checks whether the script declared no image, results table or ROI output.
+	 *
+	 * @return See above.
+	 */
+	public boolean isEmpty() {
+		return images.isEmpty() && tables.isEmpty() && rois.isEmpty();
+	}
+
+}
@@ -19,7 +19,24 @@ package fr.igred.ij.macro;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Macro;
+import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.macro.Interpreter;
+import ij.macro.Program;
+import ij.macro.Tokenizer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
 
 
 /**
@@ -27,10 +44,25 @@ import ij.gui.GenericDialog;
  */
 public class ScriptRunner {
 
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
+
+	/** The code which makes a macro depend on its file: these macros are run from their file. */
+	private static final String[] FILE_CONTEXT = {"#include", "macro.filepath"};
+
+	/** The extensions of the files which contain ImageJ macros (other scripts are run by their own interpreter). */
+	private static final String[] MACRO_EXTENSIONS = {".ijm", ".txt"};
+
+	/** The images open in batch mode when the last script ended, the current one first. */
+	private final List<ImagePlus> batchModeImages = new ArrayList<>(0);
 	/** The path to the macro. */
 	private final String path;
 	/** The arguments for the macro. */
 	private String arguments = "";
+	/** The tokenized macro, reused across images until the macro is reset. */
+	private Program program;
+	/** Whether the script has to be run from its file: it is not a macro, or the macro depends on its file. */
+	private boolean fromFile;
 
 
 	/**
@@ -91,6 +123,16 @@ public class ScriptRunner {
 	}
 
 
+	/**
+	 * Retrieves the path to the macro.
+	 *
+	 * @return See above.
+	 */
+	protected String getPath() {
+		return path;
+	}
+
+
 	/**
 	 * Retrieves the arguments for the macro.
 	 *
@@ -136,9 +178,9 @@ public class ScriptRunner {
 
 
 	/**
-	 * Runs the macro.
+	 * Updates the arguments as if the macro was run, without running it.
 	 */
-	public void run() {
+	public void skip() {
 		try {
 			int n = Integer.parseInt(arguments);
 			arguments = String.valueOf(n + 1);
@@ -147,15 +189,134 @@ public class ScriptRunner {
 				arguments = "0";
 			}
 		}
-		IJ.runMacroFile(path, arguments);
 	}
 
 
 	/**
-	 * Resets the macro. Does nothing for macros in IJ1.
+	 * Runs the script.
+	 * <p>Outside batch mode, a macro is tokenized once, then run directly by the interpreter, unless it depends on its
+	 * file (includes, or its own path). Other scripts, and all scripts in batch mode, are run from their file, as
+	 * usual: ImageJ then chooses the interpreter from the file extension, and keeps the batch mode images when the
+	 * script ends, even if it exits early.</p>
+	 * <p>The images open in batch mode are collected once the script has ended.</p>
+	 */
+	public void run() {
+		skip();
+		batchModeImages.clear();
+		try {
+			Program tokenized = Interpreter.isBatchMode() ? null : tokenize();
+			if (tokenized != null) {
+				Interpreter interpreter = new Interpreter();
+				interpreter.setArgument(arguments);
+				try {
+					interpreter.run(tokenized);
+				} catch (RuntimeException e) {
+					// Errors are reported by the interpreter, which then aborts the macro
+					if (!Macro.MACRO_CANCELED.equals(e.getMessage())) {
+						LOGGER.warning("Macro aborted: " + e.getMessage());
+					}
+				}
+			} else {
+				IJ.runMacroFile(path, arguments);
+			}
+		} finally {
+			collectBatchModeImages();
+		}
+	}
+
+
+	/**
+	 * Returns the images open in batch mode when the macro ended, the current one first.
+	 *
+	 * @return See above, or an empty list if the macro was not run in batch mode.
+	 */
+	public List<ImagePlus> getBatchModeImages() {
+		return new ArrayList<>(batchModeImages);
+	}
+
+
+	/**
+	 * Keeps the images open in batch mode, the current one first.
+	 */
+	private void collectBatchModeImages() {
+		batchModeImages.clear();
+		if (Interpreter.isBatchMode()) {
+			ImagePlus current = WindowManager.getCurrentImage();
+			if (current != null) {
+				batchModeImages.add(current);
+			}
+			for (int id : Interpreter.getBatchModeImageIDs()) {
+				ImagePlus imp = WindowManager.getImage(id);
+				if (imp != null && !batchModeImages.contains(imp)) {
+					batchModeImages.add(imp);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the outputs declared by the script during its last run. Macros do not declare outputs: their results
+	 * are retrieved from ImageJ, except for the images collected in batch mode.
+	 *
+	 * @return See above.
+	 */
+	public ScriptOutputs getOutputs() {
+		List<ImagePlus> images = getBatchModeImages();
+		Map<String, Object> outputs = new LinkedHashMap<>(images.size());
+		for (int i = 0; i < images.size(); i++) {
+			outputs.put("image" + i, images.get(i));
+		}
+		return new ScriptOutputs(outputs, false);
+	}
+
+
+	/**
+	 * Checks whether the script is an ImageJ macro, from its extension.
+	 *
+	 * @return See above.
+	 */
+	private boolean isMacro() {
+		String name = path.toLowerCase(Locale.ROOT);
+		boolean macro = false;
+		for (String extension : MACRO_EXTENSIONS) {
+			macro |= name.endsWith(extension);
+		}
+		return macro;
+	}
+
+
+	/**
+	 * Reads and tokenizes the macro the first time it is run.
+	 *
+	 * @return The tokenized macro, or null if it could not be read, if it is not a macro or if it depends on its file.
+	 */
+	private Program tokenize() {
+		fromFile |= !isMacro();
+		if (program == null && !fromFile) {
+			try {
+				byte[] bytes = Files.readAllBytes(Paths.get(path));
+				String source = new String(bytes, StandardCharsets.UTF_8);
+				for (String code : FILE_CONTEXT) {
+					fromFile |= source.contains(code);
+				}
+				if (!fromFile) {
+					program = new Tokenizer().tokenize(source);
+				}
+			} catch (IOException e) {
+				LOGGER.warning("Could not read macro: " + e.getMessage());
+			}
+		}
+		return program;
+	}
+
+
+	/**
+	 * Resets the macro (discards the tokenized macro, so that it is read again on the next run).
 	 */
 	public void reset() {
-		// NOTHING TO RESET
+		program = null;
+		fromFile = false;
 	}
 
 }
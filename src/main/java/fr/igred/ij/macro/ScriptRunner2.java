@@ -33,19 +33,33 @@ import org.scijava.script.ScriptService;
 import org.scijava.ui.swing.widget.SwingInputHarvester;
 import org.scijava.ui.swing.widget.SwingInputPanel;
 
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
 import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 
 /**
  * Runs an ImageJ2 script.
  */
-public class ScriptRunner2 extends ScriptRunner {
+public class ScriptRunner2 extends ScriptRunner implements IsolatedScript {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getName());
 
 	/** Whether inputs were detected. */
 	private final boolean detectedInputs;
@@ -55,6 +69,12 @@ public class ScriptRunner2 extends ScriptRunner {
 	private ScriptModule script;
 	/** The script language. */
 	private String language = "";
+	/** The compiled script, reused across images until the script is reset. */
+	private CompiledScript compiled;
+	/** Whether the script could not be compiled. */
+	private boolean notCompilable = false;
+	/** The outputs declared by the script during its last run. */
+	private ScriptOutputs outputs = new ScriptOutputs(Collections.emptyMap(), false);
 
 
 	/**
@@ -209,14 +229,36 @@ public class ScriptRunner2 extends ScriptRunner {
 	}
 
 
+	/**
+	 * Checks whether the script is run as an ImageJ macro, without script parameters.
+	 *
+	 * @return See above.
+	 */
+	private boolean isPlainMacro() {
+		boolean macro = "IJ1 Macro".equals(getLanguage())
+						|| ".ijm".equals(getLanguage());
+		return macro && !detectedInputs;
+	}
+
+
+	/**
+	 * Updates the arguments as if the script was run, without running it.
+	 */
+	@Override
+	public void skip() {
+		if (isPlainMacro()) {
+			super.skip();
+		}
+	}
+
+
 	/**
 	 * Runs the script.
 	 */
 	@Override
 	public void run() {
-		boolean macro = "IJ1 Macro".equals(getLanguage())
-						|| ".ijm".equals(getLanguage());
-		if (detectedInputs || !macro) {
+		outputs = new ScriptOutputs(Collections.emptyMap(), false);
+		if (!isPlainMacro()) {
 			for (ModuleItem<?> input : script.getInfo().inputs()) {
 				if (input.getType().equals(ImagePlus.class) && script.getInput(input.getName()) == null) {
 					String imageArg = input.getName();
@@ -228,19 +270,142 @@ public class ScriptRunner2 extends ScriptRunner {
 			for (Map.Entry<String, Object> input : inputs.entrySet()) {
 				script.resolveInput(input.getKey());
 			}
-			script.run();
+			CompiledScript program = compile();
+			if (program != null) {
+				runCompiled(program);
+			} else {
+				script.run();
+			}
+			outputs = new ScriptOutputs(script.getOutputs(), false);
 		} else {
 			super.run();
+			outputs = super.getOutputs();
+		}
+	}
+
+
+	/**
+	 * Checks whether the script can run on several images at once: it should not be a plain macro and it should
+	 * declare an image input.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public boolean isParallelizable() {
+		boolean imageInput = false;
+		for (ModuleItem<?> input : script.getInfo().inputs()) {
+			imageInput |= input.getType().equals(ImagePlus.class);
 		}
+		return imageInput && !isPlainMacro();
 	}
 
 
 	/**
-	 * Resets the script (marks inputs as unresolved).
+	 * Runs the script on an image in a new module, so that several images can be processed at once: the image is
+	 * passed to the image inputs, the other inputs are copied from the current ones, and the declared outputs are
+	 * retrieved from the module.
+	 *
+	 * @param imp The image.
+	 *
+	 * @return The outputs of the script.
+	 */
+	@Override
+	public ScriptOutputs runIsolated(ImagePlus imp) {
+		Map<String, Object> values = Collections.emptyMap();
+		try {
+			ScriptModule module = script.getInfo().createModule();
+			module.setContext(script.getContext());
+			for (ModuleItem<?> input : script.getInfo().inputs()) {
+				String name = input.getName();
+				if (input.getType().equals(ImagePlus.class)) {
+					module.setInput(name, imp);
+				} else {
+					module.setInput(name, script.getInput(name));
+				}
+				module.resolveInput(name);
+			}
+			module.run();
+			values = module.getOutputs();
+		} catch (ModuleException e) {
+			LOGGER.warning("Could not create script module: " + e.getMessage());
+		}
+		return new ScriptOutputs(values, true);
+	}
+
+
+	/**
+	 * Returns the outputs declared by the script during its last run.
+	 *
+	 * @return See above.
+	 */
+	@Override
+	public ScriptOutputs getOutputs() {
+		return outputs;
+	}
+
+
+	/**
+	 * Resets the script (marks inputs as unresolved and discards the compiled script).
 	 */
 	@Override
 	public void reset() {
+		super.reset();
 		inputs.keySet().forEach(script::unresolveInput);
+		compiled = null;
+		notCompilable = false;
+	}
+
+
+	/**
+	 * Compiles the script the first time, if the script engine supports it. The script is compiled without its
+	 * parameter lines, which are not valid code in most languages.
+	 *
+	 * @return The compiled script, or null if it cannot be compiled.
+	 */
+	private CompiledScript compile() {
+		if (compiled == null && !notCompilable) {
+			ScriptEngine engine = script.getEngine();
+			if (engine instanceof Compilable) {
+				try {
+					String source = script.getInfo().getProcessedScript();
+					if (source == null) {
+						byte[] bytes = Files.readAllBytes(Paths.get(getPath()));
+						source = new String(bytes, StandardCharsets.UTF_8);
+					}
+					compiled = ((Compilable) engine).compile(source);
+				} catch (IOException | ScriptException | RuntimeException e) {
+					LOGGER.info("Script will be evaluated each time: " + e.getMessage());
+				}
+			}
+			notCompilable = compiled == null;
+		}
+		return compiled;
+	}
+
+
+	/**
+	 * Runs the compiled script: only the inputs are bound again, then the outputs are retrieved.
+	 *
+	 * @param program The compiled script.
+	 */
+	private void runCompiled(CompiledScript program) {
+		ScriptEngine engine = program.getEngine();
+		for (ModuleItem<?> input : script.getInfo().inputs()) {
+			String name = input.getName();
+			engine.put(name, script.getInput(name));
+		}
+		try {
+			program.eval();
+		} catch (ScriptException e) {
+			LOGGER.warning("Error while running script: " + e.getMessage());
+		}
+		ScriptLanguage lang = script.getInfo().getLanguage();
+		for (ModuleItem<?> output : script.getInfo().outputs()) {
+			String name = output.getName();
+			Object value = engine.get(name);
+			script.setOutput(name, lang != null ? lang.decode(value) : value);
+			script.resolveOutput(name);
+		}
 	}
 
 
@@ -19,6 +19,12 @@
  * <ul>
  *     <li>{@link fr.igred.ij.macro.ScriptRunner}/{@link fr.igred.ij.macro.ScriptRunner2} to run a script once</li>
  *     <li>{@link fr.igred.ij.macro.OMEROBatchRunner} to run a script over multiple images (local or remote)</li>
+ *     <li>{@link fr.igred.ij.macro.BatchEstimate} to estimate the cost of a batch beforehand</li>
+ *     <li>{@link fr.igred.ij.macro.MemoryGovernor} to keep the memory used by a batch under control</li>
+ *     <li>{@link fr.igred.ij.macro.ResultsSummary} to summarize the results of a batch as they are produced</li>
+ *     <li>{@link fr.igred.ij.macro.LogCapture} to capture the log of each image</li>
+ *     <li>{@link fr.igred.ij.macro.ScriptOutputs} to gather the outputs declared by a script</li>
+ *     <li>{@link fr.igred.ij.macro.IsolatedScript} for scripts which can process several images at once</li>
  * </ul>
  * It also contains interfaces/classes to monitor OMEROBatchRunner.
  */
@@ -18,17 +18,25 @@ package fr.igred.ij.plugin.frame;
 
 
 import fr.igred.ij.gui.OMEROConnectDialog;
+import fr.igred.ij.gui.PreviewDialog;
 import fr.igred.ij.gui.ProgressDialog;
 import fr.igred.ij.io.BatchImage;
+import fr.igred.ij.io.BatchOrder;
+import fr.igred.ij.io.GroupHierarchy;
+import fr.igred.ij.io.HierarchyCache;
+import fr.igred.ij.io.ImageCompression;
+import fr.igred.ij.io.ROIFilter;
 import fr.igred.ij.io.ROIMode;
+import fr.igred.ij.io.ROIUploader;
+import fr.igred.ij.macro.BatchEstimate;
 import fr.igred.ij.macro.BatchListener;
 import fr.igred.ij.macro.BatchParameters;
 import fr.igred.ij.macro.OMEROBatchRunner;
+import fr.igred.ij.macro.ResultsSummary;
 import fr.igred.ij.macro.ScriptRunner;
 import fr.igred.omero.Client;
 import fr.igred.omero.GenericObjectWrapper;
 import fr.igred.omero.exception.AccessException;
-import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.meta.ExperimenterWrapper;
 import fr.igred.omero.meta.GroupWrapper;
@@ -41,7 +49,8 @@ import fr.igred.omero.repository.ScreenWrapper;
 import ij.IJ;
 import ij.Prefs;
 import ij.plugin.frame.PlugInFrame;
-import loci.plugins.config.SpringUtilities;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
 
 import javax.swing.*;
 import java.awt.Color;
@@ -62,11 +71,24 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import static fr.igred.ij.io.ContainerPager.DEFAULT_PAGE_SIZE;
+import static fr.igred.ij.io.ContainerPager.getDatasetsFingerprint;
+import static fr.igred.ij.io.ContainerPager.getFingerprint;
+import static fr.igred.ij.io.ContainerPager.getPlatesFingerprint;
+import static fr.igred.ij.io.ContainerPager.listDatasets;
+import static fr.igred.ij.io.ContainerPager.listPlateAcquisitions;
+import static fr.igred.ij.io.ContainerPager.listPlates;
+import static fr.igred.ij.io.ContainerPager.listProjects;
+import static fr.igred.ij.io.ContainerPager.listScreens;
 import static fr.igred.ij.io.LocalBatchImage.listImages;
 import static fr.igred.ij.io.OMEROBatchImage.listImages;
 import static javax.swing.JOptionPane.showMessageDialog;
@@ -93,6 +115,19 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	private final JButton connect = new JButton("Connect");
 	/** The disconnection button. */
 	private final JButton disconnect = new JButton("Disconnect");
+	/** The number of OMERO sessions used for transfers. */
+	private final JSpinner sessions = new JSpinner(new SpinnerNumberModel(1, 1, 16, 1));
+	/** The maximum number of ROIs uploaded at once. */
+	private final JSpinner roiChunkSize = new JSpinner(new SpinnerNumberModel(ROIUploader.DEFAULT_CHUNK_SIZE,
+																			 10, 100000, 100));
+	/** The number of output images imported at once. */
+	private final JSpinner importBatchSize = new JSpinner(new SpinnerNumberModel(1, 1, 1000, 1));
+	/** The time after which queued output images are imported, in seconds. */
+	private final JSpinner importInterval = new JSpinner(new SpinnerNumberModel(0, 0, 86400, 30));
+	/** The time limit to process an image, in seconds. */
+	private final JSpinner timeout = new JSpinner(new SpinnerNumberModel(0, 0, 86400, 10));
+	/** The number of images processed at once by scripts. */
+	private final JSpinner parallelScripts = new JSpinner(new SpinnerNumberModel(1, 1, 64, 1));
 
 	// source selection
 	/** The OMERO input button. */
@@ -109,6 +144,8 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	private final JComboBox<String> groupList = new JComboBox<>();
 	/** The list of users. */
 	private final JComboBox<String> userList = new JComboBox<>();
+	/** The hierarchy loading status. */
+	private final JLabel hierarchyStatus = new JLabel();
 
 	// choice of the dataSet
 	/** The list of projects. */
@@ -123,8 +160,14 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	private final JComboBox<String> plateListIn = new JComboBox<>();
 	/** The checkbox to delete ROIs. */
 	private final JCheckBox checkDelROIs = new JCheckBox("Clear ROIs each time");
+	/** The checkbox to only save the ROIs which changed. */
+	private final JCheckBox checkSyncROIs = new JCheckBox("Sync ROIs");
+	/** The filter applied when ROIs are loaded from OMERO. */
+	private final JTextField roiFilter = new JTextField(12);
 	/** The list of possible output projects. */
 	private final JComboBox<ROIMode> roiMode = new JComboBox<>(ROIMode.values());
+	/** The order in which images are processed. */
+	private final JComboBox<BatchOrder> order = new JComboBox<>(BatchOrder.values());
 
 	// choice of the record
 	/** The input folder. */
@@ -137,6 +180,10 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	private final JLabel labelLanguage = new JLabel();
 	/** The macro arguments label. */
 	private final JLabel labelArguments = new JLabel();
+	/** The checkbox to run the macro in batch mode. */
+	private final JCheckBox checkBatchMode = new JCheckBox("Batch mode (do not display images)");
+	/** The checkbox to reuse the results cached from previous runs. */
+	private final JCheckBox checkReuse = new JCheckBox("Reuse previous results");
 	/** The checkbox to save images. */
 	private final JCheckBox checkImage = new JCheckBox("New image(s)");
 	/** The checkbox to save results. */
@@ -145,9 +192,24 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	private final JCheckBox checkROIs = new JCheckBox("ROIs");
 	/** The checkbox to save the log. */
 	private final JCheckBox checkLog = new JCheckBox("Log file");
+	/** The checkbox to also save results in columnar files. */
+	private final JCheckBox checkColumnar = new JCheckBox("Columnar tables");
+	/** Whether the files attached to images are gathered in one archive per batch. */
+	private final JCheckBox checkBundle = new JCheckBox("One archive for attachments");
+	/** The key used to group results in the summary table (editable to enter a column heading). */
+	private final JComboBox<String> summaryKey = new JComboBox<>(new String[]{ResultsSummary.NONE,
+																			   ResultsSummary.BY_INPUT,
+																			   ResultsSummary.BY_IMAGE});
 
 	/** The suffix of the output files. */
 	private final JTextField suffix = new JTextField(10);
+	/** The results columns saved as key-value pairs on images. */
+	private final JTextField keyValueColumns = new JTextField(10);
+	/** The compression of the output images. */
+	private final JComboBox<ImageCompression> compression = new JComboBox<>(ImageCompression.values());
+
+	/** Whether output images are saved as pyramids. */
+	private final JCheckBox checkPyramid = new JCheckBox("Pyramid");
 
 	// Omero or local => checkbox
 	/** The checkbox to save to OMERO. */
@@ -171,6 +233,8 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 
 	/** The start button. */
 	private final JButton start = new JButton("Start");
+	/** The button to estimate the cost of the batch without running it. */
+	private final JButton estimate = new JButton("Estimate");
 
 	//variables to keep
 	/** The OMERO client. */
@@ -180,29 +244,35 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	/** The groups. */
 	private transient List<GroupWrapper> groups;
 	/** The group projects. */
-	private transient List<ProjectWrapper> groupProjects;
+	private transient List<ProjectWrapper> groupProjects = new ArrayList<>(0);
 	/** The group screens. */
-	private transient List<ScreenWrapper> groupScreens;
+	private transient List<ScreenWrapper> groupScreens = new ArrayList<>(0);
 	/** The selected user's projects. */
-	private transient List<ProjectWrapper> userProjects;
+	private transient List<ProjectWrapper> userProjects = new ArrayList<>(0);
 	/** The selected user's screens. */
-	private transient List<ScreenWrapper> userScreens;
+	private transient List<ScreenWrapper> userScreens = new ArrayList<>(0);
 	/** The datasets. */
-	private transient List<DatasetWrapper> datasets;
+	private transient List<DatasetWrapper> datasets = new ArrayList<>(0);
 	/** The plates. */
-	private transient List<PlateWrapper> plates;
+	private transient List<PlateWrapper> plates = new ArrayList<>(0);
 	/** The plates acquisitions. */
-	private transient List<PlateAcquisitionWrapper> plateAcquisitions;
+	private transient List<PlateAcquisitionWrapper> plateAcquisitions = new ArrayList<>(0);
 	/** The current user's projects. */
-	private transient List<ProjectWrapper> myProjects;
+	private transient List<ProjectWrapper> myProjects = new ArrayList<>(0);
 	/** The current user's screens. */
-	private transient List<ScreenWrapper> myScreens;
+	private transient List<ScreenWrapper> myScreens = new ArrayList<>(0);
 	/** The current user's datasets. */
-	private transient List<DatasetWrapper> myDatasets;
+	private transient List<DatasetWrapper> myDatasets = new ArrayList<>(0);
 	/** The users. */
-	private transient List<ExperimenterWrapper> users;
+	private transient List<ExperimenterWrapper> users = new ArrayList<>(0);
 	/** The current user. */
 	private transient ExperimenterWrapper exp;
+	/** The projects already loaded with their datasets, by ID. */
+	private final transient Map<Long, ProjectWrapper> loadedProjects = new ConcurrentHashMap<>();
+	/** The worker loading the current group hierarchy. */
+	private transient HierarchyLoader hierarchyLoader;
+	/** The hierarchy cache for the current server and user. */
+	private transient HierarchyCache hierarchyCache;
 	/** The output directory. */
 	private String directoryOut = null;
 	/** The input directory. */
@@ -259,6 +329,18 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		connection.add(Box.createRigidArea(smallHorizontal));
 		connection.add(connect);
 		connection.add(disconnect);
+		connection.add(Box.createRigidArea(smallHorizontal));
+		JLabel labelSessions = new JLabel("Parallel transfers: ");
+		labelSessions.setLabelFor(sessions);
+		sessions.setValue(Math.min(Math.max(Prefs.getInt("omero.batch.sessions", 1), 1), 16));
+		connection.add(labelSessions);
+		connection.add(sessions);
+		JLabel labelChunkSize = new JLabel("ROIs per upload: ");
+		labelChunkSize.setLabelFor(roiChunkSize);
+		int chunkSize = Prefs.getInt("omero.batch.roichunk", ROIUploader.DEFAULT_CHUNK_SIZE);
+		roiChunkSize.setValue(Math.min(Math.max(chunkSize, 10), 100000));
+		connection.add(labelChunkSize);
+		connection.add(roiChunkSize);
 		disconnect.setVisible(false);
 		connect.addActionListener(e -> connect());
 		disconnect.addActionListener(e -> disconnect());
@@ -288,6 +370,7 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		input1a.add(Box.createRigidArea(smallHorizontal));
 		input1a.add(labelUser);
 		input1a.add(userList);
+		input1a.add(hierarchyStatus);
 		groupList.addItemListener(this::updateGroup);
 		userList.addItemListener(this::updateUser);
 		groupList.setFont(listFont);
@@ -366,7 +449,21 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		labelROIMode.setLabelFor(roiMode);
 		input3.add(labelROIMode);
 		input3.add(roiMode);
+		JLabel labelROIFilter = new JLabel("Filter: ");
+		labelROIFilter.setLabelFor(roiFilter);
+		roiFilter.setText(Prefs.get("omero.batch.roifilter", ""));
+		roiFilter.setToolTipText("ROIs loaded from OMERO, e.g. \"owner=me name=nucleus* shape=Polygon,Ellipse z=1 t=1\"");
+		input3.add(labelROIFilter);
+		input3.add(roiFilter);
 		input3.add(checkDelROIs);
+		checkSyncROIs.setSelected(Prefs.getBoolean("omero.batch.syncrois", false));
+		checkSyncROIs.setToolTipText("Only add, replace or delete the ROIs which changed on OMERO");
+		input3.add(checkSyncROIs);
+		JLabel labelOrder = new JLabel("Order: ");
+		labelOrder.setLabelFor(order);
+		order.setSelectedItem(BatchOrder.fromName(Prefs.get("omero.batch.order", BatchOrder.AS_LISTED.name())));
+		input3.add(labelOrder);
+		input3.add(order);
 
 		JPanel panelInput = new JPanel();
 		panelInput.add(input1a);
@@ -403,6 +500,25 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		macro2i.add(labelLanguage);
 		macro2i.add(labelArguments);
 		macro2.add(macro2i);
+		macro2.add(Box.createRigidArea(smallHorizontal));
+		checkBatchMode.setSelected(Prefs.getBoolean("omero.batch.batchmode", false));
+		macro2.add(checkBatchMode);
+		checkReuse.setSelected(Prefs.getBoolean("omero.batch.reuse", false));
+		checkReuse.setToolTipText("Results are cached locally and restored for unchanged images and scripts");
+		macro2.add(checkReuse);
+
+		JPanel macro2b = new JPanel();
+		JLabel labelTimeout = new JLabel("Time limit per image (seconds, 0 for none): ");
+		labelTimeout.setLabelFor(timeout);
+		timeout.setValue(Math.min(Math.max(Prefs.getInt("omero.batch.timeout", 0), 0), 86400));
+		macro2b.add(labelTimeout);
+		macro2b.add(timeout);
+		JLabel labelParallel = new JLabel("Parallel scripts: ");
+		labelParallel.setLabelFor(parallelScripts);
+		parallelScripts.setValue(Math.min(Math.max(Prefs.getInt("omero.batch.parallel", 1), 1), 64));
+		parallelScripts.setToolTipText("Only for scripts with an image input, which use declared outputs only");
+		macro2b.add(labelParallel);
+		macro2b.add(parallelScripts);
 
 		JPanel macro3 = new JPanel();
 		JLabel macroReturnLabel = new JLabel("The macro returns: ");
@@ -421,12 +537,29 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		checkLog.addActionListener(this::updateOutput);
 		macro4.add(macro4i);
 
+		JPanel macro5 = new JPanel();
+		JLabel labelSummary = new JLabel("Summarize results by (or column name): ");
+		labelSummary.setLabelFor(summaryKey);
+		summaryKey.setEditable(true);
+		summaryKey.setSelectedItem(Prefs.get("omero.batch.summary", ResultsSummary.NONE));
+		summaryKey.setToolTipText("Count, mean, variance, min, max and quartiles of numeric columns, per group");
+		macro5.add(labelSummary);
+		macro5.add(summaryKey);
+		JLabel labelKeyValues = new JLabel("Key-value pairs: ");
+		labelKeyValues.setLabelFor(keyValueColumns);
+		keyValueColumns.setText(Prefs.get("omero.batch.keyvalues", ""));
+		keyValueColumns.setToolTipText("Columns saved as key-value pairs on images, separated by commas (* for all)");
+		macro5.add(labelKeyValues);
+		macro5.add(keyValueColumns);
+
 		//choice of the macro
 		JPanel panelMacro = new JPanel();
 		panelMacro.add(macro1);
 		panelMacro.add(macro2);
+		panelMacro.add(macro2b);
 		panelMacro.add(macro3);
 		panelMacro.add(macro4);
+		panelMacro.add(macro5);
 		panelMacro.setLayout(new BoxLayout(panelMacro, BoxLayout.PAGE_AXIS));
 		panelMacro.setBorder(BorderFactory.createTitledBorder("Macro"));
 		super.add(panelMacro);
@@ -436,6 +569,9 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		output1.add(labelRecordOption);
 		output1.add(onlineOutput);
 		output1.add(localOutput);
+		checkBundle.setSelected(Prefs.getBoolean("omero.batch.bundle", false));
+		checkBundle.setToolTipText("Attach results and logs to the output container in one archive per dataset");
+		output1.add(checkBundle);
 		onlineOutput.addActionListener(this::updateOutput);
 		localOutput.addActionListener(this::updateOutput);
 
@@ -445,6 +581,16 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		suffix.setText("_macro");
 		output2.add(labelExtension);
 		output2.add(suffix);
+		JLabel labelCompression = new JLabel("Compression: ");
+		labelCompression.setLabelFor(compression);
+		String compressionName = Prefs.get("omero.batch.compression", ImageCompression.NONE.name());
+		compression.setSelectedItem(ImageCompression.fromName(compressionName));
+		compression.setToolTipText("Compressed images are saved as OME-TIFF");
+		output2.add(labelCompression);
+		output2.add(compression);
+		checkPyramid.setSelected(Prefs.getBoolean("omero.batch.pyramid", false));
+		checkPyramid.setToolTipText("Save images as tiled, multi-resolution OME-TIFF, viewable right away on OMERO");
+		output2.add(checkPyramid);
 
 		JPanel output3a = new JPanel();
 		JPanel output3a1 = new JPanel();
@@ -460,6 +606,19 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		output3a1.add(Box.createRigidArea(smallHorizontal));
 		output3a1.add(newDatasetBtn);
 		output3a.add(output3a1);
+		JPanel output3a2 = new JPanel();
+		JLabel labelImportBatch = new JLabel("Images per import: ");
+		labelImportBatch.setLabelFor(importBatchSize);
+		importBatchSize.setValue(Math.min(Math.max(Prefs.getInt("omero.batch.importbatch", 1), 1), 1000));
+		importBatchSize.setToolTipText("New images are imported in groups, then their ROIs and results are saved");
+		JLabel labelImportInterval = new JLabel("at least every (s, 0 for never): ");
+		labelImportInterval.setLabelFor(importInterval);
+		importInterval.setValue(Math.min(Math.max(Prefs.getInt("omero.batch.importinterval", 0), 0), 86400));
+		output3a2.add(labelImportBatch);
+		output3a2.add(importBatchSize);
+		output3a2.add(labelImportInterval);
+		output3a2.add(importInterval);
+		output3a.add(output3a2);
 		projectListOut.addItemListener(this::updateOutputProject);
 		datasetListOut.addItemListener(this::updateOutputDataset);
 		newDatasetBtn.addActionListener(this::createNewDataset);
@@ -491,6 +650,9 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		output3c.add(outputFolder);
 		output3c.add(directoryBtn);
 		directoryBtn.addActionListener(e -> chooseDirectory(outputFolder));
+		checkColumnar.setSelected(Prefs.getBoolean("omero.batch.columnar", false));
+		checkColumnar.setToolTipText("Also save results in one folder per table, with one binary file per column");
+		output3c.add(checkColumnar);
 
 		// choice of output
 		JPanel panelOutput = new JPanel();
@@ -505,7 +667,9 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 
 		// validation button
 		JPanel panelBtn = new JPanel();
+		panelBtn.add(estimate);
 		panelBtn.add(start);
+		estimate.addActionListener(this::estimate);
 		start.addActionListener(this::start);
 		super.add(panelBtn);
 
@@ -587,6 +751,58 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	}
 
 
+	/**
+	 * Formats the names of a list of OMERO objects, computing the padding once.
+	 *
+	 * @param objects The OMERO objects.
+	 * @param namer   The function returning the name of each object.
+	 * @param <T>     The type of object.
+	 *
+	 * @return The formatted object qualifiers.
+	 */
+	private static <T extends GenericObjectWrapper<?>>
+	List<String> formatList(Collection<T> objects, Function<? super T, String> namer) {
+		int padName = getListPadding(objects, o -> namer.apply(o).length());
+		int padId = getListPadding(objects, o -> (int) (StrictMath.log10(o.getId()))) + 1;
+		return objects.stream()
+					  .map(o -> format(namer.apply(o), o.getId(), padName, padId))
+					  .collect(Collectors.toList());
+	}
+
+
+	/**
+	 * Replaces the items of a combo box in one pass, without selecting any.
+	 *
+	 * @param comboBox The combo box.
+	 * @param items    The new items.
+	 */
+	private static void setItems(JComboBox<String> comboBox, Collection<String> items) {
+		DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>(new Vector<>(items));
+		model.setSelectedItem(null);
+		comboBox.setModel(model);
+	}
+
+
+	/**
+	 * Checks if two lists of experimenters contain the same users.
+	 *
+	 * @param members1 The first list.
+	 * @param members2 The second list.
+	 *
+	 * @return See above.
+	 */
+	private static boolean sameMembers(Collection<? extends ExperimenterWrapper> members1,
+									   Collection<? extends ExperimenterWrapper> members2) {
+		Map<Long, String> users1 = members1.stream()
+										   .collect(Collectors.toMap(ExperimenterWrapper::getId,
+																	 ExperimenterWrapper::getUserName));
+		Map<Long, String> users2 = members2.stream()
+										   .collect(Collectors.toMap(ExperimenterWrapper::getId,
+																	 ExperimenterWrapper::getUserName));
+		return users1.equals(users2);
+	}
+
+
 	/**
 	 * Shows a warning window.
 	 *
@@ -712,27 +928,34 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			Object source = e.getSource();
 			if (source instanceof JComboBox<?>) {
-				int index = ((JComboBox<?>) source).getSelectedIndex();
-				ProjectWrapper project = userProjects.get(index);
-				this.datasets = project.getDatasets();
-				this.datasets.sort(Comparator.comparing(DatasetWrapper::getName,
-														String.CASE_INSENSITIVE_ORDER));
-				datasetListIn.removeAllItems();
-				int padName = getListPadding(datasets, d -> d.getName().length());
-				int padId = getListPadding(datasets, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-				for (DatasetWrapper d : this.datasets) {
-					datasetListIn.addItem(format(d.getName(), d.getId(), padName, padId));
-				}
-				if (!this.datasets.isEmpty()) {
-					datasetListIn.setSelectedIndex(0);
-				}
-
-				this.repack();
+				JComboBox<?> list = (JComboBox<?>) source;
+				ProjectWrapper project = userProjects.get(list.getSelectedIndex());
+				showInputDatasets(new ArrayList<>(0));
+				hierarchyStatus.setText("Loading datasets...");
+				new ChildrenLoader<>(list, () -> getDatasets(project), this::showInputDatasets).execute();
 			}
 		}
 	}
 
 
+	/**
+	 * Displays the datasets of the input project.
+	 *
+	 * @param projectDatasets The datasets.
+	 */
+	private void showInputDatasets(List<DatasetWrapper> projectDatasets) {
+		this.datasets = projectDatasets;
+		this.datasets.sort(Comparator.comparing(DatasetWrapper::getName,
+												String.CASE_INSENSITIVE_ORDER));
+		setItems(datasetListIn, formatList(datasets, DatasetWrapper::getName));
+		if (!this.datasets.isEmpty()) {
+			datasetListIn.setSelectedIndex(0);
+		}
+
+		this.repack();
+	}
+
+
 	/**
 	 * Updates the display when the input screen is changed.
 	 *
@@ -742,27 +965,34 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			Object source = e.getSource();
 			if (source instanceof JComboBox<?>) {
-				int index = ((JComboBox<?>) source).getSelectedIndex();
-				ScreenWrapper screen = userScreens.get(index);
-				this.plates = screen.getPlates();
-				this.plates.sort(Comparator.comparing(PlateWrapper::getName,
-													  String.CASE_INSENSITIVE_ORDER));
-				plateListIn.removeAllItems();
-				int padName = getListPadding(plates, d -> d.getName().length());
-				int padId = getListPadding(plates, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-				for (PlateWrapper d : this.plates) {
-					plateListIn.addItem(format(d.getName(), d.getId(), padName, padId));
-				}
-				if (!this.plates.isEmpty()) {
-					plateListIn.setSelectedIndex(0);
-				}
-
-				this.repack();
+				JComboBox<?> list = (JComboBox<?>) source;
+				ScreenWrapper screen = userScreens.get(list.getSelectedIndex());
+				showInputPlates(new ArrayList<>(0));
+				hierarchyStatus.setText("Loading plates...");
+				new ChildrenLoader<>(list, () -> getPlates(screen), this::showInputPlates).execute();
 			}
 		}
 	}
 
 
+	/**
+	 * Displays the plates of the input screen.
+	 *
+	 * @param screenPlates The plates.
+	 */
+	private void showInputPlates(List<PlateWrapper> screenPlates) {
+		this.plates = screenPlates;
+		this.plates.sort(Comparator.comparing(PlateWrapper::getName,
+											  String.CASE_INSENSITIVE_ORDER));
+		setItems(plateListIn, formatList(plates, PlateWrapper::getName));
+		if (!this.plates.isEmpty()) {
+			plateListIn.setSelectedIndex(0);
+		}
+
+		this.repack();
+	}
+
+
 	/**
 	 * Updates the display when the input plate is changed.
 	 *
@@ -772,33 +1002,45 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			Object source = e.getSource();
 			if (source instanceof JComboBox<?>) {
-				int index = ((JComboBox<?>) source).getSelectedIndex();
-				PlateWrapper plate = this.plates.get(index);
-				this.plateAcquisitions = plate.getPlateAcquisitions();
-				this.plateAcquisitions.sort(Comparator.comparing(PlateAcquisitionWrapper::getName,
-																 String.CASE_INSENSITIVE_ORDER));
-				plateAcqListIn.removeAllItems();
-				int padName = getListPadding(plateAcquisitions, n -> n.getName().length());
-				int padId = getListPadding(plateAcquisitions, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-
-				for (PlateAcquisitionWrapper d : this.plateAcquisitions) {
-					String name = d.getName();
-					if (padName == 0) {
-						padName = 4 + padId;
-					}
-					if (name.isEmpty()) {
-						name = "Run " + d.getId();
-					}
-					plateAcqListIn.addItem(format(name, d.getId(), padName, padId));
-				}
-				if (!this.plateAcquisitions.isEmpty()) {
-					plateAcqListIn.insertItemAt("All acquisitions", 0);
-					plateAcqListIn.setSelectedIndex(0);
-				}
+				JComboBox<?> list = (JComboBox<?>) source;
+				PlateWrapper plate = this.plates.get(list.getSelectedIndex());
+				showPlateAcquisitions(new ArrayList<>(0));
+				hierarchyStatus.setText("Loading acquisitions...");
+				new ChildrenLoader<>(list, () -> getPlateAcquisitions(plate), this::showPlateAcquisitions).execute();
+			}
+		}
+	}
 
-				this.repack();
+
+	/**
+	 * Displays the acquisitions of the input plate.
+	 *
+	 * @param acquisitions The plate acquisitions.
+	 */
+	private void showPlateAcquisitions(List<PlateAcquisitionWrapper> acquisitions) {
+		this.plateAcquisitions = acquisitions;
+		this.plateAcquisitions.sort(Comparator.comparing(PlateAcquisitionWrapper::getName,
+														 String.CASE_INSENSITIVE_ORDER));
+		plateAcqListIn.removeAllItems();
+		int padName = getListPadding(plateAcquisitions, n -> n.getName().length());
+		int padId = getListPadding(plateAcquisitions, g -> (int) (StrictMath.log10(g.getId()))) + 1;
+
+		for (PlateAcquisitionWrapper d : this.plateAcquisitions) {
+			String name = d.getName();
+			if (padName == 0) {
+				padName = 4 + padId;
 			}
+			if (name.isEmpty()) {
+				name = "Run " + d.getId();
+			}
+			plateAcqListIn.addItem(format(name, d.getId(), padName, padId));
+		}
+		if (!this.plateAcquisitions.isEmpty()) {
+			plateAcqListIn.insertItemAt("All acquisitions", 0);
+			plateAcqListIn.setSelectedIndex(0);
 		}
+
+		this.repack();
 	}
 
 
@@ -821,26 +1063,33 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			Object source = e.getSource();
 			if (source instanceof JComboBox<?>) {
-				int index = ((JComboBox<?>) source).getSelectedIndex();
-				ProjectWrapper project = myProjects.get(index);
-				this.myDatasets = project.getDatasets();
-				this.myDatasets.sort(Comparator.comparing(DatasetWrapper::getName, String.CASE_INSENSITIVE_ORDER));
-				datasetListOut.removeAllItems();
-				int padName = getListPadding(myDatasets, d -> d.getName().length());
-				int padId = getListPadding(myDatasets, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-				for (DatasetWrapper d : this.myDatasets) {
-					datasetListOut.addItem(format(d.getName(), d.getId(), padName, padId));
-				}
-				if (!this.datasets.isEmpty()) {
-					datasetListOut.setSelectedIndex(0);
-				}
-
-				this.repack();
+				JComboBox<?> list = (JComboBox<?>) source;
+				ProjectWrapper project = myProjects.get(list.getSelectedIndex());
+				showOutputDatasets(new ArrayList<>(0));
+				hierarchyStatus.setText("Loading datasets...");
+				new ChildrenLoader<>(list, () -> getDatasets(project), this::showOutputDatasets).execute();
 			}
 		}
 	}
 
 
+	/**
+	 * Displays the datasets of the output project.
+	 *
+	 * @param projectDatasets The datasets.
+	 */
+	private void showOutputDatasets(List<DatasetWrapper> projectDatasets) {
+		this.myDatasets = projectDatasets;
+		this.myDatasets.sort(Comparator.comparing(DatasetWrapper::getName, String.CASE_INSENSITIVE_ORDER));
+		setItems(datasetListOut, formatList(myDatasets, DatasetWrapper::getName));
+		if (!this.myDatasets.isEmpty()) {
+			datasetListOut.setSelectedIndex(0);
+		}
+
+		this.repack();
+	}
+
+
 	/**
 	 * Updates the display when the output screen is changed.
 	 *
@@ -850,24 +1099,122 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			Object source = e.getSource();
 			if (source instanceof JComboBox<?>) {
-				int index = ((JComboBox<?>) source).getSelectedIndex();
-				ScreenWrapper screen = myScreens.get(index);
-				/* The current user's plates. */
-				List<PlateWrapper> myPlates = screen.getPlates();
-				myPlates.sort(Comparator.comparing(PlateWrapper::getName, String.CASE_INSENSITIVE_ORDER));
-				plateListOut.removeAllItems();
-				int padName = getListPadding(myPlates, d -> d.getName().length());
-				int padId = getListPadding(myPlates, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-				for (PlateWrapper d : myPlates) {
-					plateListOut.addItem(format(d.getName(), d.getId(), padName, padId));
-				}
-				if (!myPlates.isEmpty()) {
-					plateListOut.setSelectedIndex(0);
+				JComboBox<?> list = (JComboBox<?>) source;
+				ScreenWrapper screen = myScreens.get(list.getSelectedIndex());
+				showOutputPlates(new ArrayList<>(0));
+				hierarchyStatus.setText("Loading plates...");
+				new ChildrenLoader<>(list, () -> getPlates(screen), this::showOutputPlates).execute();
+			}
+		}
+	}
+
+
+	/**
+	 * Displays the plates of the output screen.
+	 *
+	 * @param myPlates The current user's plates.
+	 */
+	private void showOutputPlates(List<PlateWrapper> myPlates) {
+		myPlates.sort(Comparator.comparing(PlateWrapper::getName, String.CASE_INSENSITIVE_ORDER));
+		setItems(plateListOut, formatList(myPlates, PlateWrapper::getName));
+		if (!myPlates.isEmpty()) {
+			plateListOut.setSelectedIndex(0);
+		}
+
+		this.repack();
+	}
+
+
+	/**
+	 * Retrieves a project with its datasets, loading it from OMERO the first time.
+	 *
+	 * @param project The project, possibly without its datasets.
+	 *
+	 * @return The project with its datasets, or null if it could not be loaded.
+	 */
+	private ProjectWrapper loadProject(ProjectWrapper project) {
+		ProjectWrapper loaded = loadedProjects.get(project.getId());
+		if (loaded == null) {
+			try {
+				loaded = client.getProject(project.getId());
+				loadedProjects.put(project.getId(), loaded);
+			} catch (ServiceException | ExecutionException | AccessException exception) {
+				LOGGER.warning(exception.getMessage());
+			}
+		}
+		return loaded;
+	}
+
+
+	/**
+	 * Retrieves the datasets in a project, from the cache if they did not change on OMERO.
+	 *
+	 * @param project The project.
+	 *
+	 * @return See above.
+	 */
+	private List<DatasetWrapper> getDatasets(ProjectWrapper project) {
+		List<DatasetWrapper> projectDatasets = null;
+		try {
+			String fingerprint = getDatasetsFingerprint(client, project.getId());
+			if (hierarchyCache != null) {
+				projectDatasets = hierarchyCache.loadDatasets(project.getId(), fingerprint);
+			}
+			if (projectDatasets == null) {
+				projectDatasets = listDatasets(client, project.getId(), DEFAULT_PAGE_SIZE);
+				if (hierarchyCache != null) {
+					hierarchyCache.saveDatasets(project.getId(), fingerprint, projectDatasets);
 				}
+			}
+		} catch (DSOutOfServiceException | ServerError exception) {
+			LOGGER.warning(exception.getMessage());
+		}
+		return projectDatasets != null ? projectDatasets : new ArrayList<>(0);
+	}
+
 
-				this.repack();
+	/**
+	 * Retrieves the plates in a screen, from the cache if they did not change on OMERO.
+	 *
+	 * @param screen The screen.
+	 *
+	 * @return See above.
+	 */
+	private List<PlateWrapper> getPlates(ScreenWrapper screen) {
+		List<PlateWrapper> screenPlates = null;
+		try {
+			String fingerprint = getPlatesFingerprint(client, screen.getId());
+			if (hierarchyCache != null) {
+				screenPlates = hierarchyCache.loadPlates(screen.getId(), fingerprint);
 			}
+			if (screenPlates == null) {
+				screenPlates = listPlates(client, screen.getId(), DEFAULT_PAGE_SIZE);
+				if (hierarchyCache != null) {
+					hierarchyCache.savePlates(screen.getId(), fingerprint, screenPlates);
+				}
+			}
+		} catch (DSOutOfServiceException | ServerError exception) {
+			LOGGER.warning(exception.getMessage());
 		}
+		return screenPlates != null ? screenPlates : new ArrayList<>(0);
+	}
+
+
+	/**
+	 * Retrieves the acquisitions in a plate.
+	 *
+	 * @param plate The plate.
+	 *
+	 * @return See above.
+	 */
+	private List<PlateAcquisitionWrapper> getPlateAcquisitions(PlateWrapper plate) {
+		List<PlateAcquisitionWrapper> acquisitions = new ArrayList<>(0);
+		try {
+			acquisitions = listPlateAcquisitions(client, plate.getId(), DEFAULT_PAGE_SIZE);
+		} catch (DSOutOfServiceException | ServerError exception) {
+			LOGGER.warning(exception.getMessage());
+		}
+		return acquisitions;
 	}
 
 
@@ -878,7 +1225,7 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	 */
 	private void createNewDataset(ActionEvent e) {
 		int index = projectListOut.getSelectedIndex();
-		ProjectWrapper project = myProjects.get(index);
+		ProjectWrapper project = loadProject(myProjects.get(index));
 		long id = -1;
 		String name = (String) JOptionPane.showInputDialog(this,
 														   "New dataset name:",
@@ -887,7 +1234,7 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 														   null,
 														   null,
 														   null);
-		if (name == null) {
+		if (name == null || project == null) {
 			return;
 		}
 		try {
@@ -937,20 +1284,10 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 			}
 
 			userProjects(username, userId);
-			projectListIn.removeAllItems();
-			projectListOut.removeAllItems();
-			datasetListIn.removeAllItems();
-			datasetListOut.removeAllItems();
-			for (ProjectWrapper project : userProjects) {
-				int padName = getListPadding(userProjects, p -> p.getName().length());
-				int padId = getListPadding(userProjects, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-				projectListIn.addItem(format(project.getName(), project.getId(), padName, padId));
-			}
-			int padMyName = getListPadding(myProjects, p -> p.getName().length());
-			int padMyId = getListPadding(myProjects, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-			for (ProjectWrapper project : myProjects) {
-				projectListOut.addItem(format(project.getName(), project.getId(), padMyName, padMyId));
-			}
+			setItems(datasetListIn, new ArrayList<>(0));
+			setItems(datasetListOut, new ArrayList<>(0));
+			setItems(projectListIn, formatList(userProjects, ProjectWrapper::getName));
+			setItems(projectListOut, formatList(myProjects, ProjectWrapper::getName));
 			if (!userProjects.isEmpty()) {
 				projectListIn.setSelectedIndex(0);
 			}
@@ -959,21 +1296,11 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 			}
 
 			userScreens(username, userId);
-			screenListIn.removeAllItems();
-			screenListOut.removeAllItems();
-			plateListIn.removeAllItems();
-			plateAcqListIn.removeAllItems();
-			plateListOut.removeAllItems();
-			for (ScreenWrapper project : userScreens) {
-				int padName = getListPadding(userScreens, p -> p.getName().length());
-				int padId = getListPadding(userScreens, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-				screenListIn.addItem(format(project.getName(), project.getId(), padName, padId));
-			}
-			padMyName = getListPadding(myScreens, p -> p.getName().length());
-			padMyId = getListPadding(myScreens, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-			for (ScreenWrapper screen : myScreens) {
-				screenListOut.addItem(format(screen.getName(), screen.getId(), padMyName, padMyId));
-			}
+			setItems(plateListIn, new ArrayList<>(0));
+			setItems(plateAcqListIn, new ArrayList<>(0));
+			setItems(plateListOut, new ArrayList<>(0));
+			setItems(screenListIn, formatList(userScreens, ScreenWrapper::getName));
+			setItems(screenListOut, formatList(myScreens, ScreenWrapper::getName));
 			if (!userScreens.isEmpty()) {
 				screenListIn.setSelectedIndex(0);
 			}
@@ -985,56 +1312,65 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 
 
 	/**
-	 * Updates the display when the selected group is changed.
+	 * Updates the display when the selected group is changed: the group hierarchy is loaded in the background.
 	 *
 	 * @param e The event triggering this.
 	 */
 	private void updateGroup(ItemEvent e) {
 		if (e.getStateChange() == ItemEvent.SELECTED) {
 			int index = groupList.getSelectedIndex();
-			long id = groups.get(index).getId();
-			String groupName = groups.get(index).getName();
-			client.switchGroup(id);
+			GroupWrapper group = groups.get(index);
+			client.switchGroup(group.getId());
 
-			groupProjects = new ArrayList<>(0);
-			try {
-				groupProjects = client.getProjects();
-			} catch (ServiceException | ExecutionException | AccessException exception) {
-				LOGGER.warning(exception.getMessage());
+			if (hierarchyLoader != null) {
+				hierarchyLoader.cancel(true);
 			}
-			groupProjects.sort(Comparator.comparing(ProjectWrapper::getName,
-													String.CASE_INSENSITIVE_ORDER));
-
-			groupScreens = new ArrayList<>(0);
-			try {
-				groupScreens = client.getScreens();
-			} catch (ServiceException | ExecutionException | AccessException exception) {
-				LOGGER.warning(exception.getMessage());
+			loadedProjects.clear();
+			GroupHierarchy cached = hierarchyCache != null ? hierarchyCache.load(group.getId()) : null;
+			if (cached != null) {
+				showGroup(cached.getProjects(), cached.getScreens(), cached.getMembers());
+				hierarchyStatus.setText("Checking for updates...");
+			} else {
+				hierarchyStatus.setText("Loading...");
+				userList.setEnabled(false);
 			}
-			groupScreens.sort(Comparator.comparing(ScreenWrapper::getName,
-												   String.CASE_INSENSITIVE_ORDER));
+			hierarchyLoader = new HierarchyLoader(group, cached);
+			hierarchyLoader.execute();
+		}
+	}
 
-			try {
-				GroupWrapper group = client.getGroup(groupName);
-				users = group.getExperimenters();
-			} catch (ExecutionException | ServiceException | AccessException exception) {
-				LOGGER.warning(exception.getMessage());
-			}
-			users.sort(Comparator.comparing(ExperimenterWrapper::getUserName));
-			userList.removeAllItems();
-
-			userList.addItem("All members");
-			int padName = getListPadding(users, u -> u.getUserName().length());
-			int padId = getListPadding(users, g -> (int) (StrictMath.log10(g.getId()))) + 1;
-			int selected = 0;
-			for (ExperimenterWrapper user : users) {
-				userList.addItem(format(user.getUserName(), user.getId(), padName, padId));
-				if (user.getId() == exp.getId()) {
-					selected = users.indexOf(user) + 1;
-				}
+
+	/**
+	 * Displays the group hierarchy once it has been loaded.
+	 *
+	 * @param projects The projects in the group.
+	 * @param screens  The screens in the group.
+	 * @param members  The group members.
+	 */
+	private void showGroup(List<ProjectWrapper> projects,
+						   List<ScreenWrapper> screens,
+						   List<ExperimenterWrapper> members) {
+		groupProjects = projects;
+		groupProjects.sort(Comparator.comparing(ProjectWrapper::getName,
+												String.CASE_INSENSITIVE_ORDER));
+		groupScreens = screens;
+		groupScreens.sort(Comparator.comparing(ScreenWrapper::getName,
+											   String.CASE_INSENSITIVE_ORDER));
+		users = members;
+		users.sort(Comparator.comparing(ExperimenterWrapper::getUserName));
+
+		List<String> items = new ArrayList<>(users.size() + 1);
+		items.add("All members");
+		items.addAll(formatList(users, ExperimenterWrapper::getUserName));
+		int selected = 0;
+		for (int i = 0; i < users.size(); i++) {
+			if (users.get(i).getId() == exp.getId()) {
+				selected = i + 1;
 			}
-			userList.setSelectedIndex(selected);
 		}
+		setItems(userList, items);
+		userList.setSelectedIndex(selected);
+		repack();
 	}
 
 
@@ -1159,6 +1495,9 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 			}
 			groups = exp.getGroups();
 			groups.removeIf(g -> g.getId() <= 2);
+			hierarchyCache = new HierarchyCache(Prefs.get("omero.host", ""),
+												Prefs.getInt("omero.port", 4064),
+												exp.getId());
 
 			int padName = getListPadding(groups, g -> g.getName().length());
 			int padId = getListPadding(groups, g -> (int) (StrictMath.log10(g.getId()))) + 1;
@@ -1192,6 +1531,11 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	 * Disconnects from OMERO.
 	 */
 	private void disconnect() {
+		if (hierarchyLoader != null) {
+			hierarchyLoader.cancel(true);
+			hierarchyLoader = null;
+		}
+		hierarchyStatus.setText("");
 		client.disconnect();
 		local.setSelected(true);
 		onlineOutput.setSelected(false);
@@ -1210,86 +1554,30 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	 * Shows a new window to preview the current dataset.
 	 */
 	private void previewDataset() {
-		final int thumbnailSize = 96;
-
 		int index = datasetListIn.getSelectedIndex();
-		DatasetWrapper dataset = datasets.get(index);
-		try {
-			JPanel panel = new JPanel(new SpringLayout());
-			List<ImageWrapper> images = dataset.getImages(client);
-			int nRows = Math.min(images.size(), 5);
-			int missing = images.size() - nRows;
-			List<ImageWrapper> truncated = images.subList(0, nRows);
-			for (ImageWrapper i : truncated) {
-				JLabel thumbnail = new JLabel(new ImageIcon(i.getThumbnail(client, thumbnailSize)));
-				panel.add(thumbnail);
-
-				JLabel name = new JLabel(i.getName());
-				name.setLabelFor(thumbnail);
-				panel.add(name);
-			}
-			if (missing != 0) {
-				panel.add(new JLabel());
-				JLabel etc = new JLabel("+ " + missing + " images not shown...");
-				panel.add(etc);
-				nRows++;
-			}
-			SpringUtilities.makeCompactGrid(panel, //parent
-											nRows, 2,
-											5, 5,  //initX, initY
-											10, 10); //xPad, yPad
-			showMessageDialog(this, panel, "Preview", JOptionPane.INFORMATION_MESSAGE);
-		} catch (ServiceException | AccessException | OMEROServerError | ExecutionException | IOException e) {
-			errorWindow(e.getMessage());
+		if (index >= 0) {
+			DatasetWrapper dataset = datasets.get(index);
+			new PreviewDialog(this, client, () -> dataset.getImages(client)).showPreview();
 		}
 	}
 
 
 	/**
-	 * Shows a new window to preview the current dataset.
+	 * Shows a new window to preview the current plate.
 	 */
 	private void previewPlate() {
-		final int thumbnailSize = 96;
-
 		int plateIndex = plateListIn.getSelectedIndex();
 		int plateAcquisitionIndex = plateAcqListIn.getSelectedIndex();
 
-		try {
-			JPanel panel = new JPanel(new SpringLayout());
-			List<ImageWrapper> images;
-			if (plateAcquisitionIndex <= 0) {
-				PlateWrapper plate = plates.get(plateIndex);
-				images = plate.getImages(client);
-			} else {
-				PlateAcquisitionWrapper acquisition = plateAcquisitions.get(plateAcquisitionIndex - 1);
-				images = acquisition.getImages(client);
-			}
-
-			int nRows = Math.min(images.size(), 5);
-			int missing = images.size() - nRows;
-			List<ImageWrapper> truncated = images.subList(0, nRows);
-			for (ImageWrapper i : truncated) {
-				JLabel thumbnail = new JLabel(new ImageIcon(i.getThumbnail(client, thumbnailSize)));
-				panel.add(thumbnail);
-
-				JLabel name = new JLabel(i.getName());
-				name.setLabelFor(thumbnail);
-				panel.add(name);
-			}
-			if (missing != 0) {
-				panel.add(new JLabel());
-				JLabel etc = new JLabel("+ " + missing + " images not shown...");
-				panel.add(etc);
-				nRows++;
-			}
-			SpringUtilities.makeCompactGrid(panel, //parent
-											nRows, 2,
-											5, 5,  //initX, initY
-											10, 10); //xPad, yPad
-			showMessageDialog(this, panel, "Preview", JOptionPane.INFORMATION_MESSAGE);
-		} catch (ServiceException | AccessException | OMEROServerError | ExecutionException | IOException e) {
-			errorWindow(e.getMessage());
+		PreviewDialog preview;
+		if (plateAcquisitionIndex <= 0) {
+			PlateWrapper plate = plates.get(plateIndex);
+			preview = new PreviewDialog(this, client, () -> plate.getImages(client));
+		} else {
+			PlateAcquisitionWrapper acquisition = plateAcquisitions.get(plateAcquisitionIndex - 1);
+			preview = new PreviewDialog(this, client, () -> acquisition.getImages(client));
 		}
+		preview.showPreview();
 	}
 
 
@@ -1299,7 +1587,27 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	 * @param e The event triggering this.
 	 */
 	public void start(ActionEvent e) {
-		ProgressDialog progress = new ProgressDialog();
+		launch(false);
+	}
+
+
+	/**
+	 * Estimates the cost of the batch processing without running it.
+	 *
+	 * @param e The event triggering this.
+	 */
+	private void estimate(ActionEvent e) {
+		launch(true);
+	}
+
+
+	/**
+	 * Checks the parameters, estimates the cost of the batch processing and starts it unless it is a dry run.
+	 * <p>If some images will probably not fit in memory, the user is asked to confirm before starting.</p>
+	 *
+	 * @param dryRun Whether the estimate should only be displayed.
+	 */
+	private void launch(boolean dryRun) {
 		BatchParameters params = new BatchParameters();
 
 		// initialization of success variables
@@ -1309,12 +1617,48 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 
 		// input data
 		params.setSuffix(suffix.getText());
+		ImageCompression selectedCompression = compression.getItemAt(compression.getSelectedIndex());
+		params.setCompression(selectedCompression);
+		Prefs.set("omero.batch.compression", selectedCompression.name());
+		params.setPyramids(checkPyramid.isSelected());
+		Prefs.set("omero.batch.pyramid", checkPyramid.isSelected());
 		params.setROIMode(roiMode.getItemAt(roiMode.getSelectedIndex()));
 		params.setClearROIS(checkDelROIs.isSelected());
+		params.setSyncROIs(checkSyncROIs.isSelected());
+		Prefs.set("omero.batch.syncrois", checkSyncROIs.isSelected());
+		params.setROIFilter(ROIFilter.parse(roiFilter.getText()));
+		Prefs.set("omero.batch.roifilter", params.getROIFilter().toString());
 		params.setSaveImages(checkImage.isSelected());
 		params.setSaveResults(checkResults.isSelected());
 		params.setSaveROIs(checkROIs.isSelected());
 		params.setSaveLog(checkLog.isSelected());
+		params.setBundleAttachments(checkBundle.isSelected());
+		Prefs.set("omero.batch.bundle", checkBundle.isSelected());
+		params.setSessions((Integer) sessions.getValue());
+		Prefs.set("omero.batch.sessions", (Integer) sessions.getValue());
+		params.setImportBatchSize((Integer) importBatchSize.getValue());
+		Prefs.set("omero.batch.importbatch", (Integer) importBatchSize.getValue());
+		params.setImportInterval((Integer) importInterval.getValue());
+		Prefs.set("omero.batch.importinterval", (Integer) importInterval.getValue());
+		params.setROIChunkSize((Integer) roiChunkSize.getValue());
+		Prefs.set("omero.batch.roichunk", (Integer) roiChunkSize.getValue());
+		params.setBatchMode(checkBatchMode.isSelected());
+		Prefs.set("omero.batch.batchmode", checkBatchMode.isSelected());
+		params.setReuseResults(checkReuse.isSelected());
+		Prefs.set("omero.batch.reuse", checkReuse.isSelected());
+		BatchOrder selectedOrder = order.getItemAt(order.getSelectedIndex());
+		params.setOrder(selectedOrder);
+		Prefs.set("omero.batch.order", selectedOrder.name());
+		params.setTimeout((Integer) timeout.getValue());
+		Prefs.set("omero.batch.timeout", (Integer) timeout.getValue());
+		params.setParallelScripts((Integer) parallelScripts.getValue());
+		Prefs.set("omero.batch.parallel", (Integer) parallelScripts.getValue());
+		params.setColumnarResults(checkColumnar.isSelected());
+		Prefs.set("omero.batch.columnar", checkColumnar.isSelected());
+		params.setSummaryKey(String.valueOf(summaryKey.getSelectedItem()));
+		params.setKeyValueColumns(keyValueColumns.getText());
+		Prefs.set("omero.batch.keyvalues", params.getKeyValueColumns());
+		Prefs.set("omero.batch.summary", params.getSummaryKey());
 
 		Map<String, List<BatchImage>> images = new HashMap<>();
 		long inputDatasetId = -1L;
@@ -1378,17 +1722,60 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 			params.setDirectoryOut(directoryOut);
 		}
 
-		OMEROBatchRunner runner = new OMEROBatchRunner(script, images, params, client, progress);
-		runner.setListener(this);
+		IJ.showStatus("Estimating batch size...");
 		start.setEnabled(false);
-		try {
-			runner.start();
-		} catch (RuntimeException exception) {
-			errorWindow(exception.getMessage());
+		estimate.setEnabled(false);
+		new EstimateWorker(images, params, dryRun).execute();
+	}
+
+
+	/**
+	 * Displays the estimate of the batch cost, or starts the batch processing, asking for confirmation if some images
+	 * will probably not fit in memory.
+	 *
+	 * @param cost   The batch estimate.
+	 * @param images The images to process.
+	 * @param params The batch parameters.
+	 * @param dryRun Whether the estimate should only be displayed.
+	 */
+	private void launch(BatchEstimate cost, Map<String, List<BatchImage>> images, BatchParameters params,
+						boolean dryRun) {
+		IJ.showStatus("");
+		estimate.setEnabled(true);
+		if (dryRun) {
+			start.setEnabled(true);
+			showMessageDialog(this, cost.getReport(), "Estimate", JOptionPane.INFORMATION_MESSAGE);
+		} else if (!cost.hasOversized() || confirmOversized(cost)) {
+			ProgressDialog progress = new ProgressDialog();
+			OMEROBatchRunner runner = new OMEROBatchRunner(script, images, params, client, progress);
+			runner.setListener(this);
+			try {
+				runner.start();
+			} catch (RuntimeException exception) {
+				start.setEnabled(true);
+				errorWindow(exception.getMessage());
+			}
+		} else {
+			start.setEnabled(true);
 		}
 	}
 
 
+	/**
+	 * Warns that some images will probably not fit in memory and asks whether the batch should be started anyway.
+	 *
+	 * @param cost The batch estimate.
+	 *
+	 * @return True if the batch should be started.
+	 */
+	private boolean confirmOversized(BatchEstimate cost) {
+		String message = cost.getReport() + String.format("%nStart anyway?");
+		int answer = JOptionPane.showConfirmDialog(this, message, "Warning",
+												   JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+		return answer == JOptionPane.YES_OPTION;
+	}
+
+
 	/**
 	 * Updates the display when the output selection is changed.
 	 *
@@ -1416,11 +1803,15 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		screenListOut.getParent()
 					 .setVisible(outputOnline && (outputImage || outputResults) && omeroScreens.isSelected());
 		datasetListOut.getParent().setVisible(outputOnline && outputImage && omeroProjects.isSelected());
+		importBatchSize.getParent().setVisible(outputImage);
 		newDatasetOut.getParent().setVisible(outputOnline && outputImage && omeroScreens.isSelected());
 		if (outputOnline && userProjects.equals(myProjects)) {
 			projectListOut.setSelectedIndex(projectListIn.getSelectedIndex());
 		}
 		outputFolder.getParent().setVisible(outputLocal);
+		checkColumnar.setVisible(outputResults);
+		checkBundle.setVisible(outputOnline && (outputResults || checkLog.isSelected()));
+		summaryKey.getParent().setVisible(outputResults);
 		repack();
 	}
 
@@ -1553,6 +1944,9 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 		if (checkDelROIs.isSelected() && !checkROIs.isSelected()) {
 			errorWindow(String.format("ROIs:%nYou can't clear ROIs if you don't save ROIs"));
 			check = false;
+		} else if (checkSyncROIs.isSelected() && !checkROIs.isSelected()) {
+			errorWindow(String.format("ROIs:%nYou can't sync ROIs if you don't save ROIs"));
+			check = false;
 		}
 		return check;
 	}
@@ -1638,6 +2032,181 @@ public class OMEROBatchPlugin extends PlugInFrame implements BatchListener {
 	}
 
 
+	/**
+	 * Loads the projects, screens and members of a group in the background, unless the cached ones are up-to-date.
+	 */
+	private class HierarchyLoader extends SwingWorker<GroupHierarchy, String> {
+
+		/** The group. */
+		private final GroupWrapper group;
+		/** The cached hierarchy. */
+		private final GroupHierarchy cached;
+
+
+		HierarchyLoader(GroupWrapper group, GroupHierarchy cached) {
+			this.group = group;
+			this.cached = cached;
+		}
+
+
+		@Override
+		protected GroupHierarchy doInBackground() {
+			String fingerprint = null;
+			try {
+				fingerprint = getFingerprint(client);
+			} catch (DSOutOfServiceException | ServerError exception) {
+				LOGGER.warning(exception.getMessage());
+			}
+
+			List<ExperimenterWrapper> members = new ArrayList<>(0);
+			try {
+				publish("Loading users...");
+				members = client.getGroup(group.getName()).getExperimenters();
+			} catch (ExecutionException | ServiceException | AccessException exception) {
+				LOGGER.warning(exception.getMessage());
+			}
+
+			GroupHierarchy hierarchy = null;
+			if (cached == null || !cached.isUpToDate(fingerprint) || !sameMembers(cached.getMembers(), members)) {
+				List<ProjectWrapper> projects = new ArrayList<>(0);
+				List<ScreenWrapper> screens = new ArrayList<>(0);
+				try {
+					projects = listProjects(client, DEFAULT_PAGE_SIZE, n -> publish("Loading projects (" + n + ")..."));
+					screens = listScreens(client, DEFAULT_PAGE_SIZE, n -> publish("Loading screens (" + n + ")..."));
+				} catch (DSOutOfServiceException | ServerError exception) {
+					LOGGER.warning(exception.getMessage());
+					fingerprint = null;
+				}
+				hierarchy = new GroupHierarchy(projects, screens, members, fingerprint);
+				if (fingerprint != null && hierarchyCache != null && !isCancelled()) {
+					hierarchyCache.save(group.getId(), hierarchy);
+				}
+			}
+			return hierarchy;
+		}
+
+
+		@Override
+		protected void process(List<String> chunks) {
+			if (!isCancelled() && !chunks.isEmpty()) {
+				hierarchyStatus.setText(chunks.get(chunks.size() - 1));
+			}
+		}
+
+
+		@Override
+		protected void done() {
+			if (!isCancelled() && hierarchyLoader == this) {
+				try {
+					GroupHierarchy hierarchy = get();
+					if (hierarchy != null) {
+						showGroup(hierarchy.getProjects(), hierarchy.getScreens(), hierarchy.getMembers());
+					}
+				} catch (ExecutionException exception) {
+					LOGGER.warning(exception.getMessage());
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+				}
+				userList.setEnabled(true);
+				hierarchyStatus.setText("");
+			}
+		}
+
+	}
+
+
+	/**
+	 * Estimates the cost of the batch in the background, as reading the metadata of local images can be slow, then
+	 * displays it or starts the batch.
+	 */
+	private class EstimateWorker extends SwingWorker<BatchEstimate, Void> {
+
+		/** The images to process. */
+		private final Map<String, List<BatchImage>> images;
+		/** The batch parameters. */
+		private final BatchParameters params;
+		/** Whether the estimate should only be displayed. */
+		private final boolean dryRun;
+
+
+		EstimateWorker(Map<String, List<BatchImage>> images, BatchParameters params, boolean dryRun) {
+			this.images = images;
+			this.params = params;
+			this.dryRun = dryRun;
+		}
+
+
+		@Override
+		protected BatchEstimate doInBackground() {
+			return new BatchEstimate(images);
+		}
+
+
+		@Override
+		protected void done() {
+			try {
+				launch(get(), images, params, dryRun);
+			} catch (ExecutionException exception) {
+				IJ.showStatus("");
+				start.setEnabled(true);
+				estimate.setEnabled(true);
+				errorWindow(exception.getMessage());
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Loads the children of a container in the background, then displays them if the container is still selected.
+	 *
+	 * @param <T> The type of children.
+	 */
+	private class ChildrenLoader<T> extends SwingWorker<List<T>, Void> {
+
+		/** The container list. */
+		private final JComboBox<?> source;
+		/** The index of the selected container. */
+		private final int index;
+		/** The function retrieving the children. */
+		private final Supplier<List<T>> loader;
+		/** The function displaying the children. */
+		private final Consumer<List<T>> display;
+
+
+		ChildrenLoader(JComboBox<?> source, Supplier<List<T>> loader, Consumer<List<T>> display) {
+			this.source = source;
+			this.index = source.getSelectedIndex();
+			this.loader = loader;
+			this.display = display;
+		}
+
+
+		@Override
+		protected List<T> doInBackground() {
+			return loader.get();
+		}
+
+
+		@Override
+		protected void done() {
+			if (!isCancelled() && source.getSelectedIndex() == index) {
+				try {
+					display.accept(get());
+				} catch (ExecutionException exception) {
+					LOGGER.warning(exception.getMessage());
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+				}
+				hierarchyStatus.setText("");
+			}
+		}
+
+	}
+
+
 	private class ClientDisconnector extends WindowAdapter {
 
 		ClientDisconnector() {}
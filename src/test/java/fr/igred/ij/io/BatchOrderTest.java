@@ -0,0 +1,147 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.repository.ImageWrapper;
+import ij.ImagePlus;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+
+class BatchOrderTest {
+
+	private static List<String> sort(BatchOrder order, List<TestImage> images) {
+		return order.sort(images, BatchImage::getSizeInBytes)
+					.stream()
+					.map(BatchImage::getName)
+					.collect(Collectors.toList());
+	}
+
+
+	@Test
+	void testAsListed() {
+		List<TestImage> images = Arrays.asList(new TestImage("a", 3), new TestImage("b", 1), new TestImage("c", 2));
+		List<BatchImage> sorted = BatchOrder.AS_LISTED.sort(images, BatchImage::getSizeInBytes);
+		assertNotSame(images, sorted);
+		assertEquals(Arrays.asList("a", "b", "c"), sort(BatchOrder.AS_LISTED, images));
+	}
+
+
+	@Test
+	void testLargestFirst() {
+		List<TestImage> images = Arrays.asList(new TestImage("a", 1),
+											   new TestImage("b", 5),
+											   new TestImage("c", -1),
+											   new TestImage("d", 3),
+											   new TestImage("e", 5));
+		assertEquals(Arrays.asList("b", "e", "d", "a", "c"), sort(BatchOrder.LARGEST_FIRST, images));
+	}
+
+
+	@Test
+	void testAlternateSizes() {
+		List<TestImage> images = Arrays.asList(new TestImage("large1", 1000),
+											   new TestImage("large2", 1001),
+											   new TestImage("small1", 10),
+											   new TestImage("small2", 11),
+											   new TestImage("unknown", -1));
+		assertEquals(Arrays.asList("large1", "small1", "unknown", "large2", "small2"),
+					 sort(BatchOrder.ALTERNATE_SIZES, images));
+	}
+
+
+	@Test
+	void testByFileset() {
+		List<TestImage> images = Arrays.asList(new TestImage("a1", "a"),
+											   new TestImage("b1", "b"),
+											   new TestImage("a2", "a"),
+											   new TestImage("c1", "c"),
+											   new TestImage("b2", "b"));
+		assertEquals(Arrays.asList("a1", "a2", "b1", "b2", "c1"), sort(BatchOrder.BY_FILESET, images));
+	}
+
+
+	@Test
+	void testFromName() {
+		assertEquals(BatchOrder.BY_FILESET, BatchOrder.fromName("BY_FILESET"));
+		assertEquals(BatchOrder.AS_LISTED, BatchOrder.fromName("By fileset"));
+		assertEquals(BatchOrder.AS_LISTED, BatchOrder.fromName(null));
+	}
+
+
+	private static class TestImage implements BatchImage {
+
+		private final String name;
+
+		private final String fileset;
+
+		private final long size;
+
+
+		TestImage(String name, long size) {
+			this.name = name;
+			this.fileset = name;
+			this.size = size;
+		}
+
+
+		TestImage(String name, String fileset) {
+			this.name = name;
+			this.fileset = fileset;
+			this.size = -1L;
+		}
+
+
+		@Override
+		public ImageWrapper getImageWrapper() {
+			return null;
+		}
+
+
+		@Override
+		public ImagePlus getImagePlus(ROIMode mode) {
+			return null;
+		}
+
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+
+		@Override
+		public String getFileset() {
+			return fileset;
+		}
+
+
+		@Override
+		public long getSizeInBytes() {
+			return size;
+		}
+
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import ij.measure.ResultsTable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+
+class ColumnarResultsTest {
+
+	@TempDir
+	Path folder;
+
+
+	private static double[] readDoubles(Path path) throws IOException {
+		double[] values = new double[(int) (Files.size(path) / Double.BYTES)];
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = in.readDouble();
+			}
+		}
+		return values;
+	}
+
+
+	private static ResultsTable createTable(String heading, Object... values) {
+		ResultsTable results = new ResultsTable();
+		for (Object value : values) {
+			results.incrementCounter();
+			if (value instanceof Number) {
+				results.addValue(heading, ((Number) value).doubleValue());
+			} else {
+				results.addValue(heading, String.valueOf(value));
+			}
+		}
+		return results;
+	}
+
+
+	@Test
+	void testBackFill() throws IOException {
+		ResultsTable both = createTable("A", 3, 4, 5);
+		for (int row = 0; row < both.size(); row++) {
+			both.setValue("B", row, 10.0d * (row + 1));
+		}
+		try (ColumnarResults output = new ColumnarResults(folder)) {
+			output.append(createTable("A", 1, 2), "image1");
+			output.append(both, "image2");
+			output.append(createTable("B", 40), "image3");
+			assertEquals(6L, output.getRowCount());
+		}
+		double[] a = readDoubles(folder.resolve("000_A.f64"));
+		double[] b = readDoubles(folder.resolve("001_B.f64"));
+		assertArrayEquals(new double[]{1, 2, 3, 4, 5, Double.NaN}, a, 0.0d);
+		assertArrayEquals(new double[]{Double.NaN, Double.NaN, 10, 20, 30, 40}, b, 0.0d);
+
+		List<String> groups = Files.readAllLines(folder.resolve("row_groups.tsv"), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("source\tfirst_row\trow_count", "image1\t0\t2", "image2\t2\t3", "image3\t5\t1"),
+					 groups);
+	}
+
+
+	@Test
+	void testWiden() throws IOException {
+		try (ColumnarResults output = new ColumnarResults(folder)) {
+			output.append(createTable("B", 7), "image1");
+			output.append(createTable("A", 1, 2.5), "image2");
+			output.append(createTable("A", "x"), "image3");
+		}
+		assertFalse(Files.exists(folder.resolve("001_A.f64")));
+		List<String> a = Files.readAllLines(folder.resolve("001_A.txt"), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("", "1", "2.5", "x"), a);
+		assertArrayEquals(new double[]{7, Double.NaN, Double.NaN, Double.NaN},
+						  readDoubles(folder.resolve("000_B.f64")), 0.0d);
+
+		List<String> schema = Files.readAllLines(folder.resolve("schema.tsv"), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("column\ttype\tfile", "B\tfloat64_be\t000_B.f64", "A\ttext\t001_A.txt"), schema);
+	}
+
+
+	@Test
+	void testTextAfterWiden() throws IOException {
+		try (ColumnarResults output = new ColumnarResults(folder)) {
+			output.append(createTable("A", 1), "image1");
+			output.append(createTable("A", "x"), "image2");
+			output.append(createTable("A", 3), "image3");
+		}
+		List<String> a = Files.readAllLines(folder.resolve("000_A.txt"), StandardCharsets.UTF_8);
+		assertEquals(3, a.size());
+		assertEquals(Arrays.asList("1", "x"), a.subList(0, 2));
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class ROIFilterTest {
+
+	@Test
+	void testParseEmpty() {
+		ROIFilter filter = ROIFilter.parse("  ");
+		assertTrue(filter.isEmpty());
+		assertFalse(filter.hasShapeConditions());
+		assertEquals("", filter.toString());
+	}
+
+
+	@Test
+	void testParseNull() {
+		assertTrue(ROIFilter.parse(null).isEmpty());
+	}
+
+
+	@Test
+	void testRoundTrip() {
+		String text = "owner=me name=cell* shape=Polygon,Ellipse z=2 t=3";
+		ROIFilter filter = ROIFilter.parse(text);
+		assertFalse(filter.isEmpty());
+		assertEquals(text, filter.toString());
+		assertEquals(text, ROIFilter.parse(filter.toString()).toString());
+	}
+
+
+	@Test
+	void testParseNormalizesKeysAndShapes() {
+		ROIFilter filter = ROIFilter.parse("OWNER=12\tShape=polygon,unknown,POINT");
+		assertEquals("owner=12 shape=Polygon,Point", filter.toString());
+	}
+
+
+	@Test
+	void testParseIgnoresInvalidValues() {
+		ROIFilter filter = ROIFilter.parse("owner=someone z=abc t=-1 color=red name=");
+		assertTrue(filter.isEmpty());
+		assertEquals("", filter.toString());
+	}
+
+
+	@Test
+	void testWithoutShapeConditions() {
+		ROIFilter filter = ROIFilter.parse("owner=12 name=nucleus shape=Mask z=1 t=1");
+		assertTrue(filter.hasShapeConditions());
+		ROIFilter whole = filter.withoutShapeConditions();
+		assertFalse(whole.hasShapeConditions());
+		assertEquals("owner=12 name=nucleus", whole.toString());
+	}
+
+
+	@Test
+	void testShapeConditionsOnly() {
+		ROIFilter filter = ROIFilter.parse("z=4");
+		assertFalse(filter.isEmpty());
+		assertTrue(filter.hasShapeConditions());
+		assertTrue(filter.withoutShapeConditions().isEmpty());
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import ij.gui.Roi;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class ROIUploaderTest {
+
+	private static final String PROPERTY = "ROI";
+
+
+	private static Roi createRoi(String group) {
+		Roi roi = new Roi(0, 0, 1, 1);
+		if (group != null) {
+			roi.setProperty(PROPERTY, group);
+		}
+		return roi;
+	}
+
+
+	private static List<Roi> createRois(String... groups) {
+		List<Roi> rois = new ArrayList<>(groups.length);
+		for (String group : groups) {
+			rois.add(createRoi(group));
+		}
+		return rois;
+	}
+
+
+	private static List<Integer> getSizes(List<? extends List<Roi>> chunks) {
+		return chunks.stream().map(List::size).collect(Collectors.toList());
+	}
+
+
+	@Test
+	void testSplitEmpty() {
+		assertTrue(ROIUploader.split(Collections.emptyList(), PROPERTY, 10).isEmpty());
+	}
+
+
+	@Test
+	void testSplitUngrouped() {
+		List<Roi> rois = createRois(null, null, null, null, null);
+		List<List<Roi>> chunks = ROIUploader.split(rois, PROPERTY, 2);
+		assertEquals(Arrays.asList(2, 2, 1), getSizes(chunks));
+		assertSame(rois.get(4), chunks.get(2).get(0));
+	}
+
+
+	@Test
+	void testSplitKeepsGroups() {
+		List<Roi> rois = createRois("1", "1", null, "2", "2", "2", null);
+		List<List<Roi>> chunks = ROIUploader.split(rois, PROPERTY, 3);
+		assertEquals(Arrays.asList(3, 3, 1), getSizes(chunks));
+		chunks.get(1).forEach(roi -> assertEquals("2", roi.getProperty(PROPERTY)));
+	}
+
+
+	@Test
+	void testSplitGathersGroupMembers() {
+		List<Roi> rois = createRois("1", null, "1");
+		List<List<Roi>> chunks = ROIUploader.split(rois, PROPERTY, 2);
+		assertEquals(Arrays.asList(2, 1), getSizes(chunks));
+		assertSame(rois.get(0), chunks.get(0).get(0));
+		assertSame(rois.get(2), chunks.get(0).get(1));
+		assertSame(rois.get(1), chunks.get(1).get(0));
+	}
+
+
+	@Test
+	void testSplitLargeGroup() {
+		List<Roi> rois = createRois(null, "1", "1", "1", null);
+		List<List<Roi>> chunks = ROIUploader.split(rois, PROPERTY, 2);
+		assertEquals(Arrays.asList(1, 3, 1), getSizes(chunks));
+	}
+
+}
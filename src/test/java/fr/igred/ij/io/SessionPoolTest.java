@@ -0,0 +1,89 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.io;
+
+
+import fr.igred.omero.Client;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+
+/**
+ * Requires an OMERO server, set with the OMERO_HOST, OMERO_PORT, OMERO_USER and OMERO_PASSWORD environment variables.
+ */
+class SessionPoolTest {
+
+	private static final String HOST = System.getenv("OMERO_HOST");
+
+	private static final int PORT = Integer.parseInt(System.getenv().getOrDefault("OMERO_PORT", "4064"));
+
+	private Client client;
+
+
+	@BeforeEach
+	void setUp() throws Exception {
+		assumeTrue(HOST != null && !HOST.isEmpty(), "No OMERO server configured");
+		client = new Client();
+		client.connect(HOST, PORT, System.getenv("OMERO_USER"), System.getenv("OMERO_PASSWORD").toCharArray());
+	}
+
+
+	@AfterEach
+	void tearDown() {
+		if (client != null) {
+			client.disconnect();
+		}
+	}
+
+
+	@Test
+	void testPrimaryWorksAfterClose() throws InterruptedException {
+		try (SessionPool pool = new SessionPool(client, HOST, PORT, 2)) {
+			assertEquals(2, pool.size());
+			Client session = pool.borrow();
+			assertNotSame(client, session);
+			assertDoesNotThrow(() -> session.getProjects());
+			pool.release(session);
+		}
+		assertDoesNotThrow(() -> client.getProjects());
+	}
+
+
+	@Test
+	void testJoinedSessionsReused() throws InterruptedException {
+		Client session;
+		try (SessionPool pool = new SessionPool(client, HOST, PORT, 1)) {
+			session = pool.borrow();
+			pool.release(session);
+		}
+		try (SessionPool pool = new SessionPool(client, HOST, PORT, 1)) {
+			Client reused = pool.borrow();
+			assertSame(session, reused);
+			assertDoesNotThrow(() -> reused.getProjects());
+			pool.release(reused);
+		}
+		assertDoesNotThrow(() -> client.getProjects());
+	}
+
+}
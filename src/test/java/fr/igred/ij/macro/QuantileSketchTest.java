@@ -0,0 +1,115 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class QuantileSketchTest {
+
+	private static final int COUNT = 100000;
+
+	private static final double TOLERANCE = 0.03;
+
+	private final List<Double> values = new ArrayList<>(COUNT);
+
+
+	private static double getMaxRankError(QuantileSketch sketch) {
+		double error = 0.0d;
+		for (int i = 1; i < 100; i++) {
+			double q = i / 100.0d;
+			error = Math.max(error, Math.abs(sketch.getQuantile(q) - q * COUNT) / COUNT);
+		}
+		return error;
+	}
+
+
+	@BeforeEach
+	void setUp() {
+		values.clear();
+		for (int i = 0; i < COUNT; i++) {
+			values.add((double) i);
+		}
+		Collections.shuffle(values, new Random(42L));
+	}
+
+
+	@Test
+	void testEmpty() {
+		assertTrue(Double.isNaN(new QuantileSketch().getQuantile(0.5)));
+	}
+
+
+	@Test
+	void testExactWhenSmall() {
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 1; i <= 99; i++) {
+			sketch.add(i);
+		}
+		assertEquals(50.0d, sketch.getQuantile(0.5), 0.0d);
+		assertEquals(1.0d, sketch.getQuantile(0.0), 0.0d);
+		assertEquals(99.0d, sketch.getQuantile(1.0), 0.0d);
+	}
+
+
+	@Test
+	void testErrorBound() {
+		QuantileSketch sketch = new QuantileSketch();
+		values.forEach(sketch::add);
+		assertTrue(getMaxRankError(sketch) <= TOLERANCE);
+	}
+
+
+	@Test
+	void testMergeErrorBound() {
+		QuantileSketch first = new QuantileSketch();
+		QuantileSketch second = new QuantileSketch();
+		for (int i = 0; i < COUNT; i++) {
+			if (i % 3 == 0) {
+				first.add(values.get(i));
+			} else {
+				second.add(values.get(i));
+			}
+		}
+		first.merge(second);
+		assertTrue(getMaxRankError(first) <= TOLERANCE);
+	}
+
+
+	@Test
+	void testMergeEmpty() {
+		QuantileSketch sketch = new QuantileSketch();
+		QuantileSketch empty = new QuantileSketch();
+		values.forEach(sketch::add);
+		double median = sketch.getQuantile(0.5);
+		sketch.merge(empty);
+		empty.merge(sketch);
+		assertEquals(median, sketch.getQuantile(0.5), 0.0d);
+		assertEquals(median, empty.getQuantile(0.5), COUNT * TOLERANCE);
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class ResultsSummaryTest {
+
+	private static final double DELTA = 1.0e-9;
+
+
+	@Test
+	void testStatistics() {
+		ResultsSummary.Statistics stats = new ResultsSummary.Statistics();
+		for (int i = 1; i <= 5; i++) {
+			stats.add(i);
+		}
+		assertEquals(5L, stats.getCount());
+		assertEquals(3.0d, stats.getMean(), DELTA);
+		assertEquals(2.5d, stats.getVariance(), DELTA);
+		assertEquals(1.0d, stats.getMin(), DELTA);
+		assertEquals(5.0d, stats.getMax(), DELTA);
+		assertEquals(3.0d, stats.getQuantile(0.5), DELTA);
+	}
+
+
+	@Test
+	void testMergeStatistics() {
+		Random random = new Random(42L);
+		ResultsSummary.Statistics all = new ResultsSummary.Statistics();
+		ResultsSummary.Statistics first = new ResultsSummary.Statistics();
+		ResultsSummary.Statistics second = new ResultsSummary.Statistics();
+		for (int i = 0; i < 1000; i++) {
+			double value = 10.0d + random.nextGaussian();
+			all.add(value);
+			if (i < 300) {
+				first.add(value);
+			} else {
+				second.add(value);
+			}
+		}
+		first.merge(second);
+		assertEquals(all.getCount(), first.getCount());
+		assertEquals(all.getMean(), first.getMean(), DELTA);
+		assertEquals(all.getVariance(), first.getVariance(), DELTA);
+		assertEquals(all.getMin(), first.getMin(), DELTA);
+		assertEquals(all.getMax(), first.getMax(), DELTA);
+		assertEquals(all.getQuantile(0.5), first.getQuantile(0.5), 0.1d);
+	}
+
+
+	@Test
+	void testMergeIntoEmptyStatistics() {
+		ResultsSummary.Statistics stats = new ResultsSummary.Statistics();
+		ResultsSummary.Statistics other = new ResultsSummary.Statistics();
+		other.add(2.0d);
+		other.add(4.0d);
+		stats.merge(new ResultsSummary.Statistics());
+		assertTrue(Double.isNaN(stats.getMean()));
+		stats.merge(other);
+		assertEquals(2L, stats.getCount());
+		assertEquals(3.0d, stats.getMean(), DELTA);
+		assertEquals(2.0d, stats.getVariance(), DELTA);
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2021-2023 MICA & GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.ij.macro;
+
+
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.script.ScriptEngineManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+
+class ScriptRunnerTest {
+
+	@TempDir
+	Path folder;
+
+
+	private ScriptRunner createRunner(String code) throws IOException {
+		return createRunner("macro.ijm", code);
+	}
+
+
+	private ScriptRunner createRunner(String name, String code) throws IOException {
+		Path macro = folder.resolve(name);
+		Files.write(macro, code.getBytes(StandardCharsets.UTF_8));
+		return new ScriptRunner(macro.toString());
+	}
+
+
+	@BeforeEach
+	void setUp() {
+		Interpreter.setBatchMode(true);
+	}
+
+
+	@AfterEach
+	void tearDown() {
+		Interpreter.setBatchMode(false);
+	}
+
+
+	@Test
+	void testBatchModeOutputImage() throws IOException {
+		ScriptRunner runner = createRunner("newImage(\"Mask\", \"8-bit black\", 16, 16, 1);\n");
+		runner.run();
+		List<ImagePlus> images = runner.getOutputs().getImages();
+		assertEquals(1, images.size());
+		assertEquals("Mask", images.get(0).getTitle());
+	}
+
+
+	@Test
+	void testBatchModeOutputImagesCurrentFirst() throws IOException {
+		ScriptRunner runner = createRunner("newImage(\"A\", \"8-bit black\", 16, 16, 1);\n" +
+										   "newImage(\"B\", \"8-bit black\", 16, 16, 1);\n" +
+										   "selectImage(\"A\");\n");
+		runner.run();
+		List<ImagePlus> images = runner.getOutputs().getImages();
+		assertEquals(2, images.size());
+		assertEquals("A", images.get(0).getTitle());
+	}
+
+
+	@Test
+	void testBatchModeOutputImageFromFile() throws IOException {
+		ScriptRunner runner = createRunner("path = getInfo(\"macro.filepath\");\n" +
+										   "newImage(\"Mask\", \"8-bit black\", 16, 16, 1);\n");
+		runner.run();
+		List<ImagePlus> images = runner.getOutputs().getImages();
+		assertEquals(1, images.size());
+		assertEquals("Mask", images.get(0).getTitle());
+	}
+
+
+	@Test
+	void testBatchModeOutputImageAfterExit() throws IOException {
+		ScriptRunner runner = createRunner("newImage(\"Mask\", \"8-bit black\", 16, 16, 1);\n" +
+										   "exit;\n" +
+										   "newImage(\"Unused\", \"8-bit black\", 16, 16, 1);\n");
+		runner.run();
+		List<ImagePlus> images = runner.getOutputs().getImages();
+		assertEquals(1, images.size());
+		assertEquals("Mask", images.get(0).getTitle());
+	}
+
+
+	@Test
+	void testJavaScriptOutputImage() throws IOException {
+		assumeTrue(new ScriptEngineManager().getEngineByName("JavaScript") != null);
+		ScriptRunner runner = createRunner("script.js", "IJ.newImage(\"Mask\", \"8-bit black\", 16, 16, 1).show();\n");
+		runner.run();
+		List<ImagePlus> images = runner.getOutputs().getImages();
+		assertEquals(1, images.size());
+		assertEquals("Mask", images.get(0).getTitle());
+	}
+
+
+	@Test
+	void testNoBatchModeImagesOutsideBatchMode() throws IOException {
+		Interpreter.setBatchMode(false);
+		ScriptRunner runner = createRunner("x = 1;\n");
+		runner.run();
+		assertTrue(runner.getBatchModeImages().isEmpty());
+	}
+
+}